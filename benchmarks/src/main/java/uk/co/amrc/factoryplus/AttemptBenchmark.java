@@ -0,0 +1,57 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * Attempt combinators.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** The Attempt combinators on the success and failure paths.
+ *
+ * These mirror how GSS contexts are created and used: a callable which
+ * may throw, mapped, then unwrapped.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AttemptBenchmark {
+    private static final Exception ERROR = new Exception("No credentials");
+
+    public int value = 42;
+
+    @Benchmark
+    public int successChain ()
+    {
+        return Attempt.ofCallable(() -> value)
+            .map(v -> v + 1)
+            .flatMap(v -> Attempt.of(v * 2))
+            .or(e -> Attempt.of(0))
+            .orElse(e -> -1);
+    }
+
+    @Benchmark
+    public int failureChain ()
+    {
+        return Attempt.<Integer>ofCallable(() -> { throw ERROR; })
+            .map(v -> v + 1)
+            .flatMap(v -> Attempt.of(v * 2))
+            .mapError(Exception.class, e -> new IllegalStateException(e))
+            .handle(IllegalStateException.class, e -> Attempt.of(0))
+            .orElse(e -> -1);
+    }
+
+    @Benchmark
+    public Object toSingle ()
+    {
+        return Attempt.of(value)
+            .map(v -> v + 1)
+            .toSingle()
+            .blockingGet();
+    }
+}
@@ -0,0 +1,29 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * Benchmark runner.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks.
+ *
+ * This accepts the usual JMH command line, but always adds the GC
+ * profiler so every result includes allocation per operation
+ * (<code>gc.alloc.rate.norm</code>).
+ */
+public class BenchmarkMain {
+    public static void main (String[] args)
+        throws Exception
+    {
+        var opts = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(opts).run();
+    }
+}
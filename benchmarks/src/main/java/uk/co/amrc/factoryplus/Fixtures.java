@@ -0,0 +1,112 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * Realistic service data.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.json.*;
+
+/** Generates service responses shaped like a real deployment.
+ *
+ * Principals are granted a handful of Sparkplug permissions, most of
+ * which are templated on the target's group and node. Everything is
+ * generated from a fixed seed, so runs are comparable.
+ */
+public class Fixtures {
+    public static final UUID PERMGRP = UUID.fromString(
+        "a637134a-d06b-41e7-ad86-4bf62fde914a");
+    public static final UUID TEMPLATE = UUID.fromString(
+        "1266ddf1-156c-4266-9808-d6949418b185");
+    public static final UUID ADDRESS = FPUuid.App.SparkplugAddress;
+
+    private static final String[][] TEMPLATES = {
+        /* Participate as node */
+        { "spBv1.0/%g/NBIRTH/%n", "w", "spBv1.0/%g/NDEATH/%n", "w",
+          "spBv1.0/%g/NDATA/%n", "w", "spBv1.0/%g/NCMD/%n", "r",
+          "spBv1.0/%g/DBIRTH/%n/+", "w", "spBv1.0/%g/DDEATH/%n/+", "w",
+          "spBv1.0/%g/DDATA/%n/+", "w", "spBv1.0/%g/DCMD/%n/+", "r",
+          "spBv1.0/STATE/+", "r" },
+        /* Read node */
+        { "spBv1.0/%g/+/%n", "r", "spBv1.0/%g/+/%n/+", "r" },
+        /* Send node commands */
+        { "spBv1.0/%g/NCMD/%n", "w", "spBv1.0/%g/DCMD/%n/+", "w" },
+        /* Read group */
+        { "spBv1.0/%g/#", "r" },
+        /* Read all */
+        { "spBv1.0/#", "r" },
+        /* Primary application */
+        { "spBv1.0/STATE/%n", "rw" },
+    };
+
+    private final Random random;
+    private final List<UUID> permissions;
+    private final Map<UUID, JSONObject> templates;
+    private final List<UUID> targets;
+    private final Map<UUID, JSONObject> addresses;
+
+    /** Creates a data set.
+     *
+     * @param nodes The number of Sparkplug nodes which may be targets.
+     */
+    public Fixtures (int nodes)
+    {
+        random = new Random(42);
+
+        permissions = new ArrayList<UUID>();
+        templates = new LinkedHashMap<UUID, JSONObject>();
+        for (var tmpl : TEMPLATES) {
+            var uuid = uuid();
+            var json = new JSONObject();
+            for (int i = 0; i < tmpl.length; i += 2)
+                json.put(tmpl[i], tmpl[i + 1]);
+            permissions.add(uuid);
+            templates.put(uuid, json);
+        }
+
+        targets = new ArrayList<UUID>();
+        addresses = new LinkedHashMap<UUID, JSONObject>();
+        for (int i = 0; i < nodes; i++) {
+            var uuid = uuid();
+            targets.add(uuid);
+            addresses.put(uuid, new JSONObject()
+                .put("group_id", "Group-" + (i / 16))
+                .put("node_id", "Node-" + i));
+        }
+    }
+
+    private UUID uuid ()
+    {
+        return new UUID(random.nextLong(), random.nextLong());
+    }
+
+    public List<UUID> permissions () { return permissions; }
+    public Map<UUID, JSONObject> templates () { return templates; }
+    public List<UUID> targets () { return targets; }
+    public Map<UUID, JSONObject> addresses () { return addresses; }
+
+    /** Generates an Auth service ACL response.
+     *
+     * @param grants The number of entries.
+     * @return The ACL, as the Auth service would return it.
+     */
+    public JSONArray acl (int grants)
+    {
+        var acl = new JSONArray();
+        for (int i = 0; i < grants; i++) {
+            acl.put(new JSONObject()
+                .put("permission", permissions.get(
+                    random.nextInt(permissions.size())).toString())
+                .put("target", targets.get(
+                    random.nextInt(targets.size())).toString()));
+        }
+        return acl;
+    }
+}
@@ -0,0 +1,59 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * RequestCache under contention.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import io.reactivex.rxjava3.core.Single;
+
+/** Lookups in a warm cache from many threads.
+ *
+ * With a bounded cache every hit also touches the LRU order, so this
+ * compares the bounded and unbounded read paths. A key space larger
+ * than the bound gives a steady stream of misses and evictions.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class RequestCacheBenchmark {
+    @Param({ "0", "10000" })
+    public int maxSize;
+
+    @Param({ "1000", "20000" })
+    public int keys;
+
+    private RequestCache<String, String> cache;
+    private String[] names;
+
+    @Setup
+    public void setup ()
+    {
+        cache = new RequestCache<String, String>(k -> Single.just(k))
+            .withTTL(Duration.ofMinutes(10))
+            .withMaxSize(maxSize);
+
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "client" + i + "@REALM.EXAMPLE";
+            cache.get(names[i]);
+        }
+    }
+
+    @Benchmark
+    public Single<String> get ()
+    {
+        var key = names[ThreadLocalRandom.current().nextInt(keys)];
+        return cache.get(key);
+    }
+}
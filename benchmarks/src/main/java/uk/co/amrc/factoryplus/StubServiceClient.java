@@ -0,0 +1,102 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * In-process service stubs.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.json.*;
+
+import io.reactivex.rxjava3.core.Single;
+
+/** A service client answering from memory.
+ *
+ * The Auth service and ConfigDB are replaced with stubs which return
+ * already-parsed responses, so benchmarks measure our processing of
+ * the responses and not the network.
+ */
+public class StubServiceClient extends FPServiceClient {
+    private final Map<String, List<AclEntry>> acls;
+    private final Map<Pair<UUID, UUID>, ConfigEntry> configs;
+    private final FPAuth auth;
+    private final FPConfigDB configdb;
+
+    public StubServiceClient (Map<String, String> config)
+    {
+        super(config);
+        acls = new ConcurrentHashMap<String, List<AclEntry>>();
+        configs = new ConcurrentHashMap<Pair<UUID, UUID>, ConfigEntry>();
+        auth = new StubAuth();
+        configdb = new StubConfigDB();
+    }
+
+    /** Loads the templates and addresses from a data set.
+     *
+     * @param data The data set.
+     * @return <code>this</code>.
+     */
+    public StubServiceClient withFixtures (Fixtures data)
+    {
+        data.templates().forEach((uuid, tmpl) ->
+            putConfig(Fixtures.TEMPLATE, uuid, tmpl));
+        data.addresses().forEach((uuid, addr) ->
+            putConfig(Fixtures.ADDRESS, uuid, addr));
+        return this;
+    }
+
+    public void putACL (String principal, JSONArray acl)
+    {
+        acls.put(principal, StreamSupport.stream(acl.spliterator(), false)
+            .map(o -> AclEntry.fromJSON((JSONObject)o))
+            .collect(Collectors.toList()));
+    }
+
+    public void putConfig (UUID app, UUID obj, JSONObject value)
+    {
+        /* Entries are versioned by content, as the ConfigDB does. */
+        configs.put(Pair.of(app, obj), new ConfigEntry(value,
+            Optional.of("\"" + Integer.toHexString(value.toString().hashCode())
+                + "\"")));
+    }
+
+    @Override
+    synchronized public FPAuth auth () { return auth; }
+
+    @Override
+    synchronized public FPConfigDB configdb () { return configdb; }
+
+    private class StubAuth extends FPAuth {
+        StubAuth () { super(StubServiceClient.this); }
+
+        @Override
+        public Single<Stream<AclEntry>> getACLEntries (String princ, UUID perms)
+        {
+            return Single.fromSupplier(() -> acls.getOrDefault(princ,
+                    List.<AclEntry>of()).stream());
+        }
+    }
+
+    private class StubConfigDB extends FPConfigDB {
+        StubConfigDB () { super(StubServiceClient.this); }
+
+        @Override
+        public Single<ConfigEntry> getConfigEntry (UUID app, UUID obj)
+        {
+            var entry = configs.get(Pair.of(app, obj));
+            if (entry == null)
+                return Single.error(new FPServiceException(
+                    FPUuid.Service.ConfigDB, 404, "Not found"));
+            return Single.just(entry);
+        }
+    }
+}
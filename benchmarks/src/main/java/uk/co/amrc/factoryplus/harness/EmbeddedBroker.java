@@ -0,0 +1,107 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * Embedded HiveMQ broker.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.harness;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+
+import com.hivemq.embedded.EmbeddedExtension;
+import com.hivemq.embedded.EmbeddedHiveMQ;
+import com.hivemq.extension.sdk.api.ExtensionMain;
+
+/** A HiveMQ CE broker running in this JVM.
+ *
+ * The broker listens on a free local port, keeps its data in a
+ * temporary directory and has usage statistics turned off, so it
+ * makes no outside connections. The only extension loaded is the one
+ * given to {@link #start}.
+ */
+public class EmbeddedBroker {
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedBroker.class);
+
+    private static final String CONFIG = String.join("\n",
+        "<?xml version=\"1.0\"?>",
+        "<hivemq>",
+        "    <listeners>",
+        "        <tcp-listener>",
+        "            <port>%d</port>",
+        "            <bind-address>127.0.0.1</bind-address>",
+        "        </tcp-listener>",
+        "    </listeners>",
+        "    <persistence>",
+        "        <mode>in-memory</mode>",
+        "    </persistence>",
+        "    <anonymous-usage-statistics>",
+        "        <enabled>false</enabled>",
+        "    </anonymous-usage-statistics>",
+        "</hivemq>",
+        "");
+
+    private final Path dir;
+    private final int port;
+    private EmbeddedHiveMQ hivemq;
+
+    public EmbeddedBroker ()
+        throws IOException
+    {
+        dir = Files.createTempDirectory("fplus-hivemq");
+        dir.toFile().deleteOnExit();
+        port = EmbeddedKdc.freePort();
+
+        for (var sub : new String[] { "conf", "data", "extensions" })
+            Files.createDirectories(dir.resolve(sub));
+        Files.writeString(dir.resolve("conf/config.xml"),
+            String.format(CONFIG, port));
+    }
+
+    /** Starts the broker.
+     *
+     * @param main The extension to load.
+     * @return <code>this</code>, once the broker is accepting
+     * connections.
+     */
+    public EmbeddedBroker start (ExtensionMain main)
+    {
+        var extension = EmbeddedExtension.builder()
+            .withId("fplus-auth-krb")
+            .withName("Factory+ Kerberos auth (embedded)")
+            .withVersion("embedded")
+            .withPriority(1000)
+            .withStartPriority(1000)
+            .withAuthor("AMRC")
+            .withExtensionMain(main)
+            .build();
+
+        hivemq = EmbeddedHiveMQ.builder()
+            .withConfigurationFolder(dir.resolve("conf"))
+            .withDataFolder(dir.resolve("data"))
+            .withExtensionsFolder(dir.resolve("extensions"))
+            .withEmbeddedExtension(extension)
+            .build();
+        hivemq.start().join();
+
+        log.info("Started embedded HiveMQ on port {}", port);
+        return this;
+    }
+
+    public void stop ()
+    {
+        hivemq.stop().join();
+    }
+
+    public int getPort () { return port; }
+
+    public MetricRegistry getMetricRegistry ()
+    {
+        return hivemq.getMetricRegistry();
+    }
+}
@@ -0,0 +1,113 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * Embedded KDC.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.kerby.kerberos.kerb.KrbException;
+import org.apache.kerby.kerberos.kerb.server.SimpleKdcServer;
+
+/** A throwaway Kerberos realm.
+ *
+ * Runs an Apache Kerby KDC on a free local TCP port, with its database
+ * and keytabs in a temporary directory. Starting the KDC points the
+ * JVM's Kerberos configuration at it, so this must happen before
+ * anything uses the GSSAPI.
+ */
+public class EmbeddedKdc {
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedKdc.class);
+
+    public static final String REALM = "FACTORYPLUS.TEST";
+
+    private final Path dir;
+    private final SimpleKdcServer kdc;
+
+    public EmbeddedKdc ()
+        throws IOException, KrbException
+    {
+        dir = Files.createTempDirectory("fplus-kdc");
+        dir.toFile().deleteOnExit();
+
+        kdc = new SimpleKdcServer();
+        kdc.setWorkDir(dir.toFile());
+        kdc.setKdcHost("localhost");
+        kdc.setKdcRealm(REALM);
+        kdc.setAllowUdp(false);
+        kdc.setKdcTcpPort(freePort());
+    }
+
+    static int freePort ()
+        throws IOException
+    {
+        try (var sock = new ServerSocket(0)) {
+            return sock.getLocalPort();
+        }
+    }
+
+    public EmbeddedKdc start ()
+        throws KrbException
+    {
+        kdc.init();
+        kdc.start();
+
+        var conf = dir.resolve("krb5.conf").toString();
+        System.setProperty("java.security.krb5.conf", conf);
+        log.info("Started KDC for {}, config in {}", REALM, conf);
+        return this;
+    }
+
+    public void stop ()
+        throws KrbException
+    {
+        kdc.stop();
+    }
+
+    /** Qualifies a principal name with our realm.
+     *
+     * @param name The unqualified name.
+     * @return The full principal name.
+     */
+    public static String principal (String name)
+    {
+        return name + "@" + REALM;
+    }
+
+    /** Creates a principal with a password.
+     *
+     * @param name The unqualified principal name.
+     * @param password The password.
+     */
+    public void addPrincipal (String name, String password)
+        throws KrbException
+    {
+        kdc.createPrincipal(principal(name), password);
+    }
+
+    /** Creates principals with random keys and exports them.
+     *
+     * @param keytab The keytab name, within our temporary directory.
+     * @param names The unqualified principal names.
+     * @return The path to the keytab.
+     */
+    public String addKeytab (String keytab, String... names)
+        throws KrbException
+    {
+        var file = dir.resolve(keytab).toFile();
+        for (var name : names) {
+            kdc.createPrincipal(principal(name));
+            kdc.exportPrincipal(principal(name), file);
+        }
+        file.deleteOnExit();
+        return file.toString();
+    }
+}
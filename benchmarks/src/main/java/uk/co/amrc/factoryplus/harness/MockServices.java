@@ -0,0 +1,368 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * Mock Factory+ services.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.harness;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.json.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.co.amrc.factoryplus.FPUuid;
+import uk.co.amrc.factoryplus.gss.FPGssServer;
+
+/** In-process Directory, Auth, ConfigDB and token endpoints.
+ *
+ * All services run on one HTTP server, under different base paths.
+ * Tokens are issued from <code>/token</code> after a real GSSAPI
+ * exchange, and every other request must carry one which has not
+ * expired. Each service can be given extra latency and a rate of
+ * injected errors.
+ */
+public class MockServices {
+    private static final Logger log = LoggerFactory.getLogger(MockServices.class);
+
+    private static final Pattern NEGOTIATE = Pattern.compile(
+        "^Negotiate +([A-Za-z0-9+/=]+)$");
+
+    /** Latency and errors to inject into a service. */
+    public static class Fault {
+        private volatile long latency = 0;
+        private volatile long jitter = 0;
+        private volatile double errorRate = 0;
+        private volatile long[] samples = null;
+
+        /** Delays each response.
+         *
+         * @param ms The fixed delay, in milliseconds.
+         * @param jitter The maximum random extra delay.
+         * @return <code>this</code>.
+         */
+        public Fault withLatency (long ms, long jitter)
+        {
+            this.latency = ms;
+            this.jitter = jitter;
+            return this;
+        }
+
+        /** Delays each response by a random choice of samples.
+         *
+         * This replaces any fixed latency.
+         *
+         * @param micros The delays to choose from, in microseconds.
+         * @return <code>this</code>.
+         */
+        public Fault withLatencySamples (long[] micros)
+        {
+            this.samples = micros.length > 0 ? micros.clone() : null;
+            return this;
+        }
+
+        /** Fails some requests with a 503.
+         *
+         * @param rate The fraction of requests to fail.
+         * @return <code>this</code>.
+         */
+        public Fault withErrorRate (double rate)
+        {
+            this.errorRate = rate;
+            return this;
+        }
+
+        /* Returns true if the request should fail. */
+        boolean apply ()
+        {
+            var rnd = ThreadLocalRandom.current();
+            var sampled = samples;
+            long delay = sampled != null
+                ? sampled[rnd.nextInt(sampled.length)]
+                : (latency + (jitter > 0 ? rnd.nextLong(jitter + 1) : 0)) * 1000;
+            if (delay > 0) {
+                try { TimeUnit.MICROSECONDS.sleep(delay); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            return errorRate > 0 && rnd.nextDouble() < errorRate;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final FPGssServer acceptor;
+    private final URI base;
+
+    /* Token to expiry, in ms since the epoch. */
+    private final Map<String, Long> tokens = new ConcurrentHashMap<String, Long>();
+    private volatile long tokenLifetime = 3600000;
+    private final Map<String, JSONArray> acls = new ConcurrentHashMap<String, JSONArray>();
+    private final Map<String, JSONObject> configs = new ConcurrentHashMap<String, JSONObject>();
+    private final Map<String, Fault> faults = new ConcurrentHashMap<String, Fault>();
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<String, LongAdder>();
+
+    /** Creates the services.
+     *
+     * @param acceptor GSS credentials for <code>HTTP/localhost</code>.
+     */
+    public MockServices (FPGssServer acceptor)
+        throws IOException
+    {
+        this.acceptor = acceptor;
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        /* Injected latency blocks a thread, so don't bound these. */
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        base = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+
+        server.createContext("/token", this::token);
+        server.createContext("/directory/", ex -> service("directory", ex, this::directory));
+        server.createContext("/auth/", ex -> service("auth", ex, this::auth));
+        server.createContext("/configdb/", ex -> service("configdb", ex, this::configdb));
+    }
+
+    public MockServices start ()
+    {
+        server.start();
+        log.info("Mock services running at {}", base);
+        return this;
+    }
+
+    public void stop ()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public URI getDirectoryURL () { return base.resolve("/directory/"); }
+
+    /** Sets how long new tokens are valid for.
+     *
+     * @param seconds The lifetime.
+     * @return <code>this</code>.
+     */
+    public MockServices withTokenLifetime (int seconds)
+    {
+        tokenLifetime = seconds * 1000L;
+        return this;
+    }
+
+    /** The faults for a service.
+     *
+     * @param service One of <code>token</code>, <code>directory</code>,
+     * <code>auth</code> or <code>configdb</code>.
+     * @return The (mutable) faults for that service.
+     */
+    public Fault fault (String service)
+    {
+        return faults.computeIfAbsent(service, s -> new Fault());
+    }
+
+    public Map<String, Long> requestCounts ()
+    {
+        var rv = new TreeMap<String, Long>();
+        requests.forEach((k, v) -> rv.put(k, v.sum()));
+        return rv;
+    }
+
+    public void putACL (String principal, JSONArray acl)
+    {
+        acls.put(principal, acl);
+    }
+
+    public void putConfig (UUID app, UUID obj, JSONObject value)
+    {
+        configs.put(app + "/" + obj, value);
+    }
+
+    private interface Handler {
+        void handle (HttpExchange ex, String path) throws IOException;
+    }
+
+    private void service (String name, HttpExchange ex, Handler handler)
+        throws IOException
+    {
+        try {
+            requests.computeIfAbsent(name, k -> new LongAdder()).increment();
+            if (fault(name).apply()) {
+                send(ex, 503, null);
+                return;
+            }
+
+            var auth = ex.getRequestHeaders().getFirst("Authorization");
+            var expiry = auth == null || !auth.startsWith("Bearer ") ? null
+                : tokens.get(auth.substring(7));
+            if (expiry == null || expiry < System.currentTimeMillis()) {
+                send(ex, 401, null);
+                return;
+            }
+
+            var prefix = "/" + name + "/";
+            handler.handle(ex, ex.getRequestURI().getPath()
+                .substring(prefix.length()));
+        }
+        catch (Exception e) {
+            log.error("Mock {} failed", name, e);
+        }
+        finally {
+            ex.close();
+        }
+    }
+
+    private void token (HttpExchange ex)
+        throws IOException
+    {
+        try {
+            requests.computeIfAbsent("token", k -> new LongAdder()).increment();
+            if (fault("token").apply()) {
+                send(ex, 503, null);
+                return;
+            }
+
+            var auth = ex.getRequestHeaders().getFirst("Authorization");
+            var m = auth == null ? null : NEGOTIATE.matcher(auth);
+            if (m == null || !m.matches()) {
+                ex.getResponseHeaders().set("WWW-Authenticate", "Negotiate");
+                send(ex, 401, null);
+                return;
+            }
+
+            var in = Base64.getDecoder().decode(m.group(1));
+            var out = acceptor.createContext()
+                .map(ctx -> ctx.acceptSecContext(in, 0, in.length))
+                .orElse(e -> {
+                    log.error("Mock token GSS failure", e);
+                    return null;
+                });
+            if (out == null) {
+                send(ex, 401, null);
+                return;
+            }
+
+            var token = UUID.randomUUID().toString();
+            var expiry = System.currentTimeMillis() + tokenLifetime;
+            tokens.put(token, expiry);
+            ex.getResponseHeaders().set("WWW-Authenticate",
+                "Negotiate " + Base64.getEncoder().encodeToString(out));
+            send(ex, 200, new JSONObject()
+                .put("token", token)
+                .put("expiry", expiry));
+        }
+        finally {
+            ex.close();
+        }
+    }
+
+    private void directory (HttpExchange ex, String path)
+        throws IOException
+    {
+        /* v1/service/UUID[/advertisment] */
+        var parts = path.split("/");
+        if (parts.length < 3 || !parts[1].equals("service")) {
+            send(ex, 404, null);
+            return;
+        }
+        if (ex.getRequestMethod().equals("PUT")) {
+            send(ex, 204, null);
+            return;
+        }
+
+        var service = UUID.fromString(parts[2]);
+        String url = null;
+        if (service.equals(FPUuid.Service.Authentication))
+            url = base.resolve("/auth/").toString();
+        else if (service.equals(FPUuid.Service.ConfigDB))
+            url = base.resolve("/configdb/").toString();
+        else if (service.equals(FPUuid.Service.Directory))
+            url = getDirectoryURL().toString();
+
+        var rv = new JSONArray();
+        if (url != null)
+            rv.put(new JSONObject().put("url", url));
+        send(ex, 200, rv);
+    }
+
+    private void auth (HttpExchange ex, String path)
+        throws IOException
+    {
+        if (!path.equals("authz/acl")) {
+            send(ex, 404, null);
+            return;
+        }
+
+        String principal = null;
+        var query = ex.getRequestURI().getQuery();
+        for (var param : query == null ? new String[0] : query.split("&")) {
+            if (param.startsWith("principal="))
+                principal = URLDecoder.decode(param.substring(10),
+                    StandardCharsets.UTF_8);
+        }
+        send(ex, 200, principal == null ? new JSONArray()
+            : acls.getOrDefault(principal, new JSONArray()));
+    }
+
+    private void configdb (HttpExchange ex, String path)
+        throws IOException
+    {
+        /* v1/app/APP/object/OBJ */
+        var parts = path.split("/");
+        if (parts.length != 5 || !parts[1].equals("app")
+                || !parts[3].equals("object"))
+        {
+            send(ex, 404, null);
+            return;
+        }
+
+        var value = configs.get(parts[2] + "/" + parts[4]);
+        if (value == null) {
+            send(ex, 404, null);
+            return;
+        }
+
+        var body = value.toString();
+        var etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+        ex.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+            send(ex, 304, null);
+            return;
+        }
+        send(ex, 200, value);
+    }
+
+    private static void send (HttpExchange ex, int code, Object json)
+        throws IOException
+    {
+        if (json == null) {
+            /* The JDK server drops the connection after a 304 without
+             * saying so; say so, or the client will reuse it. */
+            if (code == 304)
+                ex.getResponseHeaders().set("Connection", "close");
+            ex.sendResponseHeaders(code, -1);
+            return;
+        }
+        var bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(code, bytes.length);
+        ex.getResponseBody().write(bytes);
+    }
+}
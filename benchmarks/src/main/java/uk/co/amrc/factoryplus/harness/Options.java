@@ -0,0 +1,66 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * Command-line options.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.harness;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Options given as <code>key=value</code> arguments. */
+public class Options {
+    private final Map<String, String> opts = new HashMap<String, String>();
+
+    public Options (String[] args)
+    {
+        for (var arg : args) {
+            var kv = arg.split("=", 2);
+            if (kv.length != 2)
+                throw new IllegalArgumentException("Bad option: " + arg);
+            opts.put(kv[0], kv[1]);
+        }
+    }
+
+    public boolean has (String key) { return opts.containsKey(key); }
+
+    /** Sets an option unless it was given.
+     *
+     * @return <code>this</code>.
+     */
+    public Options withDefault (String key, Object value)
+    {
+        opts.putIfAbsent(key, value.toString());
+        return this;
+    }
+
+    public String getString (String key, String dflt)
+    {
+        return opts.getOrDefault(key, dflt);
+    }
+
+    public int getInt (String key, int dflt)
+    {
+        return opts.containsKey(key) ? Integer.parseInt(opts.get(key)) : dflt;
+    }
+
+    public double getDouble (String key, double dflt)
+    {
+        return opts.containsKey(key) ? Double.parseDouble(opts.get(key)) : dflt;
+    }
+
+    /** All options with a given prefix.
+     *
+     * @param prefix The prefix, including any separator.
+     * @return The matching options, with the prefix removed.
+     */
+    public Map<String, String> withPrefix (String prefix)
+    {
+        var rv = new HashMap<String, String>();
+        opts.forEach((k, v) -> {
+            if (k.startsWith(prefix))
+                rv.put(k.substring(prefix.length()), v);
+        });
+        return rv;
+    }
+}
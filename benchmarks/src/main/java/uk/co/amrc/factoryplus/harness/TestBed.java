@@ -0,0 +1,181 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * A complete offline Factory+ deployment.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.harness;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.ietf.jgss.GSSContext;
+
+import uk.co.amrc.factoryplus.Attempt;
+import uk.co.amrc.factoryplus.FPServiceClient;
+import uk.co.amrc.factoryplus.Fixtures;
+import uk.co.amrc.factoryplus.gss.FPGssClient;
+import uk.co.amrc.factoryplus.gss.FPGssProvider;
+
+import static uk.co.amrc.factoryplus.harness.EmbeddedKdc.principal;
+
+/** An embedded KDC and mock services, populated with principals.
+ *
+ * Reads these options:
+ * <dl>
+ * <dt>principals</dt><dd>Synthetic principals (2000)</dd>
+ * <dt>grants</dt><dd>ACL entries per principal (5)</dd>
+ * <dt>latency.SVC, jitter.SVC</dt><dd>Injected latency in ms</dd>
+ * <dt>errors.SVC</dt><dd>Fraction of requests to fail</dd>
+ * <dt>token.lifetime</dt><dd>Lifetime of issued tokens in s (3600)</dd>
+ * <dt>conf.KEY</dt><dd>Extra configuration for the service client,
+ * overriding the environment</dd>
+ * </dl>
+ * SVC is one of <code>token</code>, <code>directory</code>,
+ * <code>auth</code> or <code>configdb</code>.
+ */
+public class TestBed {
+    /** The MQTT server principal, unqualified. */
+    public static final String SERVER = "mqtt/localhost";
+
+    private static final String[] SERVICES = { "token", "directory", "auth", "configdb" };
+
+    /** A synthetic client principal. */
+    public class Node {
+        public final String principal;
+        public final char[] password;
+        public final InetAddress address;
+        private FPGssClient client;
+
+        private Node (String principal, char[] password, InetAddress address)
+        {
+            this.principal = principal;
+            this.password = password;
+            this.address = address;
+        }
+
+        /** Creates a GSS context to the MQTT server.
+         *
+         * After the first this only needs the cached service ticket.
+         * @return The unestablished context.
+         */
+        public Attempt<GSSContext> context ()
+        {
+            synchronized (this) {
+                if (client == null)
+                    client = gss.clientWithPassword(principal, password);
+            }
+            return client.createContext(principal(SERVER));
+        }
+
+        /** Creates a fresh AP-REQ for the MQTT server.
+         *
+         * Each CONNECT needs a new one, as the server keeps a replay
+         * cache.
+         * @return The initial GSS token.
+         */
+        public byte[] token ()
+            throws Throwable
+        {
+            return context()
+                .map(ctx -> ctx.initSecContext(new byte[0], 0, 0))
+                .orElseThrow();
+        }
+    }
+
+    private final Options opts;
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    private EmbeddedKdc kdc;
+    private MockServices mock;
+    private FPGssProvider gss;
+    private FPServiceClient fplus;
+
+    public TestBed (Options opts)
+    {
+        this.opts = opts;
+    }
+
+    public TestBed start ()
+        throws Exception
+    {
+        kdc = new EmbeddedKdc().start();
+        var mqttKeytab = kdc.addKeytab("mqtt.keytab", SERVER);
+        var svcKeytab = kdc.addKeytab("sv1mqtt.keytab", "sv1mqtt");
+        /* Hostbased names may be canonicalised. */
+        var host = InetAddress.getByName("localhost").getCanonicalHostName();
+        var httpKeytab = host.equals("localhost")
+            ? kdc.addKeytab("http.keytab", "HTTP/localhost")
+            : kdc.addKeytab("http.keytab", "HTTP/localhost", "HTTP/" + host);
+
+        gss = new FPGssProvider();
+        mock = new MockServices(gss.server("*", httpKeytab))
+            .withTokenLifetime(opts.getInt("token.lifetime", 3600));
+        for (var svc : SERVICES) {
+            mock.fault(svc)
+                .withLatency(opts.getInt("latency." + svc, 0),
+                    opts.getInt("jitter." + svc, 0))
+                .withErrorRate(opts.getDouble("errors." + svc, 0));
+        }
+
+        var data = new Fixtures(1000);
+        data.templates().forEach((uuid, tmpl) ->
+            mock.putConfig(Fixtures.TEMPLATE, uuid, tmpl));
+        data.addresses().forEach((uuid, addr) ->
+            mock.putConfig(Fixtures.ADDRESS, uuid, addr));
+
+        int count = opts.getInt("principals", 2000);
+        int grants = opts.getInt("grants", 5);
+        System.out.printf("Creating %d principals%n", count);
+        for (int i = 0; i < count; i++) {
+            var name = "node" + i;
+            var passwd = "pw-" + i;
+            kdc.addPrincipal(name, passwd);
+            mock.putACL(principal(name), data.acl(grants));
+            nodes.add(new Node(principal(name), passwd.toCharArray(),
+                address(i)));
+        }
+        mock.start();
+
+        var conf = new HashMap<String, String>();
+        conf.put("directory_url", mock.getDirectoryURL().toString());
+        conf.put("mqtt_url", "mqtt://localhost/");
+        conf.put("server_keytab", mqttKeytab);
+        conf.put("server_principal", principal(SERVER));
+        conf.put("client_principal", principal("sv1mqtt"));
+        conf.put("client_keytab", svcKeytab);
+        conf.putAll(opts.withPrefix("conf."));
+        fplus = new FPServiceClient(conf);
+
+        return this;
+    }
+
+    public void stop ()
+        throws Exception
+    {
+        mock.stop();
+        kdc.stop();
+    }
+
+    /* A distinct address for each node, for the rate limiter. */
+    private static InetAddress address (int i)
+        throws UnknownHostException
+    {
+        return InetAddress.getByAddress(new byte[] {
+            10, (byte)(i >> 16), (byte)(i >> 8), (byte)i });
+    }
+
+    public List<Node> nodes () { return Collections.unmodifiableList(nodes); }
+    public MockServices services () { return mock; }
+
+    /** A service client for the mock services.
+     *
+     * This authenticates to the services as <code>sv1mqtt</code>, and
+     * accepts CONNECTs for {@link #SERVER}.
+     * @return The service client.
+     */
+    public FPServiceClient serviceClient () { return fplus; }
+}
@@ -0,0 +1,84 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * ACL lookup and assembly.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.co.amrc.factoryplus.Fixtures;
+import uk.co.amrc.factoryplus.StubServiceClient;
+
+/** Fetching a principal's ACL, against stubbed services.
+ *
+ * <code>cached</code> is the CONNECT path for a principal we have seen
+ * recently. <code>resolve</code> bypasses the ACL cache, and measures
+ * assembling an ACL from the Auth and ConfigDB responses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AclBenchmark {
+    private static final int PRINCIPALS = 1000;
+
+    /* Entries in each principal's ACL. */
+    @Param({ "5", "50" })
+    public int grants;
+
+    private ScheduledExecutorService executor;
+    private FPKrbAuthProvider provider;
+    private String[] principals;
+
+    @Setup
+    public void setup ()
+    {
+        var data = new Fixtures(1000);
+        var fplus = new StubServiceClient(Map.of(
+                "acl_cache_size", Integer.toString(PRINCIPALS * 2)))
+            .withFixtures(data);
+
+        principals = new String[PRINCIPALS];
+        for (int i = 0; i < PRINCIPALS; i++) {
+            principals[i] = "node" + i + "@REALM.EXAMPLE";
+            fplus.putACL(principals[i], data.acl(grants));
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor();
+        provider = new FPKrbAuthProvider(fplus, executor);
+        for (var p : principals)
+            provider.getACLforPrincipal(p).blockingGet();
+    }
+
+    @TearDown
+    public void tearDown ()
+    {
+        executor.shutdownNow();
+    }
+
+    private String principal ()
+    {
+        return principals[ThreadLocalRandom.current().nextInt(PRINCIPALS)];
+    }
+
+    @Benchmark
+    public MqttAcl cached ()
+    {
+        return provider.getACLforPrincipal(principal()).blockingGet();
+    }
+
+    @Benchmark
+    public MqttAcl resolve ()
+    {
+        return provider.refreshACL(principal()).blockingGet();
+    }
+}
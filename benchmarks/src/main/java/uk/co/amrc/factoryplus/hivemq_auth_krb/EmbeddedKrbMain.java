@@ -0,0 +1,32 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * Extension entry point for an embedded broker.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import com.hivemq.extension.sdk.api.services.Services;
+
+import uk.co.amrc.factoryplus.FPServiceClient;
+
+/** The extension, using a given service client.
+ *
+ * The real extension configures itself from the environment. This
+ * lets a harness point it at mock services instead.
+ */
+public class EmbeddedKrbMain extends FPKrbMain {
+    private final FPServiceClient fplus;
+
+    public EmbeddedKrbMain (FPServiceClient fplus)
+    {
+        this.fplus = fplus;
+    }
+
+    @Override
+    FPKrbAuthProvider createProvider ()
+    {
+        fplus.setMetricRegistry(Services.metricRegistry());
+        return new FPKrbAuthProvider(fplus,
+            Services.extensionExecutorService());
+    }
+}
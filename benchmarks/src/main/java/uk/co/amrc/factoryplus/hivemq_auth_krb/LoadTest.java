@@ -0,0 +1,198 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * CONNECT load driver.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import uk.co.amrc.factoryplus.harness.Options;
+import uk.co.amrc.factoryplus.harness.TestBed;
+
+/** Drives CONNECTs through the authenticator at load.
+ *
+ * Everything runs in this process: an embedded KDC, mock Factory+
+ * services and the real FPKrbAuthProvider. Synthetic principals
+ * connect with real GSSAPI tokens or real passwords, from a number of
+ * concurrent workers. Latency is measured from when a CONNECT is
+ * delivered (or, with a target rate, from when it was due) to when the
+ * authenticator finishes with it.
+ *
+ * Options are given as <code>key=value</code> arguments. As well as
+ * those read by {@link TestBed}:
+ * <dl>
+ * <dt>concurrency</dt><dd>Concurrent CONNECTs in flight (64)</dd>
+ * <dt>rate</dt><dd>Target CONNECT/s, or 0 to run flat out (0)</dd>
+ * <dt>warmup, duration</dt><dd>Seconds to warm up and measure, in
+ * steps of 5 (10, 30)</dd>
+ * <dt>gssapi</dt><dd>Fraction of CONNECTs using GSSAPI (0.8)</dd>
+ * </dl>
+ */
+public class LoadTest {
+    private final Options opts;
+    private final Recorder recorder = new Recorder(3);
+    private final Map<SimulatedConnect.Outcome, LongAdder> outcomes =
+        new EnumMap<SimulatedConnect.Outcome, LongAdder>(SimulatedConnect.Outcome.class);
+
+    private List<TestBed.Node> nodes;
+    private FPKrbAuthProvider provider;
+    private ScheduledExecutorService executor;
+    private volatile boolean measuring = false;
+    private volatile boolean running = true;
+
+    private LoadTest (Options opts)
+    {
+        this.opts = opts;
+        for (var o : SimulatedConnect.Outcome.values())
+            outcomes.put(o, new LongAdder());
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        new LoadTest(new Options(args)).run();
+        System.exit(0);
+    }
+
+    private void run ()
+        throws Exception
+    {
+        var bed = new TestBed(opts).start();
+        nodes = bed.nodes();
+
+        executor = Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        provider = new FPKrbAuthProvider(bed.serviceClient(), executor).start();
+
+        drive();
+
+        System.out.println("Service requests: " + bed.services().requestCounts());
+        System.out.println("ACL cache: " + provider.aclCacheStats());
+        bed.stop();
+        executor.shutdownNow();
+    }
+
+    private void drive ()
+        throws Exception
+    {
+        int concurrency = opts.getInt("concurrency", 64);
+        int rate = opts.getInt("rate", 0);
+        int warmup = opts.getInt("warmup", 10);
+        int duration = opts.getInt("duration", 30);
+        double gssapi = opts.getDouble("gssapi", 0.8);
+
+        System.out.printf("Running %d workers%s, %ds warmup, %ds measured%n",
+            concurrency, rate > 0 ? " at " + rate + "/s" : "",
+            warmup, duration);
+
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        var next = new AtomicLong(System.nanoTime());
+        var workers = new ArrayList<Thread>();
+        for (int i = 0; i < concurrency; i++) {
+            var t = new Thread(() -> work(gssapi, interval, next), "load-" + i);
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+
+        var total = new Histogram(3);
+        long start = 0;
+        for (int s = 5; s <= warmup + duration; s += 5) {
+            Thread.sleep(5000);
+            if (!measuring && s >= warmup) {
+                /* Drop the warmup. */
+                recorder.getIntervalHistogram();
+                outcomes.values().forEach(LongAdder::reset);
+                measuring = true;
+                start = System.nanoTime();
+                continue;
+            }
+            var h = recorder.getIntervalHistogram();
+            System.out.printf("%s%4ds: %7.0f CONNECT/s, p50 %6.1fms, p99 %6.1fms%n",
+                measuring ? "" : "(warmup) ", s, h.getTotalCount() / 5.0,
+                h.getValueAtPercentile(50) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0);
+            if (measuring)
+                total.add(h);
+        }
+        running = false;
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.println();
+        System.out.printf("Sustained: %.0f CONNECT/s (%.0f successful/s)%n",
+            total.getTotalCount() / secs,
+            outcomes.get(SimulatedConnect.Outcome.SUCCESS).sum() / secs);
+        System.out.printf("Latency: p50 %.1fms, p99 %.1fms, p99.9 %.1fms, max %.1fms%n",
+            total.getValueAtPercentile(50) / 1000.0,
+            total.getValueAtPercentile(99) / 1000.0,
+            total.getValueAtPercentile(99.9) / 1000.0,
+            total.getMaxValue() / 1000.0);
+        System.out.println("Outcomes: " + outcomes);
+
+        for (var t : workers)
+            t.join(15000);
+    }
+
+    private void work (double gssapi, long interval, AtomicLong next)
+    {
+        var rnd = ThreadLocalRandom.current();
+        while (running) {
+            var node = nodes.get(rnd.nextInt(nodes.size()));
+            SimulatedConnect conn;
+            try {
+                conn = rnd.nextDouble() < gssapi
+                    ? SimulatedConnect.gssapi(clientId(node), node.address,
+                        node.token())
+                    : SimulatedConnect.password(clientId(node),
+                        node.address, node.principal, node.password);
+            }
+            catch (Throwable e) {
+                System.err.println("Can't create credentials: " + e);
+                continue;
+            }
+
+            long begin = System.nanoTime();
+            if (interval > 0) {
+                long due = next.getAndAdd(interval);
+                long wait = due - begin;
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+                /* Measure from when we should have started, so a
+                 * stalled server isn't hidden by a stalled driver. */
+                begin = due;
+            }
+
+            SimulatedConnect.Outcome rv;
+            try {
+                rv = conn.run(new FPKrbAuth(provider), executor).get();
+            }
+            catch (Exception e) {
+                rv = SimulatedConnect.Outcome.FAILURE;
+            }
+            long took = System.nanoTime() - begin;
+
+            recorder.recordValue(Math.max(took / 1000, 1));
+            if (measuring)
+                outcomes.get(rv).increment();
+        }
+    }
+
+    private static String clientId (TestBed.Node node)
+    {
+        return node.principal + "-" + ThreadLocalRandom.current().nextInt(1000);
+    }
+}
@@ -0,0 +1,347 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * End-to-end MQTT CONNECT benchmark.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ietf.jgss.GSSContext;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.hivemq.client.mqtt.MqttClient;
+import com.hivemq.client.mqtt.datatypes.MqttUtf8String;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5ClientConfig;
+import com.hivemq.client.mqtt.mqtt5.auth.Mqtt5EnhancedAuthMechanism;
+import com.hivemq.client.mqtt.mqtt5.exceptions.Mqtt5ConnAckException;
+import com.hivemq.client.mqtt.mqtt5.message.auth.*;
+import com.hivemq.client.mqtt.mqtt5.message.connect.Mqtt5Connect;
+import com.hivemq.client.mqtt.mqtt5.message.connect.connack.Mqtt5ConnAck;
+import com.hivemq.client.mqtt.mqtt5.message.disconnect.Mqtt5Disconnect;
+
+import uk.co.amrc.factoryplus.harness.EmbeddedBroker;
+import uk.co.amrc.factoryplus.harness.Options;
+import uk.co.amrc.factoryplus.harness.TestBed;
+
+/** Opens MQTT connections to an embedded broker running the extension.
+ *
+ * Unlike {@link LoadTest} this goes through the whole broker: the MQTT
+ * codec, HiveMQ's enhanced-auth plumbing and its async output, and the
+ * client's side of the GSSAPI exchange, including checking the
+ * server's mutual-auth token in the CONNACK. Everything runs offline
+ * in this process.
+ *
+ * For each concurrency level in turn, the benchmark opens
+ * <code>connections</code> MQTT 5 connections with at most that many
+ * CONNECTs outstanding, and keeps them open. It reports the CONNECT
+ * rate reached, latency percentiles by mechanism, and the growth in
+ * live heap divided by the number of clients connected. Then it
+ * disconnects them all before the next level. The first level runs
+ * against a cold ACL cache, later levels mostly hit it.
+ *
+ * The heap figure includes the client side of each connection, as the
+ * clients share this JVM; it is useful for comparing runs, not as an
+ * absolute broker cost.
+ *
+ * Options are given as <code>key=value</code> arguments. As well as
+ * those read by {@link TestBed}:
+ * <dl>
+ * <dt>connections</dt><dd>Connections to open at each level (5000)</dd>
+ * <dt>concurrency</dt><dd>Comma-separated CONNECTs in flight (50,200,1000)</dd>
+ * <dt>warmup</dt><dd>Connections opened and closed first (500)</dd>
+ * <dt>gssapi</dt><dd>Fraction of connections using GSSAPI (0.8)</dd>
+ * </dl>
+ */
+public class MqttConnectBenchmark {
+    private static final MqttUtf8String GSSAPI = MqttUtf8String.of("GSSAPI");
+
+    private final Options opts;
+    private final AtomicInteger serial = new AtomicInteger();
+    /* Creating a GSS context may need to talk to the KDC. */
+    private final ExecutorService gssExecutor = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors());
+
+    private TestBed bed;
+    private EmbeddedBroker broker;
+
+    /* The results of one concurrency level. */
+    private static class Level {
+        final Queue<Mqtt5AsyncClient> connected = new ConcurrentLinkedQueue<Mqtt5AsyncClient>();
+        final Recorder gssapi = new Recorder(3);
+        final Recorder password = new Recorder(3);
+        final Map<String, LongAdder> outcomes = new ConcurrentHashMap<String, LongAdder>();
+        double seconds;
+        long heap;
+
+        void outcome (String name)
+        {
+            outcomes.computeIfAbsent(name, k -> new LongAdder()).increment();
+        }
+    }
+
+    private MqttConnectBenchmark (Options opts)
+    {
+        this.opts = opts;
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        new MqttConnectBenchmark(new Options(args)).run();
+        System.exit(0);
+    }
+
+    private void run ()
+        throws Exception
+    {
+        int connections = opts.getInt("connections", 5000);
+        int warmup = opts.getInt("warmup", 500);
+        double gssapi = opts.getDouble("gssapi", 0.8);
+
+        bed = new TestBed(opts).start();
+        broker = new EmbeddedBroker()
+            .start(new EmbeddedKrbMain(bed.serviceClient()));
+
+        if (warmup > 0) {
+            System.out.printf("Warming up with %d connections%n", warmup);
+            disconnect(connect(warmup, 50, gssapi));
+        }
+
+        var rates = new ArrayList<String>();
+        for (var c : opts.getString("concurrency", "50,200,1000").split(",")) {
+            int concurrency = Integer.parseInt(c.trim());
+            long before = usedHeap();
+            var level = connect(connections, concurrency, gssapi);
+            level.heap = usedHeap() - before;
+            report(concurrency, level);
+            rates.add(String.format("%d: %.0f/s", concurrency,
+                level.connected.size() / level.seconds));
+            disconnect(level);
+        }
+
+        System.out.println();
+        System.out.println("Successful CONNECT/s by concurrency: " + rates);
+        System.out.println("Service requests: " + bed.services().requestCounts());
+
+        var metrics = bed.serviceClient().metrics();
+        var prefix = metrics.name("auth") + ".";
+        var counts = new TreeMap<String, Long>();
+        metrics.getRegistry().getCounters((name, m) -> name.startsWith(prefix))
+            .forEach((name, m) -> counts.put(
+                name.substring(prefix.length()), m.getCount()));
+        System.out.println("Extension auth counters: " + counts);
+
+        broker.stop();
+        bed.stop();
+        gssExecutor.shutdownNow();
+    }
+
+    private Level connect (int count, int concurrency, double gssapi)
+        throws InterruptedException
+    {
+        var level = new Level();
+        var slots = new Semaphore(concurrency);
+        var done = new CountDownLatch(count);
+        var nodes = bed.nodes();
+        var rnd = ThreadLocalRandom.current();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            slots.acquire();
+            var node = nodes.get(i % nodes.size());
+            boolean gss = rnd.nextDouble() < gssapi;
+            var client = client(node, gss);
+            var latency = gss ? level.gssapi : level.password;
+
+            long begin = System.nanoTime();
+            client.connect().whenComplete((ack, err) -> {
+                latency.recordValue(Math.max((System.nanoTime() - begin) / 1000, 1));
+                slots.release();
+                if (err == null) {
+                    level.connected.add(client);
+                    level.outcome("success");
+                }
+                else
+                    level.outcome(describe(err));
+                done.countDown();
+            });
+        }
+        done.await();
+        level.seconds = (System.nanoTime() - start) / 1e9;
+
+        return level;
+    }
+
+    private Mqtt5AsyncClient client (TestBed.Node node, boolean gss)
+    {
+        var builder = MqttClient.builder()
+            .useMqttVersion5()
+            .identifier(node.principal + "-" + serial.incrementAndGet())
+            .serverHost("127.0.0.1")
+            .serverPort(broker.getPort());
+
+        if (gss)
+            builder.enhancedAuth(new GssapiMechanism(node));
+        else
+            builder.simpleAuth()
+                .username(node.principal)
+                .password(new String(node.password)
+                    .getBytes(StandardCharsets.UTF_8))
+                .applySimpleAuth();
+
+        return builder.buildAsync();
+    }
+
+    private static String describe (Throwable err)
+    {
+        if (err instanceof CompletionException && err.getCause() != null)
+            err = err.getCause();
+        if (err instanceof Mqtt5ConnAckException)
+            return ((Mqtt5ConnAckException)err).getMqttMessage()
+                .getReasonCode().name().toLowerCase();
+        return err.getClass().getSimpleName();
+    }
+
+    private void disconnect (Level level)
+    {
+        var all = level.connected.stream()
+            .map(c -> c.disconnect().exceptionally(e -> null))
+            .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(all).join();
+    }
+
+    private static long usedHeap ()
+        throws InterruptedException
+    {
+        var mem = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return mem.getHeapMemoryUsage().getUsed();
+    }
+
+    private static void report (int concurrency, Level level)
+    {
+        int n = level.connected.size();
+        System.out.printf("%nConcurrency %d: %d connected in %.1fs, %.0f CONNECT/s%n",
+            concurrency, n, level.seconds, n / level.seconds);
+        System.out.println("  Outcomes: " + new TreeMap<String, LongAdder>(level.outcomes));
+        latency("GSSAPI", level.gssapi.getIntervalHistogram());
+        latency("Password", level.password.getIntervalHistogram());
+        if (n > 0)
+            System.out.printf("  Heap: %.1f KiB per connected client%n",
+                level.heap / 1024.0 / n);
+    }
+
+    private static void latency (String mech, Histogram h)
+    {
+        if (h.getTotalCount() == 0)
+            return;
+        System.out.printf("  %s: p50 %.1fms, p99 %.1fms, p99.9 %.1fms, max %.1fms%n",
+            mech,
+            h.getValueAtPercentile(50) / 1000.0,
+            h.getValueAtPercentile(99) / 1000.0,
+            h.getValueAtPercentile(99.9) / 1000.0,
+            h.getMaxValue() / 1000.0);
+    }
+
+    /* The client side of a one-step GSSAPI exchange. */
+    private class GssapiMechanism implements Mqtt5EnhancedAuthMechanism {
+        private final TestBed.Node node;
+        private GSSContext context;
+
+        GssapiMechanism (TestBed.Node node)
+        {
+            this.node = node;
+        }
+
+        @Override public MqttUtf8String getMethod () { return GSSAPI; }
+        @Override public int getTimeout () { return 30; }
+
+        @Override
+        public CompletableFuture<Void> onAuth (Mqtt5ClientConfig config,
+            Mqtt5Connect connect, Mqtt5EnhancedAuthBuilder auth)
+        {
+            return CompletableFuture.runAsync(() -> {
+                auth.data(node.context()
+                    .map(ctx -> {
+                        context = ctx;
+                        return ctx.initSecContext(new byte[0], 0, 0);
+                    })
+                    .get());
+            }, gssExecutor);
+        }
+
+        /* Check the server's token, as a real client would. */
+        @Override
+        public CompletableFuture<Boolean> onAuthSuccess (
+            Mqtt5ClientConfig config, Mqtt5ConnAck connAck)
+        {
+            var data = connAck.getEnhancedAuth()
+                .flatMap(Mqtt5EnhancedAuth::getData);
+            if (data.isEmpty())
+                return CompletableFuture.completedFuture(false);
+
+            var buf = new byte[data.get().remaining()];
+            data.get().duplicate().get(buf);
+            try {
+                context.initSecContext(buf, 0, buf.length);
+                return CompletableFuture.completedFuture(context.isEstablished());
+            }
+            catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            finally {
+                try { context.dispose(); } catch (Exception e) { }
+            }
+        }
+
+        @Override
+        public CompletableFuture<Boolean> onContinue (Mqtt5ClientConfig config,
+            Mqtt5Auth auth, Mqtt5AuthBuilder authBuilder)
+        {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        @Override
+        public CompletableFuture<Void> onReAuth (Mqtt5ClientConfig config,
+            Mqtt5AuthBuilder auth)
+        {
+            return CompletableFuture.failedFuture(
+                new UnsupportedOperationException("No re-auth"));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> onReAuthSuccess (
+            Mqtt5ClientConfig config, Mqtt5Auth auth)
+        {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        @Override public void onAuthRejected (Mqtt5ClientConfig config, Mqtt5ConnAck connAck) { }
+        @Override public void onReAuthRejected (Mqtt5ClientConfig config, Mqtt5Disconnect disconnect) { }
+        @Override public void onAuthError (Mqtt5ClientConfig config, Throwable cause) { }
+        @Override public void onReAuthError (Mqtt5ClientConfig config, Throwable cause) { }
+    }
+}
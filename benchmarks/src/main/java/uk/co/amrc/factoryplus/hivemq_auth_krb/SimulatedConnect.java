@@ -0,0 +1,246 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * A CONNECT as the broker presents it.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.hivemq.extension.sdk.api.async.Async;
+import com.hivemq.extension.sdk.api.auth.parameter.*;
+import com.hivemq.extension.sdk.api.packets.auth.ModifiableDefaultPermissions;
+import com.hivemq.extension.sdk.api.client.parameter.*;
+import com.hivemq.extension.sdk.api.packets.connect.ConnectPacket;
+
+/** One CONNECT, delivered to the authenticator.
+ *
+ * The broker's input and output objects are built as dynamic proxies,
+ * answering only the methods the authenticator uses; anything else
+ * returns an empty value. This keeps the harness independent of the
+ * exact SDK interfaces. Async output behaves as the broker's does: if
+ * it is not resumed within the timeout, the status becomes CANCELED
+ * and the attempt fails.
+ */
+class SimulatedConnect {
+    enum Outcome { SUCCESS, FAILURE, BUSY, RATE_LIMITED, TIMEOUT }
+
+    private final String clientId;
+    private final InetAddress address;
+    private final String method;
+    private final byte[] authData;
+    private final String user;
+    private final char[] password;
+
+    private final CompletableFuture<Outcome> result = new CompletableFuture<Outcome>();
+    private volatile Outcome outcome;
+    private volatile Async.Status status;
+
+    private SimulatedConnect (String clientId, InetAddress address,
+        String method, byte[] authData, String user, char[] password)
+    {
+        this.clientId = clientId;
+        this.address = address;
+        this.method = method;
+        this.authData = authData;
+        this.user = user;
+        this.password = password;
+    }
+
+    public static SimulatedConnect gssapi (String clientId,
+        InetAddress address, byte[] token)
+    {
+        return new SimulatedConnect(clientId, address, "GSSAPI", token,
+            null, null);
+    }
+
+    public static SimulatedConnect password (String clientId,
+        InetAddress address, String user, char[] password)
+    {
+        return new SimulatedConnect(clientId, address, null, null,
+            user, password);
+    }
+
+    /** Delivers the CONNECT.
+     *
+     * @param auth The authenticator.
+     * @param timer Used to time out async output.
+     * @return The outcome, once the authenticator has finished.
+     */
+    public CompletableFuture<Outcome> run (FPKrbAuth auth,
+        ScheduledExecutorService timer)
+    {
+        var output = proxy(EnhancedAuthOutput.class, (m, args) -> {
+            switch (m.getName()) {
+                case "authenticateSuccessfully":
+                    finish(Outcome.SUCCESS);
+                    return null;
+                case "failAuthentication":
+                    finish(failure(args));
+                    return null;
+                case "getDefaultPermissions":
+                    return proxy(ModifiableDefaultPermissions.class,
+                        (pm, pargs) -> {
+                            /* Don't iterate the permissions: building
+                             * them needs the broker. */
+                            return null;
+                        });
+                case "async":
+                    return async(timer, (Duration)args[0]);
+            }
+            return null;
+        });
+
+        auth.onConnect(input(), output);
+        if (status == null && outcome != null)
+            result.complete(outcome);
+        return result;
+    }
+
+    private EnhancedAuthConnectInput input ()
+    {
+        var packet = proxy(ConnectPacket.class, (m, args) -> {
+            switch (m.getName()) {
+                case "getClientId":
+                    return clientId;
+                case "getAuthenticationMethod":
+                    return Optional.ofNullable(method);
+                case "getAuthenticationData":
+                    return Optional.ofNullable(authData)
+                        .map(ByteBuffer::wrap)
+                        .map(ByteBuffer::asReadOnlyBuffer);
+                case "getUserName":
+                    return Optional.ofNullable(user);
+                case "getPassword":
+                    return Optional.ofNullable(password)
+                        .map(p -> StandardCharsets.UTF_8.encode(
+                            CharBuffer.wrap(p)));
+            }
+            return null;
+        });
+        var client = proxy(ClientInformation.class, (m, args) ->
+            m.getName().equals("getClientId") ? clientId : null);
+        var attrs = new ConcurrentHashMap<String, ByteBuffer>();
+        var store = proxy(ConnectionAttributeStore.class, (m, args) -> {
+            switch (m.getName()) {
+                case "put":
+                    attrs.put((String)args[0], (ByteBuffer)args[1]);
+                    return null;
+                case "get":
+                    return Optional.ofNullable(attrs.get(args[0]));
+            }
+            return null;
+        });
+        var conn = proxy(ConnectionInformation.class, (m, args) -> {
+            switch (m.getName()) {
+                case "getInetAddress": return Optional.of(address);
+                case "getConnectionAttributeStore": return store;
+            }
+            return null;
+        });
+
+        return proxy(EnhancedAuthConnectInput.class, (m, args) -> {
+            switch (m.getName()) {
+                case "getConnectPacket": return packet;
+                case "getClientInformation": return client;
+                case "getConnectionInformation": return conn;
+            }
+            return null;
+        });
+    }
+
+    private Object async (ScheduledExecutorService timer, Duration timeout)
+    {
+        status = Async.Status.RUNNING;
+        timer.schedule(() -> {
+            synchronized (this) {
+                if (status != Async.Status.RUNNING)
+                    return;
+                status = Async.Status.CANCELED;
+            }
+            result.complete(Outcome.TIMEOUT);
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+        return proxy(Async.class, (m, args) -> {
+            switch (m.getName()) {
+                case "getStatus":
+                    return status;
+                case "resume":
+                    synchronized (this) {
+                        if (status != Async.Status.RUNNING)
+                            return null;
+                        status = Async.Status.DONE;
+                    }
+                    result.complete(outcome == null ? Outcome.FAILURE : outcome);
+                    return null;
+            }
+            return null;
+        });
+    }
+
+    private void finish (Outcome rv)
+    {
+        if (status == Async.Status.CANCELED)
+            return;
+        outcome = rv;
+    }
+
+    private static Outcome failure (Object[] args)
+    {
+        if (args != null && args.length > 0 && args[0] instanceof Enum) {
+            switch (((Enum<?>)args[0]).name()) {
+                case "SERVER_BUSY": return Outcome.BUSY;
+                case "CONNECTION_RATE_EXCEEDED": return Outcome.RATE_LIMITED;
+            }
+        }
+        return Outcome.FAILURE;
+    }
+
+    private interface Answer {
+        Object apply (Method m, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy (Class<T> iface, Answer answer)
+    {
+        InvocationHandler handler = (self, m, args) -> {
+            if (m.getDeclaringClass() == Object.class) {
+                switch (m.getName()) {
+                    case "equals": return self == args[0];
+                    case "hashCode": return System.identityHashCode(self);
+                    default: return iface.getSimpleName();
+                }
+            }
+            var rv = answer.apply(m, args);
+            return rv != null ? rv : empty(m.getReturnType());
+        };
+        return (T)Proxy.newProxyInstance(iface.getClassLoader(),
+            new Class<?>[] { iface }, handler);
+    }
+
+    private static Object empty (Class<?> type)
+    {
+        if (type == Optional.class) return Optional.empty();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == short.class) return (short)0;
+        if (type == byte.class) return (byte)0;
+        if (type == char.class) return '\0';
+        if (type == float.class) return 0.0f;
+        if (type == double.class) return 0.0;
+        return null;
+    }
+}
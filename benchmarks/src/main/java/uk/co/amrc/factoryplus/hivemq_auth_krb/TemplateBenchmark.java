@@ -0,0 +1,72 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * Permission template expansion.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.json.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.co.amrc.factoryplus.Fixtures;
+import uk.co.amrc.factoryplus.SparkplugAddress;
+
+/** Compiling and expanding permission templates.
+ *
+ * Building HiveMQ TopicPermissions needs the broker's builder
+ * registry, so that step is not covered here. Each interned MqttAce
+ * builds its permission only once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TemplateBenchmark {
+    private JSONObject source;
+    private MqttTemplate template;
+    private SparkplugAddress address;
+    private List<MqttAce> aces;
+
+    @Setup
+    public void setup ()
+    {
+        var data = new Fixtures(100);
+        /* The first template is the largest. */
+        source = data.templates().values().iterator().next();
+        template = MqttTemplate.compile(source, Optional.empty());
+        address = SparkplugAddress.fromJSON(
+            data.addresses().values().iterator().next());
+
+        aces = new ArrayList<MqttAce>();
+        for (var addr : data.addresses().values())
+            aces.addAll(template.expand(SparkplugAddress.fromJSON(addr)));
+    }
+
+    @Benchmark
+    public MqttTemplate compile ()
+    {
+        return MqttTemplate.compile(source, Optional.empty());
+    }
+
+    @Benchmark
+    public List<MqttAce> expand ()
+    {
+        return template.expand(address);
+    }
+
+    /* Interning an ACL which already exists, as happens for every
+     * principal after the first with the same permissions. */
+    @Benchmark
+    public MqttAcl intern ()
+    {
+        return MqttAcl.of(aces);
+    }
+}
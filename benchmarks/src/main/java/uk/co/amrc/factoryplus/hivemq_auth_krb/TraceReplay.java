@@ -0,0 +1,243 @@
+/* Factory+ HiveMQ auth plugin load harness.
+ * Replay of recorded auth traces.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import uk.co.amrc.factoryplus.harness.Options;
+import uk.co.amrc.factoryplus.harness.TestBed;
+
+import uk.co.amrc.factoryplus.hivemq_auth_krb.AuthTracer.Stage;
+
+/** Re-drives a recorded auth trace against the extension.
+ *
+ * The trace is one written with AUTH_TRACE_FILE set. Each recorded
+ * CONNECT is replayed at the same offset from the start (divided by
+ * <code>speed</code>), with the same mechanism, from a synthetic
+ * principal standing in for the recorded principal hash. CONNECTs
+ * which failed in the KDC or in GSSAPI are replayed with a bad
+ * password or token. The mock Auth service and ConfigDB delay their
+ * responses by latencies drawn from the recorded ACL loads, and fail
+ * at the recorded rate. The ConfigDB samples are the mean request of
+ * each load, so individual requests vary less than they did.
+ *
+ * Options are given as <code>key=value</code> arguments. As well as
+ * those read by {@link TestBed}, which override the recorded
+ * behaviour:
+ * <dl>
+ * <dt>trace</dt><dd>The trace file (required)</dd>
+ * <dt>speed</dt><dd>Replay speed relative to the recording (1.0)</dd>
+ * </dl>
+ */
+public class TraceReplay {
+    private final Options opts;
+    private final Recorder recorder = new Recorder(3);
+    private final Map<SimulatedConnect.Outcome, LongAdder> outcomes =
+        new EnumMap<SimulatedConnect.Outcome, LongAdder>(SimulatedConnect.Outcome.class);
+
+    private List<AuthTracer.Record> connects;
+    private List<AuthTracer.Record> loads;
+    private TestBed bed;
+    private FPKrbAuthProvider provider;
+    private ScheduledExecutorService executor;
+
+    private TraceReplay (Options opts)
+    {
+        this.opts = opts;
+        for (var o : SimulatedConnect.Outcome.values())
+            outcomes.put(o, new LongAdder());
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        new TraceReplay(new Options(args)).run();
+        System.exit(0);
+    }
+
+    private void run ()
+        throws Exception
+    {
+        var file = opts.getString("trace", null);
+        if (file == null)
+            throw new IllegalArgumentException("No trace given");
+
+        var records = AuthTracer.read(Path.of(file));
+        connects = records.stream()
+            .filter(AuthTracer.Record::isConnect)
+            /* We can't replay unknown mechanisms. */
+            .filter(r -> !r.getMech().equals("other"))
+            .sorted(Comparator.comparingLong(AuthTracer.Record::getTime))
+            .collect(Collectors.toList());
+        loads = records.stream()
+            .filter(r -> !r.isConnect())
+            .collect(Collectors.toList());
+        if (connects.isEmpty())
+            throw new IllegalArgumentException("No CONNECTs in " + file);
+
+        /* One synthetic principal per recorded one. */
+        var principals = new HashMap<Long, Integer>();
+        for (var rec : connects)
+            if (rec.getPrincipal() != 0)
+                principals.putIfAbsent(rec.getPrincipal(), principals.size());
+        opts.withDefault("principals", Math.max(principals.size(), 1));
+
+        bed = new TestBed(opts).start();
+        applyBackends();
+
+        executor = Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        provider = new FPKrbAuthProvider(bed.serviceClient(), executor).start();
+
+        replay(principals);
+
+        report();
+        bed.stop();
+        executor.shutdownNow();
+    }
+
+    /* Give the mock services the recorded latencies and error rates,
+     * unless options override them. */
+    private void applyBackends ()
+    {
+        backend("auth", Stage.AUTH);
+        backend("configdb", Stage.CONFIGDB);
+    }
+
+    private void backend (String svc, Stage stage)
+    {
+        var ran = loads.stream()
+            .filter(r -> r.getStage(stage) >= 0)
+            .collect(Collectors.toList());
+        if (ran.isEmpty())
+            return;
+
+        var fault = bed.services().fault(svc);
+        if (!opts.has("latency." + svc)) {
+            var samples = ran.stream()
+                .mapToLong(r -> r.getStage(stage))
+                .toArray();
+            fault.withLatencySamples(samples);
+        }
+        if (!opts.has("errors." + svc)) {
+            double errors = ran.stream()
+                .filter(r -> r.getOutcome(stage) == AuthTracer.ERROR)
+                .count();
+            fault.withErrorRate(errors / ran.size());
+        }
+    }
+
+    private void replay (Map<Long, Integer> principals)
+        throws InterruptedException
+    {
+        double speed = opts.getDouble("speed", 1.0);
+        var nodes = bed.nodes();
+        /* Creating credentials can block on the KDC. */
+        ExecutorService workers = Executors.newCachedThreadPool();
+        var done = new CountDownLatch(connects.size());
+
+        long t0 = connects.get(0).getTime();
+        long span = connects.get(connects.size() - 1).getTime() - t0;
+        System.out.printf("Replaying %d CONNECTs over %.1fs at %.1fx%n",
+            connects.size(), span / 1e6, speed);
+
+        long start = System.nanoTime();
+        for (var rec : connects) {
+            long due = start + (long)((rec.getTime() - t0) * 1000 / speed);
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+
+            var idx = principals.get(rec.getPrincipal());
+            var node = nodes.get((idx == null
+                ? ThreadLocalRandom.current().nextInt(nodes.size())
+                : idx) % nodes.size());
+
+            workers.execute(() -> {
+                SimulatedConnect.Outcome rv;
+                try {
+                    rv = connect(rec, node).run(new FPKrbAuth(provider), executor)
+                        .get();
+                }
+                catch (Throwable e) {
+                    rv = SimulatedConnect.Outcome.FAILURE;
+                }
+                /* Measure from when the CONNECT was due. */
+                recorder.recordValue(Math.max((System.nanoTime() - due) / 1000, 1));
+                outcomes.get(rv).increment();
+                done.countDown();
+            });
+        }
+        done.await();
+        workers.shutdown();
+    }
+
+    private static SimulatedConnect connect (AuthTracer.Record rec,
+        TestBed.Node node)
+        throws Throwable
+    {
+        var id = node.principal + "-" + ThreadLocalRandom.current().nextInt(1000);
+
+        if (rec.getMech().equals("gssapi")) {
+            var token = rec.getOutcome(Stage.GSS) == AuthTracer.ERROR
+                ? new byte[] { 0x60, 0x00 }
+                : node.token();
+            return SimulatedConnect.gssapi(id, node.address, token);
+        }
+
+        var password = rec.getOutcome(Stage.KDC) == AuthTracer.ERROR
+            ? "not-the-password".toCharArray()
+            : node.password;
+        return SimulatedConnect.password(id, node.address, node.principal,
+            password);
+    }
+
+    private void report ()
+    {
+        var recorded = new Histogram(3);
+        var results = new TreeMap<String, Long>();
+        for (var rec : connects) {
+            recorded.recordValue(Math.max(rec.getDuration(), 1));
+            results.merge(rec.getResult(), 1L, Long::sum);
+        }
+        var replayed = recorder.getIntervalHistogram();
+
+        System.out.println();
+        System.out.println("Recorded outcomes: " + results);
+        System.out.println("Replayed outcomes: " + outcomes);
+        latency("Recorded", recorded);
+        latency("Replayed", replayed);
+        System.out.println("Service requests: " + bed.services().requestCounts());
+        System.out.println("ACL cache: " + provider.aclCacheStats());
+    }
+
+    private static void latency (String which, Histogram h)
+    {
+        System.out.printf("%s latency: p50 %.1fms, p99 %.1fms, p99.9 %.1fms, max %.1fms%n",
+            which,
+            h.getValueAtPercentile(50) / 1000.0,
+            h.getValueAtPercentile(99) / 1000.0,
+            h.getValueAtPercentile(99.9) / 1000.0,
+            h.getMaxValue() / 1000.0);
+    }
+}
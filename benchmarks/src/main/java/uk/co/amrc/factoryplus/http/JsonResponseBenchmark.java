@@ -0,0 +1,89 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * JSON response parsing.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.json.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.co.amrc.factoryplus.AclEntry;
+import uk.co.amrc.factoryplus.Fixtures;
+
+/** Parsing of Auth service ACL responses and ConfigDB entries. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonResponseBenchmark {
+    /* Entries in the ACL response. */
+    @Param({ "10", "100", "1000" })
+    public int grants;
+
+    private byte[] acl;
+    private byte[] template;
+
+    @Setup
+    public void setup ()
+    {
+        var data = new Fixtures(1000);
+        acl = data.acl(grants).toString().getBytes(StandardCharsets.UTF_8);
+        template = data.templates().values().iterator().next().toString()
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* Responses from the async client carry the body as bytes. */
+    private static SimpleHttpResponse response (byte[] body)
+    {
+        return SimpleHttpResponse.create(200, body,
+            ContentType.APPLICATION_JSON);
+    }
+
+    @Benchmark
+    public JSONArray parseACL ()
+    {
+        return new JsonResponse(response(acl))
+            .getBodyArray()
+            .orElseThrow();
+    }
+
+    /* An element at a time, as JSON objects. */
+    @Benchmark
+    public long streamACL ()
+    {
+        return new JsonResponse(response(acl))
+            .getBodyElements()
+            .orElseThrow()
+            .filter(o -> o instanceof JSONObject)
+            .count();
+    }
+
+    /* As the Auth client decodes it, straight into typed entries. */
+    @Benchmark
+    public long decodeACL ()
+    {
+        return new JsonResponse(response(acl))
+            .getBodyElements(AclEntry.decoder())
+            .orElseThrow()
+            .filter(Objects::nonNull)
+            .count();
+    }
+
+    @Benchmark
+    public JSONObject parseTemplate ()
+    {
+        return new JsonResponse(response(template))
+            .getBodyObject()
+            .orElseThrow();
+    }
+}
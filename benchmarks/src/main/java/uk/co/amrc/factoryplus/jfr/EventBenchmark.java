@@ -0,0 +1,51 @@
+/* Factory+ HiveMQ auth plugin benchmarks.
+ * JFR event overhead.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import io.reactivex.rxjava3.core.Single;
+
+/** The cost of our JFR events on a Single.
+ *
+ * Run as is, JFR is not recording and the events should cost next to
+ * nothing. Give <code>-jvmArgsAppend -XX:StartFlightRecording</code>
+ * to see the cost while recording.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EventBenchmark {
+    public String key = "node1@REALM";
+
+    @Benchmark
+    public String plain ()
+    {
+        return Single.just(key)
+            .map(String::trim)
+            .blockingGet();
+    }
+
+    @Benchmark
+    public String withEvent ()
+    {
+        return Single.just(key)
+            .map(String::trim)
+            .compose(FPEvent.<CacheLoadEvent, String>timed(
+                CacheLoadEvent.class, CacheLoadEvent::new,
+                (ev, v) -> {
+                    ev.cache = "bench";
+                    ev.key = FPEvent.hash(key);
+                    ev.cacheStatus = "miss";
+                }))
+            .blockingGet();
+    }
+}
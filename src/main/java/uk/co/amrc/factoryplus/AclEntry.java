@@ -0,0 +1,231 @@
+/* Factory+ Java client library.
+ * Auth service ACL entry.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.util.UUID;
+import java.util.function.Function;
+
+import org.json.*;
+
+/** A permission granted to a principal on a target.
+ *
+ * Entries are immutable. The UUIDs are held as their two halves, so an
+ * entry is a single small object, and are only built into UUID objects
+ * when asked for.
+ */
+public final class AclEntry {
+    private final long permHi, permLo;
+    private final long targetHi, targetLo;
+
+    public AclEntry (UUID permission, UUID target)
+    {
+        this(permission.getMostSignificantBits(),
+            permission.getLeastSignificantBits(),
+            target.getMostSignificantBits(),
+            target.getLeastSignificantBits());
+    }
+
+    private AclEntry (long permHi, long permLo, long targetHi, long targetLo)
+    {
+        this.permHi = permHi;
+        this.permLo = permLo;
+        this.targetHi = targetHi;
+        this.targetLo = targetLo;
+    }
+
+    /** Builds an entry from a JSON object.
+     *
+     * @param ace The entry, as the Auth service returns it.
+     * @return The entry.
+     * @throws JSONException If the permission or target is missing.
+     * @throws IllegalArgumentException If either is not a UUID.
+     */
+    public static AclEntry fromJSON (JSONObject ace)
+    {
+        return new AclEntry(
+            UUID.fromString(ace.getString("permission")),
+            UUID.fromString(ace.getString("target")));
+    }
+
+    /** Creates a decoder reading entries from a JSON tokener.
+     *
+     * Each entry is read field by field, without building a JSONObject
+     * or any Strings for the keys and UUIDs. Fields other than the
+     * permission and target are skipped. If the next value is not an
+     * object it is skipped and the decoder returns null.
+     *
+     * The decoder throws JSONException if the JSON is malformed or the
+     * permission or target is missing, and IllegalArgumentException if
+     * either is not a UUID. It reuses a buffer between entries, so may
+     * only be used from one thread at a time.
+     *
+     * @return The decoder.
+     */
+    public static Function<JSONTokener, AclEntry> decoder ()
+    {
+        return new Decoder();
+    }
+
+    private static class Decoder implements Function<JSONTokener, AclEntry>
+    {
+        /* Strings are read into here. Keys and UUIDs we want fit. */
+        private final char[] buf = new char[36];
+        private int len;
+        /* The string instead, if it didn't fit or had escapes. */
+        private String str;
+        /* The last UUID read. */
+        private long hi, lo;
+
+        public AclEntry apply (JSONTokener tok)
+        {
+            if (tok.nextClean() != '{') {
+                tok.back();
+                tok.nextValue();
+                return null;
+            }
+
+            boolean havePerm = false, haveTarget = false;
+            long permHi = 0, permLo = 0, targetHi = 0, targetLo = 0;
+            char c = tok.nextClean();
+            if (c != '}') {
+                tok.back();
+                do {
+                    if (tok.nextClean() != '"')
+                        throw tok.syntaxError("Expected a key");
+                    readString(tok);
+                    boolean perm = isKey("permission");
+                    boolean target = !perm && isKey("target");
+                    if (tok.nextClean() != ':')
+                        throw tok.syntaxError("Expected ':'");
+
+                    if (tok.nextClean() != '"') {
+                        tok.back();
+                        tok.nextValue();
+                        if (perm) havePerm = false;
+                        if (target) haveTarget = false;
+                    }
+                    else if (perm) {
+                        readUuid(tok);
+                        permHi = hi; permLo = lo;
+                        havePerm = true;
+                    }
+                    else if (target) {
+                        readUuid(tok);
+                        targetHi = hi; targetLo = lo;
+                        haveTarget = true;
+                    }
+                    else
+                        readString(tok);
+                    c = tok.nextClean();
+                } while (c == ',');
+                if (c != '}')
+                    throw tok.syntaxError("Expected ',' or '}'");
+            }
+
+            if (!havePerm)
+                throw new JSONException("ACL entry has no permission");
+            if (!haveTarget)
+                throw new JSONException("ACL entry has no target");
+            return new AclEntry(permHi, permLo, targetHi, targetLo);
+        }
+
+        /* Reads a string, after its opening quote. */
+        private void readString (JSONTokener tok)
+        {
+            str = null;
+            len = 0;
+            char c;
+            while ((c = tok.next()) != '"') {
+                if (c == '\\' || len == buf.length) {
+                    tok.back();
+                    str = new String(buf, 0, len) + tok.nextString('"');
+                    return;
+                }
+                if (c == 0 || c == '\n' || c == '\r')
+                    throw tok.syntaxError("Unterminated string");
+                buf[len++] = c;
+            }
+        }
+
+        private boolean isKey (String key)
+        {
+            if (str != null)
+                return str.equals(key);
+            if (len != key.length())
+                return false;
+            for (int i = 0; i < len; i++)
+                if (buf[i] != key.charAt(i))
+                    return false;
+            return true;
+        }
+
+        /* UUIDs from the Auth service are always in the canonical
+         * 8-4-4-4-12 form, which we read straight from the buffer.
+         * Anything else goes through UUID.fromString. */
+        private void readUuid (JSONTokener tok)
+        {
+            readString(tok);
+            if (str == null && len == 36
+                && buf[8] == '-' && buf[13] == '-'
+                && buf[18] == '-' && buf[23] == '-')
+            {
+                long a = hex(0, 8), b = hex(9, 13), c = hex(14, 18);
+                long d = hex(19, 23), e = hex(24, 36);
+                if ((a | b | c | d | e) >= 0) {
+                    hi = a << 32 | b << 16 | c;
+                    lo = d << 48 | e;
+                    return;
+                }
+            }
+            var uuid = UUID.fromString(
+                str != null ? str : new String(buf, 0, len));
+            hi = uuid.getMostSignificantBits();
+            lo = uuid.getLeastSignificantBits();
+        }
+
+        /* At most 12 digits, so a valid result is never negative. */
+        private long hex (int from, int to)
+        {
+            long rv = 0;
+            for (int i = from; i < to; i++) {
+                char c = buf[i];
+                int d = c >= '0' && c <= '9' ? c - '0'
+                    : c >= 'a' && c <= 'f' ? c - 'a' + 10
+                    : c >= 'A' && c <= 'F' ? c - 'A' + 10
+                    : -1;
+                if (d < 0)
+                    return -1;
+                rv = rv << 4 | d;
+            }
+            return rv;
+        }
+    }
+
+    public UUID getPermission () { return new UUID(permHi, permLo); }
+    public UUID getTarget () { return new UUID(targetHi, targetLo); }
+
+    public boolean equals (Object other)
+    {
+        if (this == other)
+            return true;
+        if (!(other instanceof AclEntry))
+            return false;
+        var ace = (AclEntry)other;
+        return permHi == ace.permHi && permLo == ace.permLo
+            && targetHi == ace.targetHi && targetLo == ace.targetLo;
+    }
+
+    public int hashCode ()
+    {
+        long h = permHi ^ permLo ^ 31 * (targetHi ^ targetLo);
+        return (int)(h ^ (h >>> 32));
+    }
+
+    public String toString ()
+    {
+        return getPermission() + " on " + getTarget();
+    }
+}
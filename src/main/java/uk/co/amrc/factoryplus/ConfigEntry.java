@@ -0,0 +1,30 @@
+/* Factory+ Java client library.
+ * ConfigDB entry with version.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.util.Optional;
+
+import org.json.JSONObject;
+
+/** A config entry fetched from the ConfigDB.
+ *
+ * The version is the HTTP entity tag of the response, if the ConfigDB
+ * sent one. Two entries with the same version have the same value, so
+ * this can be used to cache values derived from the entry.
+ */
+public class ConfigEntry {
+    private JSONObject value;
+    private Optional<String> version;
+
+    public ConfigEntry (JSONObject value, Optional<String> version)
+    {
+        this.value = value;
+        this.version = version;
+    }
+
+    public JSONObject getValue () { return value; }
+    public Optional<String> getVersion () { return version; }
+}
@@ -8,9 +8,12 @@ package uk.co.amrc.factoryplus;
 
 import java.net.*;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 import java.util.stream.Collectors;
 
@@ -57,6 +60,34 @@ public class FPAuth {
      * @return A stream of maps represnting the granted permissions.
      */
     public Single<Stream<Map>> getACL (String princ, UUID perms)
+    {
+        return fetchACL(princ, perms, () -> JSONTokener::nextValue)
+            .map(aces -> aces
+                .filter(o -> o instanceof JSONObject)
+                .map(o -> (Map)((JSONObject)o).toMap()));
+    }
+
+    /**
+     * Fetches an ACL as typed entries.
+     *
+     * As {@link #getACL(String, UUID)}, but each entry is decoded from
+     * the response as the stream is read, straight into an {@link
+     * AclEntry}, without building the whole ACL or any JSON objects.
+     * Entries which are not objects are skipped.
+     *
+     * @param princ The principal to fetch permissions for.
+     * @param perms The permission group to fetch.
+     * @return A stream of the granted permissions.
+     */
+    public Single<Stream<AclEntry>> getACLEntries (String princ, UUID perms)
+    {
+        return fetchACL(princ, perms, AclEntry::decoder)
+            .map(aces -> aces.filter(Objects::nonNull));
+    }
+
+    /* Decoders may keep state, so we make one for each response. */
+    private <T> Single<Stream<T>> fetchACL (String princ, UUID perms,
+        Supplier<Function<JSONTokener, T>> decoder)
     {
         //FPThreadUtil.logId("fetching acl");
         return fplus.http().request(SERVICE, "GET")
@@ -65,13 +96,14 @@ public class FPAuth {
                 .setParameter("principal", princ)
                 .setParameter("permission", perms.toString()))
             .fetch()
+            .doOnSuccess(res -> {
+                if (log.isDebugEnabled())
+                    log.debug("F+ ACL [{}]: {}", princ,
+                        res.getResponse().getBodyText());
+            })
             .map(res -> res.ifOk()
-                .flatMap(r -> r.getBodyArray())
+                .flatMap(r -> r.getBodyElements(decoder.get()))
                 .orElseThrow(() -> new FPServiceException(SERVICE, 
-                    res.getCode(), "Can't fetch ACL")))
-            .doOnSuccess(acl -> log.info("F+ ACL [{}]: {}", princ, acl))
-            .map(acl -> acl.toList().stream()
-                .filter(o -> o instanceof Map)
-                .map(o -> (Map)o));
+                    res.getCode(), "Can't fetch ACL")));
     }
 }
@@ -56,6 +56,32 @@ public class FPConfigDB {
      * @return A JSONObject holding the config entry.
      */
     public Single<JSONObject> getConfig (UUID appid, UUID objid)
+    {
+        return getConfigEntry(appid, objid)
+            .map(ConfigEntry::getValue);
+    }
+
+    /** Fetches the Sparkplug address of an object.
+     *
+     * @param objid The Object UUID.
+     * @return The address.
+     */
+    public Single<SparkplugAddress> getSparkplugAddress (UUID objid)
+    {
+        return getConfig(FPUuid.App.SparkplugAddress, objid)
+            .map(SparkplugAddress::fromJSON);
+    }
+
+    /** Fetches a single config entry with its version.
+     *
+     * As {@link #getConfig(UUID,UUID)}, but also returns the ETag of
+     * the entry if the ConfigDB supplied one.
+     *
+     * @param appid The Application UUID.
+     * @param objid The Object UUID.
+     * @return The config entry.
+     */
+    public Single<ConfigEntry> getConfigEntry (UUID appid, UUID objid)
     {
         return request("GET")
             .withURIBuilder(b -> b
@@ -64,9 +90,12 @@ public class FPConfigDB {
                 .appendPath("object")
                 .appendPath(objid.toString()))
             .fetch()
-            .map(res -> res.ifOk()
-                .flatMap(r -> r.getBodyObject())
-                .orElseThrow(() -> new FPServiceException(SERVICE,
-                    res.getCode(), "Can't fetch ConfigDB entry")));
+            .compose(fplus.metrics().timed("configdb.fetch"))
+            .map(res -> new ConfigEntry(
+                res.ifOk()
+                    .flatMap(r -> r.getBodyObject())
+                    .orElseThrow(() -> new FPServiceException(SERVICE,
+                        res.getCode(), "Can't fetch ConfigDB entry")),
+                res.getHeader("ETag")));
     }
 }
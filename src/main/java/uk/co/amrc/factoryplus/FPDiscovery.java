@@ -6,6 +6,7 @@
 package uk.co.amrc.factoryplus;
 
 import java.net.URI;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -22,11 +23,11 @@ import io.reactivex.rxjava3.core.*;
 import uk.co.amrc.factoryplus.http.*;
 
 /* XXX The JS client performs a (cached) fetch every time, with a Map of
- * overrides. This client caches the responses from the Directory
- * indefinitely, which is definitely incorrect. However, we perform
- * not-entirely-trivial processing on the response, so even if there
- * will be no network activity I would like to know that I got a 304 and
- * can reuse the existing derived value... */
+ * overrides. This client caches the responses from the Directory for
+ * a fixed TTL instead. We perform not-entirely-trivial processing on
+ * the response, so even if there will be no network activity I would
+ * like to know that I got a 304 and can reuse the existing derived
+ * value... */
 
 /** Service discovery.
  *
@@ -37,11 +38,23 @@ public class FPDiscovery {
     private static final Logger log = LoggerFactory.getLogger(FPDiscovery.class);
 
     private RequestCache<UUID, Set<URI>> cache;
+    private Map<UUID, Set<URI>> overrides;
 
     public FPDiscovery (FPServiceClient fplus)
     {
         var dir = fplus.directory();
-        this.cache = new RequestCache<UUID, Set<URI>>(dir::getServiceURLs);
+        var ttl = Duration.ofSeconds(fplus.getIntConf("discovery_cache_ttl", 300));
+        /* Don't remember for long that a service isn't registered; it
+         * may just not have started yet. If the Directory itself can't
+         * be reached, back off from 1s up to the same limit. */
+        var missing = Duration.ofSeconds(Math.min(ttl.toSeconds(), 10));
+        this.cache = new RequestCache<UUID, Set<URI>>(dir::getServiceURLs)
+            .withTTL(urls -> urls.isEmpty() ? missing : ttl)
+            .withMaxStale(ttl)
+            .withFailureTTL(err -> Duration.ofSeconds(1), missing)
+            .withMaxSize(fplus.getIntConf("discovery_cache_size", 100))
+            .withMetrics(fplus.metrics(), "discovery.cache");
+        this.overrides = new ConcurrentHashMap<UUID, Set<URI>>();
 
         var url = fplus.getUriConf("directory_url");
         log.info("Using Directory {}", url);
@@ -60,7 +73,8 @@ public class FPDiscovery {
      */
     public void setServiceURL (UUID service, URI url)
     {
-        cache.put(service, Set.of(url));
+        overrides.put(service, Set.of(url));
+        cache.invalidate(service);
     }
 
     /** Fetches the URLs available for a service.
@@ -73,6 +87,9 @@ public class FPDiscovery {
      */
     public Single<Set<URI>> lookup (UUID service)
     {
+        var urls = overrides.get(service);
+        if (urls != null)
+            return Single.just(urls);
         return cache.get(service);
     }
 
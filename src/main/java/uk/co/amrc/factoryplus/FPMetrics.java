@@ -0,0 +1,86 @@
+/* Factory+ Java client library.
+ * Metrics.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.core.SingleTransformer;
+
+/** Publishes metrics to a Dropwizard registry.
+ *
+ * All names are prefixed with <code>uk.co.amrc.factoryplus</code>.
+ * Construct via {@link FPServiceClient#metrics()}.
+ */
+public class FPMetrics {
+    private static final String PREFIX = "uk.co.amrc.factoryplus";
+
+    private final MetricRegistry registry;
+
+    /** Internal; construct via {@link FPServiceClient}. */
+    public FPMetrics (MetricRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    public MetricRegistry getRegistry () { return registry; }
+
+    /** Builds a full metric name.
+     *
+     * @param names The components of the name.
+     * @return The dotted name, with our prefix.
+     */
+    public String name (String... names)
+    {
+        return MetricRegistry.name(PREFIX, names);
+    }
+
+    public Timer timer (String... names)
+    {
+        return registry.timer(name(names));
+    }
+
+    public Counter counter (String... names)
+    {
+        return registry.counter(name(names));
+    }
+
+    /** Registers a gauge.
+     *
+     * Any existing metric with this name is replaced, so a component
+     * which is recreated reports its own values rather than those of
+     * its predecessor.
+     *
+     * @param gauge The gauge.
+     * @param names The components of the name.
+     */
+    public <T> void gauge (Gauge<T> gauge, String... names)
+    {
+        var name = name(names);
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    /** Times a Single.
+     *
+     * The time is measured from subscription until success, error or
+     * disposal.
+     *
+     * @param names The components of the timer name.
+     * @return A transformer for {@link Single#compose}.
+     */
+    public <T> SingleTransformer<T, T> timed (String... names)
+    {
+        var timer = timer(names);
+        return upstream -> Single.defer(() -> {
+            var ctx = timer.time();
+            return upstream.doFinally(ctx::stop);
+        });
+    }
+}
@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.hc.core5.net.URIBuilder;
+import com.codahale.metrics.MetricRegistry;
 import org.json.*;
 
 import io.reactivex.rxjava3.schedulers.Schedulers;
@@ -39,6 +40,7 @@ public class FPServiceClient {
     private Map<String, String> config;
     private Executor _executor;
     private Scheduler _scheduler;
+    private FPMetrics _metrics;
 
     /* I'm not sure this is the best way to do this... possibly a Map
      * would be better? */
@@ -110,6 +112,29 @@ public class FPServiceClient {
         return Optional.of(val);
     }
 
+    /** Get an optional config parameter which is an integer.
+     *
+     * @param key The config parameter.
+     * @param dflt The value to use if the parameter is not supplied.
+     * @return The integer value.
+     * @throws ServiceConfigurationError
+     *  If the parameter is not a valid integer.
+     */
+    public int getIntConf (String key, int dflt)
+    {
+        return getOptionalConf(key)
+            .map(val -> {
+                try {
+                    return Integer.parseInt(val.trim());
+                }
+                catch (NumberFormatException e) {
+                    throw new ServiceConfigurationError(
+                        String.format("Bad integer for %s: %s", key, val));
+                }
+            })
+            .orElse(dflt);
+    }
+
     /** Get a config parameter which is a URL.
      *
      * Fetches a (required) config parameter and parses it to a URI.
@@ -163,6 +188,30 @@ public class FPServiceClient {
         return _scheduler;
     }
 
+    /** Sets the registry to publish metrics to.
+     *
+     * If this is not called metrics are kept in a private registry.
+     *
+     * @param registry The registry to use.
+     * @throws IllegalStateException
+     *  If {@link #metrics()} has already been called.
+     */
+    synchronized public void setMetricRegistry (MetricRegistry registry)
+    {
+        if (_metrics != null)
+            throw new IllegalStateException(
+                "Can't set metric registry: metrics are already in use");
+
+        _metrics = new FPMetrics(registry);
+    }
+
+    synchronized public FPMetrics metrics ()
+    {
+        if (_metrics == null)
+            _metrics = new FPMetrics(new MetricRegistry());
+        return _metrics;
+    }
+
     synchronized public FPGssProvider gss ()
     {
         if (_gss == null)
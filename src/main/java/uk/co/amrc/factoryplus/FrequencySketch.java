@@ -0,0 +1,102 @@
+/* Factory+ Java client library.
+ * Access frequency sketch.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+/** An approximate count of how often keys have been used.
+ *
+ * This is a count-min sketch of 4-bit counters, four to a key, packed
+ * sixteen to a long. Once the total reaches ten times the number of
+ * keys we expect to track, every counter is halved, so old popularity
+ * fades. It is used for TinyLFU admission: a new key only displaces
+ * an old one if it has been asked for more often.
+ *
+ * This is not thread-safe; callers must lock.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L,
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /** Creates a sketch.
+     *
+     * @param keys The number of keys we expect to track.
+     */
+    public FrequencySketch (int keys)
+    {
+        int size = Integer.highestOneBit(Math.max(keys, 8) - 1) << 1;
+        table = new long[size];
+        mask = size - 1;
+        sampleSize = 10 * Math.max(keys, 1);
+    }
+
+    /** The estimated use count of a key, up to 15. */
+    public int frequency (Object key)
+    {
+        int hash = spread(key.hashCode());
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            int shift = offset(hash, i) << 2;
+            int count = (int)((table[index(hash, i)] >>> shift) & 0xF);
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    /** Records a use of a key. */
+    public void increment (Object key)
+    {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int idx = index(hash, i);
+            long one = 1L << (offset(hash, i) << 2);
+            /* Saturate at 15 rather than overflowing. */
+            if ((table[idx] & (one * 0xF)) != one * 0xF) {
+                table[idx] += one;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    private void reset ()
+    {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions >>>= 1;
+    }
+
+    private int index (int hash, int i)
+    {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int)h & mask;
+    }
+
+    /* Which of the sixteen counters in the long to use. */
+    private static int offset (int hash, int i)
+    {
+        return (hash >>> (i << 3)) & 0xF;
+    }
+
+    private static int spread (int h)
+    {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        h *= 0xac4c1b51;
+        h ^= h >>> 15;
+        return h;
+    }
+}
@@ -3,13 +3,17 @@
  * Copyright 2023 AMRC.
  */
 
-/* This is used to cache HTTP bearer tokens and to cache service URL
- * lookups. */
+/* This is used to cache HTTP bearer tokens, to cache service URL
+ * lookups and to cache computed MQTT ACLs. */
 
 package uk.co.amrc.factoryplus;
 
 import java.net.URI;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
 import org.slf4j.Logger;
@@ -19,52 +23,600 @@ import org.json.JSONObject;
 
 import io.reactivex.rxjava3.core.Single;
 
+import uk.co.amrc.factoryplus.jfr.CacheLoadEvent;
+import uk.co.amrc.factoryplus.jfr.FPEvent;
+
 /** Internal. */
 public class RequestCache<Key, Value>
 {
     private static final Logger log = LoggerFactory.getLogger(RequestCache.class);
 
+    private static class Entry<Value> {
+        final Value value;
+        /* Set instead of value for a cached failure. */
+        final Throwable error;
+        /* How many times in a row the load has failed. */
+        final int failures;
+        final long loaded;
+        /* Negative means this entry never expires. */
+        final long ttl;
+        /* How long past the TTL we may serve a stale value. */
+        final long maxStale;
+        /* When we may next try to refresh a stale entry. */
+        volatile long retryAt;
+
+        Entry (Value value, Throwable error, int failures, long loaded,
+            long ttl, long maxStale)
+        {
+            this.value = value;
+            this.error = error;
+            this.failures = failures;
+            this.loaded = loaded;
+            this.ttl = ttl;
+            this.maxStale = maxStale;
+            this.retryAt = loaded;
+        }
+
+        static <Value> Entry<Value> failed (Throwable error, int failures,
+            long loaded, long ttl)
+        {
+            return new Entry<Value>(null, error, failures, loaded, ttl, 0);
+        }
+
+        boolean fresh (long age) { return ttl < 0 || age < ttl; }
+        boolean usable (long age) { return ttl < 0 || age < ttl + maxStale; }
+
+        /* Retry a failed refresh once per TTL, or more often if the
+         * stale period is short, but no more than once a second. */
+        long retryInterval ()
+        {
+            return Math.max(Math.min(ttl, maxStale / 2), 1000000000L);
+        }
+    }
+
+    /** Receives entries from {@link #forEach(EntryConsumer)}. */
+    public interface EntryConsumer<Key, Value> {
+        void accept (Key key, Value value, Duration age);
+    }
+
+    /** A snapshot of cache statistics. */
+    public static class Stats {
+        private long hits, stale, negative, misses, loads, failures,
+            loadTime, evictions, rejections;
+        private int size;
+
+        Stats (RequestCache<?, ?> cache)
+        {
+            hits = cache.hits.sum();
+            stale = cache.stale.sum();
+            negative = cache.negative.sum();
+            misses = cache.misses.sum();
+            loads = cache.loads.sum();
+            failures = cache.failures.sum();
+            loadTime = cache.loadTime.sum();
+            evictions = cache.evictions.sum();
+            rejections = cache.rejections.sum();
+            size = cache.cache.size();
+        }
+
+        public long hitCount () { return hits; }
+        /** Hits which returned a stale value. Included in hitCount. */
+        public long staleHitCount () { return stale; }
+        /** Lookups answered with a cached failure. Not in hitCount. */
+        public long negativeHitCount () { return negative; }
+        public long missCount () { return misses; }
+        public long loadSuccessCount () { return loads; }
+        public long loadFailureCount () { return failures; }
+        public long evictionCount () { return evictions; }
+        /** Loaded values not kept because they were used too rarely. */
+        public long rejectionCount () { return rejections; }
+        public int size () { return size; }
+
+        /** The total time spent loading, in nanoseconds. */
+        public long totalLoadTime () { return loadTime; }
+
+        /** The mean time per load, in nanoseconds. */
+        public double averageLoadPenalty ()
+        {
+            long count = loads + failures;
+            return count == 0 ? 0.0 : (double)loadTime / count;
+        }
+
+        public double hitRatio ()
+        {
+            long count = hits + misses;
+            return count == 0 ? 1.0 : (double)hits / count;
+        }
+
+        public String toString ()
+        {
+            return String.format(
+                "size %d, hits %d (stale %d), negative hits %d, misses %d, loads %d, failures %d, evictions %d, rejections %d, avg load %.1fms",
+                size, hits, stale, negative, misses, loads, failures,
+                evictions, rejections,
+                averageLoadPenalty() / 1e6);
+        }
+    }
+
     private Function<Key, Single<Value>> source;
-    private ConcurrentHashMap<Key, Value> cache;
+    /* Used to label events; set by withMetrics. */
+    private String name = "unnamed";
+    private ConcurrentHashMap<Key, Entry<Value>> cache;
     private ConcurrentHashMap<Key, Single<Value>> inFlight;
 
+    /* Null means entries never expire. */
+    private Function<? super Value, Duration> ttl = null;
+    /* How long past the TTL we may serve a stale value. */
+    private Function<? super Value, Duration> maxStale = v -> Duration.ZERO;
+    /* Null means failures are not cached. */
+    private Function<? super Throwable, Duration> failureTTL = null;
+    private long maxFailureTTL = 0;
+    /* Zero means unbounded. */
+    private int maxSize = 0;
+
+    /* Recency order and access frequency, used for eviction when we
+     * are bounded. Reads only update these if they can get the lock
+     * without waiting; losing the odd access under contention just
+     * makes the policy approximate. */
+    private LinkedHashMap<Key, Boolean> order;
+    private FrequencySketch frequency;
+    private ReentrantLock orderLock;
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder stale = new LongAdder();
+    private LongAdder negative = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder loads = new LongAdder();
+    private LongAdder failures = new LongAdder();
+    private LongAdder loadTime = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+    private LongAdder rejections = new LongAdder();
+
     public RequestCache (Function<Key, Single<Value>> tokenSource)
     {
         source = tokenSource;
-        cache = new ConcurrentHashMap<Key, Value>();
+        cache = new ConcurrentHashMap<Key, Entry<Value>>();
         inFlight = new ConcurrentHashMap<Key, Single<Value>>();
     }
 
+    /** Expire entries after a fixed time.
+     *
+     * This must be called before the cache is used. A zero TTL means
+     * values are not kept at all, but concurrent requests for the same
+     * key will still share a single load.
+     *
+     * @param expiry How long to keep values for.
+     * @return <code>this</code>.
+     */
+    public RequestCache<Key, Value> withTTL (Duration expiry)
+    {
+        ttl = v -> expiry;
+        return this;
+    }
+
+    /** Expire entries after a time which depends on the value.
+     *
+     * This must be called before the cache is used. The function is
+     * called once for each value stored; it may return null for a value
+     * which should never expire, or zero for one which should not be
+     * kept.
+     *
+     * @param expiry Returns how long to keep each value for.
+     * @return <code>this</code>.
+     */
+    public RequestCache<Key, Value> withTTL (Function<? super Value, Duration> expiry)
+    {
+        ttl = expiry;
+        return this;
+    }
+
+    /** Serve stale values while refreshing them.
+     *
+     * This must be called before the cache is used. Once an entry has
+     * passed its TTL it will still be returned immediately for up to
+     * this long, while a reload happens in the background. If the
+     * reload fails the stale value continues to be served; reloads are
+     * retried at most once per TTL (or per half the stale period, if
+     * that is shorter), and at most once a second. Only once the stale
+     * period has run out will a caller wait for (and see errors from)
+     * the source.
+     *
+     * @param stale How long past the TTL values may be served.
+     * @return <code>this</code>.
+     */
+    public RequestCache<Key, Value> withMaxStale (Duration stale)
+    {
+        maxStale = v -> stale;
+        return this;
+    }
+
+    /** Serve stale values for a time which depends on the value.
+     *
+     * As {@link #withMaxStale(Duration)}, but the function is called
+     * once for each value stored. Together with a value-derived TTL
+     * this gives refresh-ahead for values which carry their own
+     * expiry: the TTL is when to start refreshing, and the TTL plus
+     * the stale period is when the value becomes unusable.
+     *
+     * @param stale Returns how long past the TTL each value may be served.
+     * @return <code>this</code>.
+     */
+    public RequestCache<Key, Value> withMaxStale (Function<? super Value, Duration> stale)
+    {
+        maxStale = stale;
+        return this;
+    }
+
+    /** Cache failed loads.
+     *
+     * This must be called before the cache is used. When a load fails,
+     * and there is no value we can still serve, the error is kept and
+     * returned to callers until it expires; only then is the source
+     * tried again. The function gives the TTL for each error, so that
+     * (say) a 404 can be kept longer than a network error; it may
+     * return null, zero or negative for errors which should not be
+     * kept. Each further failure in a row doubles the TTL, up to the
+     * maximum.
+     *
+     * @param expiry Returns how long to keep each error for.
+     * @param max The longest any error will be kept for.
+     * @return <code>this</code>.
+     * @throws IllegalArgumentException If the maximum is negative.
+     */
+    public RequestCache<Key, Value> withFailureTTL (
+        Function<? super Throwable, Duration> expiry, Duration max)
+    {
+        if (max.isNegative())
+            throw new IllegalArgumentException(
+                "Negative maximum failure TTL: " + max);
+        failureTTL = expiry;
+        maxFailureTTL = max.toNanos();
+        return this;
+    }
+
+    /** Limit the number of entries.
+     *
+     * This must be called before the cache is used. When the cache is
+     * full the least-recently-used entry is the candidate for eviction,
+     * but a newly-loaded value only replaces it if its key has been
+     * asked for more often recently (TinyLFU). Otherwise the new value
+     * is returned but not kept, so one-off lookups cannot flush out the
+     * keys which are in regular use. Values given to {@link #put} are
+     * always kept.
+     *
+     * @param size The maximum number of entries, or 0 for unbounded.
+     * @return <code>this</code>.
+     */
+    public RequestCache<Key, Value> withMaxSize (int size)
+    {
+        maxSize = size;
+        if (size > 0) {
+            order = new LinkedHashMap<Key, Boolean>(16, 0.75f, true);
+            frequency = new FrequencySketch(size);
+            orderLock = new ReentrantLock();
+        }
+        return this;
+    }
+
     public Single<Value> get (Key key)
     {
         var existing = cache.get(key);
-        if (existing != null)
-            return Single.just(existing);
-
-        return inFlight.computeIfAbsent(key, k -> {
-            var promise = source.apply(key).cache();
-            //log.info("In-flight: add {} {}", key, promise);
-
-            promise
-                .doAfterTerminate(() -> {
-                    //log.info("In-flight: remove {} {}", key, promise);
-                    inFlight.remove(key, promise);
-                })
-                .subscribe(rv -> cache.put(key, rv), e -> {});
-            return promise;
+        if (existing != null) {
+            long now = System.nanoTime();
+            long age = now - existing.loaded;
+            if (existing.error != null) {
+                if (existing.fresh(age)) {
+                    negative.increment();
+                    touch(key);
+                    return Single.error(existing.error);
+                }
+                /* Leave it be; the next failure backs off from it. */
+            }
+            else if (existing.fresh(age)) {
+                hits.increment();
+                touch(key);
+                return Single.just(existing.value);
+            }
+            else if (existing.usable(age)) {
+                hits.increment();
+                stale.increment();
+                touch(key);
+                refresh(key, existing, now);
+                return Single.just(existing.value);
+            }
+            else
+                discard(key, existing);
+        }
+
+        misses.increment();
+        touch(key);
+        return load(key, "miss");
+    }
+
+    private Single<Value> load (Key key, String status)
+    {
+        var running = inFlight.get(key);
+        if (running != null)
+            return running;
+
+        /* Don't subscribe from within a CHM compute method: if the
+         * source completes synchronously we would end up modifying the
+         * map recursively. */
+        var promise = source.apply(key)
+            .compose(FPEvent.<CacheLoadEvent, Value>timed(
+                CacheLoadEvent.class, CacheLoadEvent::new,
+                (ev, v) -> {
+                    ev.cache = name;
+                    ev.key = FPEvent.hash(key.toString());
+                    ev.cacheStatus = status;
+                }))
+            .cache();
+        running = inFlight.putIfAbsent(key, promise);
+        if (running != null)
+            return running;
+        //log.info("In-flight: add {} {}", key, promise);
+
+        final long start = System.nanoTime();
+        promise.subscribe(
+            rv -> {
+                loadTime.add(System.nanoTime() - start);
+                loads.increment();
+                complete(key, promise, rv);
+            },
+            e -> {
+                loadTime.add(System.nanoTime() - start);
+                failures.increment();
+                fail(key, promise, e);
+            });
+        return promise;
+    }
+
+    /* Only store the result if this load is still the current one for
+     * the key. A put or invalidate removes the in-flight load under the
+     * same CHM lock, so a load which completes afterwards is dropped
+     * here rather than overwriting the newer value. */
+    private void complete (Key key, Single<Value> promise, Value value)
+    {
+        inFlight.computeIfPresent(key, (k, p) -> {
+            if (p != promise)
+                return p;
+            //log.info("In-flight: remove {} {}", key, promise);
+            store(key, value, System.nanoTime(), true);
+            return null;
         });
     }
 
+    private void fail (Key key, Single<Value> promise, Throwable error)
+    {
+        inFlight.computeIfPresent(key, (k, p) -> {
+            if (p != promise)
+                return p;
+            //log.info("In-flight: remove {} {}", key, promise);
+            if (failureTTL != null)
+                storeFailure(key, error);
+            return null;
+        });
+    }
+
+    /* Called with the key locked in inFlight. */
+    private void storeFailure (Key key, Throwable error)
+    {
+        long now = System.nanoTime();
+        int count = 1;
+        var existing = cache.get(key);
+        if (existing != null) {
+            /* A stale value is better than an error. */
+            if (existing.error == null && existing.usable(now - existing.loaded))
+                return;
+            if (existing.error != null)
+                count = existing.failures + 1;
+        }
+
+        var expiry = failureTTL.apply(error);
+        if (expiry == null || expiry.isZero() || expiry.isNegative())
+            return;
+        long ttl = backoff(expiry.toNanos(), count, maxFailureTTL);
+        insert(key, Entry.<Value>failed(error, count, now, ttl), true);
+    }
+
+    /* The TTL for the given number of failures in a row: base doubled
+     * for each failure after the first, up to max. This must not
+     * overflow, as a negative TTL never expires. */
+    static long backoff (long base, int failures, long max)
+    {
+        int shift = failures - 1;
+        if (shift >= Long.numberOfLeadingZeros(base))
+            return max;
+        return Math.min(base << shift, max);
+    }
+
+    private void refresh (Key key, Entry<Value> entry, long now)
+    {
+        if (now - entry.retryAt < 0 || inFlight.containsKey(key))
+            return;
+        entry.retryAt = now + entry.retryInterval();
+
+        load(key, "stale").subscribe(rv -> {}, e ->
+            log.warn("Refresh failed for {}, serving stale value: {}",
+                key, e.toString()));
+    }
+
+    /* Called with the key locked in inFlight. */
+    private void store (Key key, Value value, long loaded, boolean admit)
+    {
+        var expiry = ttl == null ? null : ttl.apply(value);
+        long entryTTL = expiry == null ? -1 : expiry.toNanos();
+        long entryStale = entryTTL < 0 ? 0 : maxStale.apply(value).toNanos();
+        if (entryTTL == 0 && entryStale <= 0) {
+            discard(key, cache.get(key));
+            return;
+        }
+
+        insert(key, new Entry<Value>(value, null, 0, loaded, entryTTL, entryStale),
+            admit);
+    }
+
+    private void insert (Key key, Entry<Value> entry, boolean admit)
+    {
+        if (maxSize <= 0) {
+            cache.put(key, entry);
+            return;
+        }
+
+        orderLock.lock();
+        try {
+            var it = order.keySet().iterator();
+            if (admit && order.size() >= maxSize && !order.containsKey(key)) {
+                var victim = it.next();
+                if (frequency.frequency(key) <= frequency.frequency(victim)) {
+                    rejections.increment();
+                    return;
+                }
+            }
+
+            cache.put(key, entry);
+            order.put(key, Boolean.TRUE);
+            it = order.keySet().iterator();
+            while (order.size() > maxSize) {
+                var victim = it.next();
+                it.remove();
+                cache.remove(victim);
+                evictions.increment();
+            }
+        }
+        finally {
+            orderLock.unlock();
+        }
+    }
+
+    private void touch (Key key)
+    {
+        if (maxSize <= 0 || !orderLock.tryLock())
+            return;
+        try {
+            order.get(key);
+            frequency.increment(key);
+        }
+        finally {
+            orderLock.unlock();
+        }
+    }
+
+    private void discard (Key key, Entry<Value> entry)
+    {
+        if (entry == null || !cache.remove(key, entry) || maxSize <= 0)
+            return;
+
+        orderLock.lock();
+        try {
+            order.remove(key);
+        }
+        finally {
+            orderLock.unlock();
+        }
+    }
+
+    /** Sets the value for a key.
+     *
+     * This replaces any cached value. A load already in flight for the
+     * key is superseded: callers already waiting on it will see its
+     * result, but that result will not be stored.
+     *
+     * @param key The key.
+     * @param value The value.
+     */
     public void put (Key key, Value value)
     {
-        /* XXX If we have an in-flight request we need to cancel it, and
-         * arrange for the get() call to return this value instead.
-         * Otherwise it will overwrite the value we set here. */
-        cache.put(key, value);
+        put(key, value, Duration.ZERO);
+    }
+
+    /** Inserts a value which was loaded some time ago.
+     *
+     * This is used to restore a cache from persistent storage. The
+     * entry will expire (or go stale) based on its age.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @param age How long ago the value was loaded.
+     */
+    public void put (Key key, Value value, Duration age)
+    {
+        long loaded = System.nanoTime() - age.toNanos();
+        inFlight.compute(key, (k, p) -> {
+            store(key, value, loaded, false);
+            return null;
+        });
+    }
+
+    /** Removes any value for a key.
+     *
+     * As with {@link #put(Object, Object)}, a load already in flight
+     * will not be stored, so the next get will load afresh.
+     *
+     * @param key The key.
+     */
+    public void invalidate (Key key)
+    {
+        inFlight.compute(key, (k, p) -> {
+            discard(key, cache.get(key));
+            return null;
+        });
+    }
+
+    /** Visits every entry in the cache.
+     *
+     * Entries which have expired, or which are too stale to serve, are
+     * skipped.
+     *
+     * @param consumer Called with each key, value and age.
+     */
+    public void forEach (EntryConsumer<Key, Value> consumer)
+    {
+        long now = System.nanoTime();
+        cache.forEach((key, entry) -> {
+            long age = now - entry.loaded;
+            if (entry.error == null && entry.usable(age))
+                consumer.accept(key, entry.value, Duration.ofNanos(age));
+        });
     }
 
     public void remove (Key service, Value token)
     {
-        cache.remove(service, token);
+        var entry = cache.get(service);
+        if (entry != null && token.equals(entry.value))
+            discard(service, entry);
+    }
+
+    /** Publishes the cache statistics as gauges.
+     *
+     * The name also labels JFR events for this cache.
+     *
+     * @param metrics Where to publish.
+     * @param name The name of this cache.
+     * @return <code>this</code>.
+     */
+    public RequestCache<Key, Value> withMetrics (FPMetrics metrics, String name)
+    {
+        this.name = name;
+        metrics.gauge(hits::sum, name, "hits");
+        metrics.gauge(stale::sum, name, "stale-hits");
+        metrics.gauge(negative::sum, name, "negative-hits");
+        metrics.gauge(misses::sum, name, "misses");
+        metrics.gauge(loads::sum, name, "loads");
+        metrics.gauge(failures::sum, name, "load-failures");
+        metrics.gauge(evictions::sum, name, "evictions");
+        metrics.gauge(rejections::sum, name, "rejections");
+        metrics.gauge(cache::size, name, "size");
+        metrics.gauge(inFlight::size, name, "in-flight");
+        return this;
+    }
+
+    /** Fetches the current statistics.
+     *
+     * @return A snapshot of the counters.
+     */
+    public Stats stats ()
+    {
+        return new Stats(this);
     }
 }
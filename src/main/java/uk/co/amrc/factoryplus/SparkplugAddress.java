@@ -0,0 +1,64 @@
+/* Factory+ Java client library.
+ * Sparkplug address config entry.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.util.Objects;
+
+import org.json.JSONObject;
+
+/** The Sparkplug address of an object.
+ *
+ * This is the ConfigDB entry under the Sparkplug Address app. An
+ * address for a whole group has no node.
+ */
+public final class SparkplugAddress {
+    private final String group;
+    private final String node;
+
+    public SparkplugAddress (String group, String node)
+    {
+        this.group = group;
+        this.node = node;
+    }
+
+    /** Reads an address from its config entry.
+     *
+     * @param entry The config entry.
+     * @return The address.
+     */
+    public static SparkplugAddress fromJSON (JSONObject entry)
+    {
+        return new SparkplugAddress(
+            entry.optString("group_id", null),
+            entry.optString("node_id", null));
+    }
+
+    /** @return The group ID, or null. */
+    public String getGroup () { return group; }
+    /** @return The node ID, or null. */
+    public String getNode () { return node; }
+
+    public boolean equals (Object other)
+    {
+        if (this == other)
+            return true;
+        if (!(other instanceof SparkplugAddress))
+            return false;
+        var addr = (SparkplugAddress)other;
+        return Objects.equals(group, addr.group)
+            && Objects.equals(node, addr.node);
+    }
+
+    public int hashCode ()
+    {
+        return Objects.hash(group, node);
+    }
+
+    public String toString ()
+    {
+        return group + "/" + node;
+    }
+}
@@ -30,6 +30,9 @@ import io.reactivex.rxjava3.functions.Function;
 import io.reactivex.rxjava3.functions.Supplier;
 
 import uk.co.amrc.factoryplus.Attempt;
+import uk.co.amrc.factoryplus.jfr.EventTypes;
+import uk.co.amrc.factoryplus.jfr.FPEvent;
+import uk.co.amrc.factoryplus.jfr.GssCredentialsEvent;
 
 /** A GSS principal (client or server).
  */
@@ -70,8 +73,25 @@ public abstract class FPGssPrincipal {
             }));
     }
 
-    protected synchronized <T> Attempt<T> withCreds (
-        Function<GSSCredential,T> callback)
+    protected <T> Attempt<T> withCreds (Function<GSSCredential,T> callback)
+    {
+        /* Begin before we take the lock, so the event shows contention. */
+        if (!EventTypes.enabled(GssCredentialsEvent.class))
+            return lockedWithCreds(callback, null);
+
+        var ev = new GssCredentialsEvent();
+        ev.begin();
+        var rv = lockedWithCreds(callback, ev);
+        ev.end();
+        if (ev.shouldCommit()) {
+            ev.outcome = FPEvent.outcome(rv.isError() ? rv.getError() : null);
+            ev.commit();
+        }
+        return rv;
+    }
+
+    private synchronized <T> Attempt<T> lockedWithCreds (
+        Function<GSSCredential,T> callback, GssCredentialsEvent ev)
     {
         /* XXX This is a mess. It could probably be redone with a pair
          * of cached Observables to avoid all this stateful tangle. */
@@ -85,6 +105,8 @@ public abstract class FPGssPrincipal {
             if (lft < 5)
                 creds = null;
         }
+        if (ev != null)
+            ev.login = creds == null;
 
         return getCreds()
             .handle(GSSException.class, err -> {
@@ -94,7 +116,16 @@ public abstract class FPGssPrincipal {
                 subject = null;
                 return getCreds();
             })
-            .flatMap(cr -> withSubject(() -> callback.apply(cr)));
+            .flatMap(cr -> {
+                if (ev != null) {
+                    /* Acceptor credentials may have no name. */
+                    var name = Attempt.ofCallable(() -> cr.getName())
+                        .orElse(e -> null);
+                    ev.principal = name == null ? null
+                        : FPEvent.hash(name.toString());
+                }
+                return withSubject(() -> callback.apply(cr));
+            });
     }
 
     protected <T> Attempt<T> withSubject (Supplier<T> callback)
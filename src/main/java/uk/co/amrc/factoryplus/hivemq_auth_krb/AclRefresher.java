@@ -0,0 +1,195 @@
+/* Factory+ HiveMQ auth plugin.
+ * Live ACL refresh for connected clients.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.reactivex.rxjava3.core.*;
+
+import com.hivemq.extension.sdk.api.client.parameter.ConnectionAttributeStore;
+import com.hivemq.extension.sdk.api.events.client.ClientLifecycleEventListener;
+import com.hivemq.extension.sdk.api.events.client.parameters.*;
+import com.hivemq.extension.sdk.api.packets.disconnect.DisconnectReasonCode;
+import com.hivemq.extension.sdk.api.services.Services;
+
+/** Tracks connected clients and re-checks their ACLs.
+ *
+ * Every session holds the ACL it was given, with
+ * {@link MqttAcl#retain}, until it disconnects. This keeps the
+ * canonical ACL alive while it is in use.
+ *
+ * Sessions are tracked by client ID, but a client which takes over an
+ * existing session disconnects the old connection, and that disconnect
+ * may arrive after the new connection has registered. So each
+ * registration has a token, also stored on its connection, and a
+ * disconnect only removes the registration carrying its own token.
+ *
+ * HiveMQ applies a client's permissions once, at CONNECT. This
+ * periodically re-resolves the ACL of every principal with a
+ * connected session, and disconnects sessions whose ACL has changed so
+ * they reconnect with the new permissions. HiveMQ has no API to change
+ * the permissions of a session which is already connected.
+ *
+ * Refreshing is off unless an interval is set. ACLs are interned, so
+ * an unchanged ACL is the same object as the one we applied and the
+ * comparison is trivial.
+ */
+class AclRefresher implements ClientLifecycleEventListener {
+    private static final Logger log = LoggerFactory.getLogger(AclRefresher.class);
+
+    /* The connection attribute holding the session token. */
+    private static final String TOKEN = "uk.co.amrc.factoryplus.session";
+
+    private static class Session {
+        final long token;
+        final String principal;
+        final MqttAcl acl;
+
+        Session (long token, String principal, MqttAcl acl)
+        {
+            this.token = token;
+            this.principal = principal;
+            this.acl = acl;
+        }
+    }
+
+    private final FPKrbAuthProvider provider;
+    private final Duration interval;
+    private final int concurrency;
+    private final ConcurrentHashMap<String, Session> sessions;
+    private final AtomicBoolean running;
+    private final AtomicLong tokens;
+
+    public AclRefresher (FPKrbAuthProvider provider, Duration interval,
+        int concurrency)
+    {
+        this.provider = provider;
+        this.interval = interval;
+        this.concurrency = concurrency;
+        this.sessions = new ConcurrentHashMap<String, Session>();
+        this.running = new AtomicBoolean(false);
+        this.tokens = new AtomicLong();
+    }
+
+    public boolean enabled () { return !interval.isZero(); }
+
+    public void start (ScheduledExecutorService exec)
+    {
+        if (!enabled())
+            return;
+
+        long every = interval.toMillis();
+        log.info("Refreshing ACLs of connected clients every {}s",
+            interval.toSeconds());
+        exec.scheduleWithFixedDelay(this::refresh, every, every,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /** Records the ACL applied to a new session.
+     *
+     * Any earlier session with the same client ID is replaced.
+     *
+     * @param conn The attribute store of the new connection.
+     * @param clientId The MQTT client ID.
+     * @param principal The principal the client authenticated as.
+     * @param acl The ACL applied.
+     */
+    public void register (ConnectionAttributeStore conn, String clientId,
+        String principal, MqttAcl acl)
+    {
+        long token = tokens.incrementAndGet();
+        conn.put(TOKEN, ByteBuffer.allocate(Long.BYTES).putLong(0, token));
+        acl.retain();
+        drop(sessions.put(clientId, new Session(token, principal, acl)));
+    }
+
+    /* Each session is released once, by whoever removed it. */
+    private void drop (Session session)
+    {
+        if (session != null)
+            session.acl.release();
+    }
+
+    /* Sessions are registered by the authenticator, which knows the
+     * principal and ACL; there is nothing to do here. */
+    @Override
+    public void onMqttConnectionStart (ConnectionStartInput input) { }
+
+    @Override
+    public void onAuthenticationSuccessful (AuthenticationSuccessfulInput input) { }
+
+    /* Connections which never registered, and old connections whose
+     * session has been taken over, don't remove anything. */
+    @Override
+    public void onDisconnect (DisconnectEventInput input)
+    {
+        var id = input.getClientInformation().getClientId();
+        input.getConnectionInformation().getConnectionAttributeStore()
+            .get(TOKEN)
+            .map(buf -> buf.getLong(0))
+            .ifPresent(token -> {
+                var session = sessions.get(id);
+                if (session != null && session.token == token
+                        && sessions.remove(id, session))
+                    drop(session);
+            });
+    }
+
+    public int size () { return sessions.size(); }
+
+    private void refresh ()
+    {
+        if (!running.compareAndSet(false, true))
+            return;
+
+        Map<String, List<String>> byPrincipal = sessions.entrySet().stream()
+            .collect(Collectors.groupingBy(
+                e -> e.getValue().principal,
+                Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+
+        Observable.fromIterable(byPrincipal.entrySet())
+            .flatMap(e -> provider.refreshACL(e.getKey())
+                    .doOnSuccess(acl -> update(e.getKey(), acl, e.getValue()))
+                    .toObservable()
+                    .onErrorResumeNext(err -> {
+                        log.warn("Can't refresh ACL for {}: {}",
+                            e.getKey(), err.toString());
+                        return Observable.empty();
+                    }),
+                concurrency)
+            .doFinally(() -> running.set(false))
+            .subscribe(acl -> {}, err -> log.error("ACL refresh failed", err));
+    }
+
+    private void update (String principal, MqttAcl acl, List<String> clients)
+    {
+        for (var id : clients) {
+            var session = sessions.get(id);
+            if (session == null || !session.principal.equals(principal)
+                    || session.acl.equals(acl))
+                continue;
+
+            log.info("ACL for {} has changed, disconnecting {}", principal, id);
+            if (sessions.remove(id, session))
+                drop(session);
+            Services.clientService().disconnectClient(id, false,
+                DisconnectReasonCode.ADMINISTRATIVE_ACTION,
+                "Permissions changed");
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/* Factory+ HiveMQ auth plugin.
+ * On-disk snapshot of resolved ACLs.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hivemq.extension.sdk.api.auth.parameter.TopicPermission;
+
+import uk.co.amrc.factoryplus.RequestCache;
+
+/** Persists resolved ACLs across broker restarts.
+ *
+ * The ACL cache and the compiled templates are written periodically to
+ * a compact binary file. At startup the file is memory-mapped and read
+ * back, so the first wave of reconnects can be answered without
+ * waiting on the Auth service and ConfigDB. Each ACL carries its age;
+ * restored entries expire, go stale and are refreshed exactly as if
+ * they had been loaded that long ago. This means snapshots are only
+ * useful for restarts shorter than ACL_CACHE_TTL plus ACL_MAX_STALE.
+ *
+ * Templates carry their ConfigDB version, and are reused only while
+ * the ConfigDB still reports that version.
+ */
+class AclSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(AclSnapshot.class);
+
+    private static final int MAGIC = 0x46504143;    /* "FPAC" */
+    private static final int FORMAT = 1;
+
+    private final Path file;
+    private final Duration interval;
+
+    public AclSnapshot (Path file, Duration interval)
+    {
+        this.file = file;
+        this.interval = interval;
+    }
+
+    public boolean enabled () { return file != null; }
+
+    /** Restores the caches from the snapshot file.
+     *
+     * @param acls The ACL cache.
+     * @param templates The compiled template cache.
+     */
+    public void load (RequestCache<String, MqttAcl> acls,
+        Map<UUID, MqttTemplate> templates)
+    {
+        if (!enabled())
+            return;
+
+        try (var ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            var in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT) {
+                log.warn("Ignoring ACL snapshot {}: bad format", file);
+                return;
+            }
+            long written = in.getLong();
+            var since = Duration.ofMillis(
+                Math.max(System.currentTimeMillis() - written, 0));
+
+            /* Read the whole file before touching the caches, so a
+             * corrupt snapshot restores nothing rather than half. */
+            int ntmpl = readCount(in, 24);
+            var tmpls = new HashMap<UUID, MqttTemplate>();
+            for (int i = 0; i < ntmpl; i++) {
+                var uuid = new UUID(in.getLong(), in.getLong());
+                tmpls.put(uuid, MqttTemplate.read(in));
+            }
+
+            int nacl = readCount(in, 16);
+            var principals = new ArrayList<String>(nacl);
+            var ages = new ArrayList<Duration>(nacl);
+            var entries = new ArrayList<List<MqttAce>>(nacl);
+            for (int i = 0; i < nacl; i++) {
+                principals.add(readString(in));
+                ages.add(Duration.ofMillis(in.getLong()).plus(since));
+                int n = readCount(in, 5);
+                var aces = new ArrayList<MqttAce>(n);
+                for (int j = 0; j < n; j++)
+                    aces.add(readAce(in));
+                entries.add(aces);
+            }
+
+            templates.putAll(tmpls);
+            for (int i = 0; i < nacl; i++)
+                acls.put(principals.get(i), MqttAcl.of(entries.get(i)),
+                    ages.get(i));
+
+            log.info("Restored {} ACLs and {} templates from {} ({}s old)",
+                nacl, ntmpl, file, since.toSeconds());
+        }
+        catch (NoSuchFileException e) {
+            log.info("No ACL snapshot at {}", file);
+        }
+        catch (Exception e) {
+            log.warn("Can't read ACL snapshot {}: {}", file, e.toString());
+        }
+    }
+
+    /** Writes a snapshot periodically.
+     *
+     * @param exec The executor to run on.
+     * @param acls The ACL cache.
+     * @param templates The compiled template cache.
+     */
+    public void start (ScheduledExecutorService exec,
+        RequestCache<String, MqttAcl> acls, Map<UUID, MqttTemplate> templates)
+    {
+        if (!enabled())
+            return;
+
+        long every = interval.toMillis();
+        exec.scheduleWithFixedDelay(() -> save(acls, templates),
+            every, every, TimeUnit.MILLISECONDS);
+    }
+
+    /** Writes a snapshot now.
+     *
+     * The snapshot is written to a temporary file and renamed into
+     * place, so a crash never leaves a partial snapshot. It holds
+     * principals and their ACLs, so it is readable only by us. Saves
+     * are serialised, as the periodic save can overlap the one from
+     * shutdown.
+     *
+     * @param acls The ACL cache.
+     * @param templates The compiled template cache.
+     */
+    public synchronized void save (RequestCache<String, MqttAcl> acls,
+        Map<UUID, MqttTemplate> templates)
+    {
+        if (!enabled())
+            return;
+
+        Path tmp = null;
+        try {
+            tmp = createTemp();
+            var count = new int[] { 0 };
+            try (var out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tmp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(System.currentTimeMillis());
+
+                /* Take a copy, so the count matches what we write. */
+                var tmpls = Map.copyOf(templates);
+                out.writeInt(tmpls.size());
+                for (var e : tmpls.entrySet()) {
+                    out.writeLong(e.getKey().getMostSignificantBits());
+                    out.writeLong(e.getKey().getLeastSignificantBits());
+                    e.getValue().write(out);
+                }
+
+                var buf = new ByteArrayOutputStream();
+                var body = new DataOutputStream(buf);
+                IOException[] err = { null };
+                acls.forEach((principal, acl, age) -> {
+                    if (err[0] != null) return;
+                    try {
+                        writeString(body, principal);
+                        body.writeLong(age.toMillis());
+                        body.writeInt(acl.size());
+                        for (var ace : acl.entries())
+                            writeAce(body, ace);
+                        count[0]++;
+                    }
+                    catch (IOException e) {
+                        err[0] = e;
+                    }
+                });
+                if (err[0] != null)
+                    throw err[0];
+
+                out.writeInt(count[0]);
+                buf.writeTo(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Wrote {} ACLs to {}", count[0], file);
+        }
+        catch (Exception e) {
+            log.warn("Can't write ACL snapshot {}: {}", file, e.toString());
+            try {
+                if (tmp != null)
+                    Files.deleteIfExists(tmp);
+            }
+            catch (IOException de) { }
+        }
+    }
+
+    /* In the same directory, so the rename is atomic. */
+    private Path createTemp ()
+        throws IOException
+    {
+        var dir = file.toAbsolutePath().getParent();
+        var prefix = file.getFileName() + ".";
+        if (!dir.getFileSystem().supportedFileAttributeViews().contains("posix"))
+            return Files.createTempFile(dir, prefix, ".tmp");
+        return Files.createTempFile(dir, prefix, ".tmp",
+            PosixFilePermissions.asFileAttribute(
+                PosixFilePermissions.fromString("rw-------")));
+    }
+
+    /* Counts and lengths are checked against what is left of the file
+     * before we allocate for them, so a corrupt snapshot can't make us
+     * allocate huge arrays. Each item takes at least min bytes. */
+    static int readCount (ByteBuffer in, int min)
+    {
+        int n = in.getInt();
+        if (n < 0 || n > in.remaining() / min)
+            throw new IllegalArgumentException("Bad count in ACL snapshot: " + n);
+        return n;
+    }
+
+    /* Strings are stored as a length and UTF-8 bytes, so they can be
+     * read straight from a ByteBuffer. */
+    static void writeString (DataOutputStream out, String str)
+        throws IOException
+    {
+        var bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString (ByteBuffer in)
+    {
+        var bytes = new byte[readCount(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeAce (DataOutputStream out, MqttAce ace)
+        throws IOException
+    {
+        out.writeByte(activityCode(ace.getActivity()));
+        writeString(out, ace.getTopic());
+    }
+
+    static MqttAce readAce (ByteBuffer in)
+    {
+        var activity = activity(in.get());
+        return new MqttAce(readString(in), activity);
+    }
+
+    static int activityCode (TopicPermission.MqttActivity activity)
+    {
+        switch (activity) {
+            case PUBLISH:   return 1;
+            case SUBSCRIBE: return 2;
+            case ALL:       return 3;
+        }
+        throw new IllegalArgumentException("Unknown MQTT activity " + activity);
+    }
+
+    static TopicPermission.MqttActivity activity (byte code)
+    {
+        switch (code) {
+            case 1: return TopicPermission.MqttActivity.PUBLISH;
+            case 2: return TopicPermission.MqttActivity.SUBSCRIBE;
+            case 3: return TopicPermission.MqttActivity.ALL;
+        }
+        throw new IllegalArgumentException("Bad MQTT activity code " + code);
+    }
+}
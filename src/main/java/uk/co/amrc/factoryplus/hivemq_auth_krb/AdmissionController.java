@@ -0,0 +1,181 @@
+/* Factory+ HiveMQ auth plugin.
+ * Admission control for authentication work.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Limits the authentication work in progress.
+ *
+ * Each attempt claims some units of capacity (its weight) for as long
+ * as it runs. When there is no capacity free, attempts wait in a FIFO
+ * queue of bounded length. An attempt is refused outright if the queue
+ * is full, or if we estimate it would wait longer than the maximum
+ * wait; there is no point starting work the client will have timed out
+ * of before we finish.
+ *
+ * The wait estimate uses a moving average of how long each unit of
+ * weight has taken to process.
+ */
+class AdmissionController {
+    private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+    /* Weight of the newest sample in the moving average. */
+    private static final double ALPHA = 0.1;
+
+    /** A claim on some capacity.
+     *
+     * Once a ticket has been started it must be released exactly once,
+     * either with {@link #release()} when the work is done or with
+     * {@link #cancel()} if it was abandoned.
+     */
+    class Ticket {
+        private final int weight;
+        private boolean granted;
+        private boolean done;
+        private long started;
+        private Runnable task;
+
+        private Ticket (int weight)
+        {
+            this.weight = weight;
+        }
+
+        /** Runs a task once admitted.
+         *
+         * If capacity is available now the task is run on the
+         * given executor. Otherwise it will be run on the controller's
+         * executor once capacity becomes free.
+         *
+         * @param now The executor to use if admitted immediately.
+         * @param work The task to run.
+         */
+        public void start (Executor now, Runnable work)
+        {
+            synchronized (AdmissionController.this) {
+                if (!granted) {
+                    task = work;
+                    return;
+                }
+            }
+            now.execute(work);
+        }
+
+        /** Releases our capacity when the work has finished. */
+        public void release () { finish(this, true); }
+
+        /** Releases our capacity without completing the work. */
+        public void cancel () { finish(this, false); }
+    }
+
+    private final int capacity;
+    private final int maxQueue;
+    private final long maxWait;
+    private final Executor executor;
+
+    private final ArrayDeque<Ticket> queue = new ArrayDeque<Ticket>();
+    private int inUse = 0;
+    private int queuedWeight = 0;
+    /* Nanoseconds per unit of weight. */
+    private double unitTime = 0;
+
+    private final LongAdder rejected = new LongAdder();
+
+    /** Creates an admission controller.
+     *
+     * @param capacity Units of weight which may run at once.
+     * @param maxQueue The maximum number of waiting attempts.
+     * @param maxWait The longest we expect a client to wait.
+     * @param executor Used to run attempts which had to queue.
+     */
+    public AdmissionController (int capacity, int maxQueue,
+        Duration maxWait, Executor executor)
+    {
+        this.capacity = capacity;
+        this.maxQueue = maxQueue;
+        this.maxWait = maxWait.toNanos();
+        this.executor = executor;
+    }
+
+    /** Asks for admission.
+     *
+     * @param weight The relative cost of this attempt.
+     * @return A ticket, or null if the attempt should be refused.
+     */
+    public Ticket enter (int weight)
+    {
+        var ticket = new Ticket(Math.min(weight, capacity));
+
+        synchronized (this) {
+            if (queue.isEmpty() && inUse + ticket.weight <= capacity) {
+                grant(ticket);
+                return ticket;
+            }
+
+            /* Work ahead of us has to drain through the capacity we
+             * have. Ignore what is running already; it will finish
+             * within one unit time on average. */
+            double wait = (queuedWeight + ticket.weight) * unitTime / capacity;
+            if (queue.size() < maxQueue && wait < maxWait) {
+                queue.add(ticket);
+                queuedWeight += ticket.weight;
+                return ticket;
+            }
+        }
+
+        rejected.increment();
+        return null;
+    }
+
+    private void grant (Ticket ticket)
+    {
+        inUse += ticket.weight;
+        ticket.granted = true;
+        ticket.started = System.nanoTime();
+    }
+
+    private void finish (Ticket ticket, boolean sample)
+    {
+        var ready = new ArrayList<Runnable>();
+
+        synchronized (this) {
+            if (ticket.done || !ticket.granted)
+                return;
+            ticket.done = true;
+            inUse -= ticket.weight;
+
+            if (sample) {
+                double t = (double)(System.nanoTime() - ticket.started)
+                    / ticket.weight;
+                unitTime = unitTime == 0 ? t
+                    : unitTime + ALPHA * (t - unitTime);
+            }
+
+            while (!queue.isEmpty()
+                && inUse + queue.peek().weight <= capacity
+            ) {
+                var next = queue.poll();
+                queuedWeight -= next.weight;
+                grant(next);
+                if (next.task != null)
+                    ready.add(next.task);
+            }
+        }
+
+        for (var task : ready)
+            executor.execute(task);
+    }
+
+    public synchronized int inUse () { return inUse; }
+    public synchronized int queueLength () { return queue.size(); }
+    public long rejectedCount () { return rejected.sum(); }
+}
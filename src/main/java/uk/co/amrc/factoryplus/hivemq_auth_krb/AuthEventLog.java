@@ -0,0 +1,268 @@
+/* Factory+ HiveMQ auth plugin.
+ * Structured log of authentication events.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.ServiceConfigurationError;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Logs the result of each CONNECT, off the authentication path.
+ *
+ * Recording an event claims a slot in a fixed ring with a CAS and
+ * stores the event's fields in preallocated parallel arrays; the
+ * strings and ACL are stored by reference, so nothing is formatted or
+ * allocated. A background task drains the ring every 200ms and logs
+ * one line per event, as <code>key=value</code> pairs. If the ring
+ * fills faster than it drains, events are dropped and counted rather
+ * than making CONNECTs wait.
+ *
+ * The level is <code>failures</code> (the default), <code>all</code>
+ * or <code>off</code>. Successes can also be sampled, logging one in N.
+ * Traced principals are always logged, with their full ACL; no one
+ * else's ACL is ever rendered.
+ */
+class AuthEventLog {
+    private static final Logger log = LoggerFactory.getLogger(AuthEventLog.class);
+
+    private static final long DRAIN_INTERVAL = 200;
+
+    enum Level { OFF, FAILURES, ALL }
+
+    private final Level level;
+    private final int sample;
+    private final Set<String> traced;
+
+    /* The ring. A slot is published by writing its sequence number;
+     * head is the next sequence to claim, tail the next to drain. */
+    private final int mask;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong(0);
+    private volatile long tail = 0;
+
+    private final long[] times;
+    private final long[] durations;
+    private final String[] mechs;
+    private final String[] results;
+    private final String[] clients;
+    private final String[] principals;
+    private final MqttAcl[] acls;
+
+    private final LongAdder dropped = new LongAdder();
+    private long reported = 0;
+
+    /** Creates an event log.
+     *
+     * @param level How much to log.
+     * @param sample Log one in this many successes.
+     * @param traced Principals to always log, with their ACLs.
+     * @param capacity The size of the ring, rounded up to a power of 2.
+     */
+    public AuthEventLog (Level level, int sample, Set<String> traced,
+        int capacity)
+    {
+        this.level = level;
+        this.sample = Math.max(sample, 1);
+        this.traced = traced;
+
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            published.set(i, -1);
+
+        times = new long[size];
+        durations = new long[size];
+        mechs = new String[size];
+        results = new String[size];
+        clients = new String[size];
+        principals = new String[size];
+        acls = new MqttAcl[size];
+    }
+
+    /** Parses a level from config.
+     *
+     * @param name The level name.
+     * @return The level.
+     * @throws ServiceConfigurationError If the name is not a level.
+     */
+    public static Level level (String name)
+    {
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new ServiceConfigurationError(
+                String.format("Bad auth log level: %s", name));
+        }
+    }
+
+    /** Parses a comma-separated list of principals. */
+    public static Set<String> principals (String list)
+    {
+        return Arrays.stream(list.split(","))
+            .map(String::trim)
+            .filter(s -> !s.isEmpty())
+            .collect(Collectors.toUnmodifiableSet());
+    }
+
+    public long droppedCount () { return dropped.sum(); }
+
+    public void start (ScheduledExecutorService exec)
+    {
+        if (level == Level.OFF && traced.isEmpty())
+            return;
+        exec.scheduleWithFixedDelay(this::drain,
+            DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Records the result of a CONNECT.
+     *
+     * @param mech The mechanism label.
+     * @param result The result label.
+     * @param client The client ID.
+     * @param principal The principal, or null if not known.
+     * @param acl The ACL granted, or null.
+     * @param nanos How long the CONNECT took.
+     */
+    public void record (String mech, String result, String client,
+        String principal, MqttAcl acl, long nanos)
+    {
+        boolean trace = principal != null && traced.contains(principal);
+        if (!trace && !wanted(result))
+            return;
+
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        int i = (int)seq & mask;
+        times[i] = System.currentTimeMillis();
+        durations[i] = nanos;
+        mechs[i] = mech;
+        results[i] = result;
+        clients[i] = client;
+        principals[i] = principal;
+        acls[i] = trace ? acl : null;
+        published.lazySet(i, seq);
+    }
+
+    private boolean wanted (String result)
+    {
+        if (level == Level.OFF)
+            return false;
+        if (!result.equals("success"))
+            return true;
+        if (level == Level.FAILURES)
+            return false;
+        return sample == 1 || ThreadLocalRandom.current().nextInt(sample) == 0;
+    }
+
+    /* Runs on the executor, so only ever on one thread at a time. */
+    private void drain ()
+    {
+        try {
+            var line = new StringBuilder(128);
+            long seq = tail;
+            while (published.get((int)seq & mask) == seq) {
+                int i = (int)seq & mask;
+                line.setLength(0);
+                format(line, i);
+                /* Don't hold on to these until the slot is reused. */
+                clients[i] = null;
+                principals[i] = null;
+                acls[i] = null;
+                tail = ++seq;
+                /* The builder is reused, and an async appender may
+                 * format the message later, so pass a String. */
+                log.info("{}", line.toString());
+            }
+
+            long lost = dropped.sum();
+            if (lost > reported) {
+                log.warn("Auth event log full, dropped {} events", lost - reported);
+                reported = lost;
+            }
+        }
+        catch (Exception e) {
+            log.error("Auth event log failed", e);
+        }
+    }
+
+    private void format (StringBuilder line, int i)
+    {
+        line.append("time=").append(Instant.ofEpochMilli(times[i]))
+            .append(" mech=").append(mechs[i])
+            .append(" result=").append(results[i])
+            .append(" client=");
+        quote(line, clients[i]);
+        line.append(" principal=");
+        quote(line, principals[i]);
+        line.append(" ms=").append(durations[i] / 1000000);
+
+        var acl = acls[i];
+        if (acl == null)
+            return;
+        line.append(" acl=\"");
+        var first = true;
+        for (var ace : acl.entries()) {
+            if (!first)
+                line.append(' ');
+            first = false;
+            line.append(ace.getActivity()).append('(')
+                .append(ace.getTopic()).append(')');
+        }
+        line.append('"');
+    }
+
+    /* Quotes a value if it is empty or contains whitespace, quotes or
+     * equals signs. This runs for every field of every event, so scan
+     * the chars rather than using a regex. */
+    static void quote (StringBuilder line, String value)
+    {
+        if (value == null) {
+            line.append('-');
+            return;
+        }
+
+        boolean plain = !value.isEmpty();
+        for (int i = 0; plain && i < value.length(); i++) {
+            char c = value.charAt(i);
+            /* The same whitespace as \s in a regex. */
+            plain = c != '"' && c != '=' && c != ' '
+                && (c < '\t' || c > '\r');
+        }
+        if (plain) {
+            line.append(value);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"')
+                line.append('\\');
+            line.append(c);
+        }
+        line.append('"');
+    }
+}
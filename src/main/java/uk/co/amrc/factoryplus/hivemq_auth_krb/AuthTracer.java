@@ -0,0 +1,434 @@
+/* Factory+ HiveMQ auth plugin.
+ * Recording of authentication traces.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.reactivex.rxjava3.core.*;
+
+/** Records the shape of authentication traffic.
+ *
+ * When enabled, every CONNECT produces a record of when it arrived,
+ * which mechanism it used, a hash of the principal, how long each
+ * stage took and how it ended. Every ACL load from the Auth service
+ * and ConfigDB produces a record of its own, as one load may serve
+ * several CONNECTs. Nothing secret is recorded: no tokens, passwords,
+ * client IDs or addresses. Principals are hashed with a salt which
+ * is chosen at startup and never written out, so hashes can be
+ * matched within one run but not reversed.
+ *
+ * Records are appended to a compact binary file. Each run starts with
+ * a header giving the wall-clock start time; times and durations are
+ * then in microseconds, as unsigned varints. Writes are buffered and
+ * flushed every second.
+ */
+class AuthTracer {
+    private static final Logger log = LoggerFactory.getLogger(AuthTracer.class);
+
+    private static final int MAGIC = 0x46504154;    /* "FPAT" */
+    private static final int FORMAT = 1;
+
+    static final int HEADER = 0;
+    static final int CONNECT = 1;
+    static final int ACL_LOAD = 2;
+
+    /** The stages of an authentication attempt. */
+    enum Stage {
+        /* Waiting for admission. */
+        ADMISSION,
+        /* Logging in to the KDC for a password CONNECT. */
+        KDC,
+        /* Accepting the client's GSSAPI token. */
+        GSS,
+        /* Waiting for the principal's ACL, cached or not. */
+        ACL,
+        /* An ACL load: the Auth service request. */
+        AUTH,
+        /* An ACL load: the mean ConfigDB request. */
+        CONFIGDB,
+    }
+
+    /* Stage outcomes. */
+    static final int OK = 0;
+    static final int ERROR = 1;
+    static final int CACHED = 2;
+
+    /* Mechanisms and results, in the labels used for metrics. */
+    static final List<String> MECHS = List.of("password", "gssapi", "other");
+    static final List<String> RESULTS = List.of(
+        "success", "failure", "busy", "rate-limited", "timeout");
+
+    /** One trace record.
+     *
+     * Records are filled in as an attempt proceeds and written when
+     * it finishes. Records from a disabled tracer ignore everything.
+     */
+    static class Record {
+        private final AuthTracer tracer;
+
+        int type;
+        long time;
+        int mech;
+        long principal;
+        int result;
+        long duration;
+        final long[] stages = new long[Stage.values().length];
+        final byte[] outcomes = new byte[Stage.values().length];
+        private final int[] counts = new int[Stage.values().length];
+
+        private long start;
+
+        Record (AuthTracer tracer, int type)
+        {
+            this.tracer = tracer;
+            this.type = type;
+            Arrays.fill(stages, -1);
+        }
+
+        private boolean enabled () { return tracer != null; }
+
+        /** The time of the record, in microseconds since the epoch. */
+        public long getTime () { return time; }
+        public String getMech () { return MECHS.get(mech); }
+        public long getPrincipal () { return principal; }
+        public String getResult () { return RESULTS.get(result); }
+        public long getDuration () { return duration; }
+        public boolean isConnect () { return type == CONNECT; }
+
+        /** The duration of a stage, or -1 if it didn't happen. */
+        public long getStage (Stage stage) { return stages[stage.ordinal()]; }
+        public int getOutcome (Stage stage) { return outcomes[stage.ordinal()]; }
+
+        public Record principal (String name)
+        {
+            if (enabled())
+                principal = tracer.hash(name);
+            return this;
+        }
+
+        /** Records a stage.
+         *
+         * A stage recorded more than once, as with the ConfigDB
+         * requests of one ACL load, keeps the mean time and any error.
+         * Stages which end after the record has finished, such as an
+         * ACL load outliving a CONNECT which timed out, are ignored.
+         *
+         * @param stage The stage.
+         * @param outcome OK, ERROR or CACHED.
+         * @param nanos The time taken.
+         */
+        public void stage (Stage stage, int outcome, long nanos)
+        {
+            if (!enabled())
+                return;
+            int i = stage.ordinal();
+            synchronized (this) {
+                if (start == 0)
+                    return;
+                long total = Math.max(stages[i], 0) * counts[i] + nanos / 1000;
+                stages[i] = total / ++counts[i];
+                if (outcome != OK)
+                    outcomes[i] = (byte)outcome;
+            }
+        }
+
+        /** Times a stage.
+         *
+         * @param stage The stage.
+         * @return A transformer recording the time to success or error.
+         */
+        public <T> SingleTransformer<T, T> timed (Stage stage)
+        {
+            if (!enabled())
+                return single -> single;
+            return single -> Single.defer(() -> {
+                long begin = System.nanoTime();
+                return single
+                    .doOnSuccess(v -> stage(stage, OK, System.nanoTime() - begin))
+                    .doOnError(e -> stage(stage, ERROR, System.nanoTime() - begin));
+            });
+        }
+
+        /** Finishes and writes the record.
+         *
+         * Only the first call has any effect. The record is written
+         * under its own lock, so a late stage can't change it part way
+         * through; the tracer never takes a record's lock while holding
+         * its own.
+         *
+         * @param result One of RESULTS.
+         */
+        public void finish (String result)
+        {
+            if (!enabled())
+                return;
+            synchronized (this) {
+                if (start == 0)
+                    return;
+                duration = (System.nanoTime() - start) / 1000;
+                start = 0;
+                this.result = Math.max(RESULTS.indexOf(result), 0);
+                tracer.write(this);
+            }
+        }
+    }
+
+    private static final Record DISABLED = new Record(null, CONNECT);
+
+    private final Path file;
+    private byte[] salt;
+    private long epoch;
+    private long base;
+    private volatile DataOutputStream out;
+
+    public AuthTracer (Path file)
+    {
+        this.file = file;
+    }
+
+    public boolean enabled () { return file != null; }
+
+    /** Opens the trace file and starts flushing it.
+     *
+     * @param exec The executor to flush on.
+     */
+    public synchronized void start (ScheduledExecutorService exec)
+    {
+        if (!enabled())
+            return;
+
+        salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        epoch = System.currentTimeMillis();
+        base = System.nanoTime();
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND),
+                65536));
+            out.writeByte(HEADER);
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT);
+            out.writeLong(epoch);
+        }
+        catch (IOException e) {
+            log.error("Can't open auth trace {}: {}", file, e.toString());
+            out = null;
+            return;
+        }
+
+        log.info("Recording auth trace to {}", file);
+        exec.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop ()
+    {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            log.warn("Can't close auth trace: {}", e.toString());
+        }
+        out = null;
+    }
+
+    private synchronized void flush ()
+    {
+        if (out == null)
+            return;
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail (IOException e)
+    {
+        log.error("Auth trace failed, stopping: {}", e.toString());
+        try { out.close(); } catch (IOException ce) { }
+        out = null;
+    }
+
+    /** Starts recording a CONNECT.
+     *
+     * @param mech The mechanism label.
+     * @return A record to fill in, which ignores everything if we are
+     * disabled.
+     */
+    public Record connect (String mech)
+    {
+        if (out == null)
+            return DISABLED;
+        var rec = begin(CONNECT);
+        rec.mech = Math.max(MECHS.indexOf(mech), 0);
+        return rec;
+    }
+
+    /** Starts recording an ACL load.
+     *
+     * @param principal The principal whose ACL is loading.
+     * @return A record to fill in.
+     */
+    public Record aclLoad (String principal)
+    {
+        if (out == null)
+            return DISABLED;
+        return begin(ACL_LOAD).principal(principal);
+    }
+
+    private Record begin (int type)
+    {
+        var rec = new Record(this, type);
+        rec.start = System.nanoTime();
+        rec.time = (rec.start - base) / 1000;
+        return rec;
+    }
+
+    /* A truncated salted SHA-256. */
+    private long hash (String principal)
+    {
+        try {
+            var md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            var digest = md.digest(principal.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized void write (Record rec)
+    {
+        if (out == null)
+            return;
+        try {
+            out.writeByte(rec.type);
+            writeVarLong(out, rec.time);
+            out.writeLong(rec.principal);
+            if (rec.type == CONNECT) {
+                out.writeByte(rec.mech);
+                out.writeByte(rec.result);
+            }
+            writeVarLong(out, rec.duration);
+
+            int mask = 0;
+            for (int i = 0; i < rec.stages.length; i++)
+                if (rec.stages[i] >= 0)
+                    mask |= 1 << i;
+            out.writeByte(mask);
+            for (int i = 0; i < rec.stages.length; i++) {
+                if (rec.stages[i] < 0)
+                    continue;
+                out.writeByte(rec.outcomes[i]);
+                writeVarLong(out, rec.stages[i]);
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Reads a trace file.
+     *
+     * Record times are converted to microseconds since the epoch. A
+     * record cut short at the end of the file is ignored.
+     *
+     * @param file The trace file.
+     * @return The records, in the order written.
+     */
+    public static List<Record> read (Path file)
+        throws IOException
+    {
+        var rv = new ArrayList<Record>();
+
+        try (var ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            var in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            long epoch = -1;
+
+            while (in.hasRemaining()) {
+                int type = in.get();
+                try {
+                    if (type == HEADER) {
+                        if (in.getInt() != MAGIC || in.get() != FORMAT)
+                            throw new IOException("Bad auth trace format");
+                        epoch = in.getLong() * 1000;
+                        continue;
+                    }
+                    if (epoch < 0 || (type != CONNECT && type != ACL_LOAD))
+                        throw new IOException("Corrupt auth trace");
+
+                    var rec = new Record(null, type);
+                    rec.time = epoch + readVarLong(in);
+                    rec.principal = in.getLong();
+                    if (type == CONNECT) {
+                        rec.mech = in.get();
+                        rec.result = in.get();
+                    }
+                    rec.duration = readVarLong(in);
+                    int mask = in.get();
+                    for (int i = 0; i < rec.stages.length; i++) {
+                        if ((mask & (1 << i)) == 0)
+                            continue;
+                        rec.outcomes[i] = in.get();
+                        rec.stages[i] = readVarLong(in);
+                    }
+                    rv.add(rec);
+                }
+                catch (BufferUnderflowException e) {
+                    break;
+                }
+            }
+        }
+        return rv;
+    }
+
+    static void writeVarLong (DataOutputStream out, long v)
+        throws IOException
+    {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int)(v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    static long readVarLong (ByteBuffer in)
+    {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.get();
+            v |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.slf4j.LoggerFactory;
 import io.reactivex.rxjava3.core.*;
 
 import com.hivemq.extension.sdk.api.async.*;
+import com.hivemq.extension.sdk.api.client.parameter.ConnectionAttributeStore;
 import com.hivemq.extension.sdk.api.client.parameter.Listener;
 import com.hivemq.extension.sdk.api.annotations.NotNull;
 import com.hivemq.extension.sdk.api.auth.EnhancedAuthenticator;
@@ -32,22 +33,49 @@ import com.hivemq.extension.sdk.api.auth.parameter.*;
 import com.hivemq.extension.sdk.api.packets.auth.*;
 import com.hivemq.extension.sdk.api.packets.connect.*;
 import com.hivemq.extension.sdk.api.packets.general.*;
-import com.hivemq.extension.sdk.api.services.Services;
+
+import com.codahale.metrics.Timer;
 
 import uk.co.amrc.factoryplus.Attempt;
+import uk.co.amrc.factoryplus.jfr.FPEvent;
+import uk.co.amrc.factoryplus.jfr.GssapiAuthEvent;
+import uk.co.amrc.factoryplus.jfr.PasswordAuthEvent;
+
+import uk.co.amrc.factoryplus.hivemq_auth_krb.AuthTracer.Stage;
 
 public class FPKrbAuth implements EnhancedAuthenticator {
 
     private static final @NotNull Logger log = LoggerFactory.getLogger(FPKrbAuth.class);
 
+    /* How long the client gets to authenticate. */
+    static final Duration AUTH_TIMEOUT = Duration.ofSeconds(10);
+    static final int GSSAPI_WEIGHT = 1;
+
     private FPKrbAuthProvider provider;
+    /* One authenticator handles one CONNECT. */
+    private AuthTracer.Record trace;
+    private long started;
+    private String clientId;
+    private ConnectionAttributeStore connection;
+    private String principal;
+    private MqttAcl acl;
+
+    /* Thrown when a principal is over its rate limit. */
+    static class RateLimited extends Exception {
+        public RateLimited (String principal)
+        {
+            super("Rate limit exceeded for " + principal);
+        }
+    }
 
     static class AuthResult {
+        public String principal;
         public byte[] gssToken;
-        public List<TopicPermission> acl;
+        public MqttAcl acl;
 
-        public AuthResult (byte[] tok, List<TopicPermission> acl)
+        public AuthResult (String principal, byte[] tok, MqttAcl acl)
         {
+            this.principal = principal;
             this.gssToken = tok;
             this.acl = acl;
         }
@@ -55,17 +83,9 @@ public class FPKrbAuth implements EnhancedAuthenticator {
         public void applyACL (EnhancedAuthOutput output)
         {
             ModifiableDefaultPermissions perms = output.getDefaultPermissions();
-            perms.addAll(acl);
+            perms.addAll(acl.permissions());
             perms.setDefaultBehaviour(DefaultAuthorizationBehaviour.DENY);
         }
-
-        public List<String> showACL ()
-        {
-            return acl.stream()
-                .map(ace -> String.format("%s(%s)", 
-                    ace.getActivity(), ace.getTopicFilter()))
-                .collect(Collectors.toList());
-        }
     }
 
     public FPKrbAuth (FPKrbAuthProvider prov)
@@ -76,25 +96,79 @@ public class FPKrbAuth implements EnhancedAuthenticator {
     @Override
     public void onConnect (EnhancedAuthConnectInput input, EnhancedAuthOutput output)
     {
+        started = System.nanoTime();
         final ConnectPacket conn = input.getConnectPacket();
+        final String clientId = input.getClientInformation().getClientId();
+        this.clientId = clientId;
+        connection = input.getConnectionInformation()
+            .getConnectionAttributeStore();
 
         String mech = conn.getAuthenticationMethod().orElse(null);
 
-        log.info("CONNECT mech {}", mech);
+        log.debug("CONNECT mech {}", mech);
+
+        /* Check these before we do any GSS or HTTP work. */
+        var label = mechLabel(mech);
+        trace = provider.tracer().connect(label);
+        var addr = input.getConnectionInformation().getInetAddress();
+        if (addr.isPresent() && !provider.addressLimit().tryAcquire(addr.get())) {
+            rateLimited(label, output);
+            return;
+        }
+        /* Each attempt is charged to one identity. Password attempts
+         * are limited by username here; GSSAPI attempts by the
+         * authenticated principal, once we know it. */
+        var user = conn.getUserName();
+        if (mech == null && user.isPresent()
+                && !provider.principalLimit().tryAcquire(user.get())) {
+            rateLimited(label, output);
+            return;
+        }
 
         if (mech == null) {
-            auth_none(conn, output);
+            auth_none(clientId, conn, output);
             return;
         }
         if (mech.equals("GSSAPI")) {
-            auth_gssapi(conn, output);
+            auth_gssapi(clientId, conn, output);
             return;
         }
 
         log.info("Unknown auth mech {}", mech);
+        outcome(label, "failure");
         output.failAuthentication();
     }
 
+    /* Mechanism names for metrics. */
+    private static final String PASSWORD = "password";
+    private static final String GSSAPI = "gssapi";
+
+    private static String mechLabel (String mech)
+    {
+        if (mech == null) return PASSWORD;
+        if (mech.equals("GSSAPI")) return GSSAPI;
+        return "other";
+    }
+
+    private void outcome (String mech, String result)
+    {
+        provider.metrics().counter("auth", mech, result).inc();
+        trace.finish(result);
+        provider.eventLog().record(mech, result, clientId, principal, acl,
+            since(started));
+    }
+
+    private void succeeded (AuthResult rv)
+    {
+        principal = rv.principal;
+        acl = rv.acl;
+    }
+
+    private static long since (long start)
+    {
+        return System.nanoTime() - start;
+    }
+
     @Override
     public void onAuth (EnhancedAuthInput input, EnhancedAuthOutput output)
     {
@@ -103,11 +177,13 @@ public class FPKrbAuth implements EnhancedAuthenticator {
         return;
     }
 
-    private void auth_gssapi (ConnectPacket conn, EnhancedAuthOutput output)
+    private void auth_gssapi (String clientId, ConnectPacket conn,
+        EnhancedAuthOutput output)
     {
         ByteBuffer in_bb = conn.getAuthenticationData().orElse(null);
         if (in_bb == null) {
             log.error("No GSS step data provided");
+            outcome(GSSAPI, "failure");
             output.failAuthentication();
             return;
         }
@@ -115,30 +191,98 @@ public class FPKrbAuth implements EnhancedAuthenticator {
         byte[] in_buf = new byte[in_bb.limit()];
         in_bb.get(in_buf);
 
+        final long queued = System.nanoTime();
+        final var ticket = provider.admission().enter(GSSAPI_WEIGHT);
+        if (ticket == null) {
+            busy(GSSAPI, output);
+            return;
+        }
+
         final Async<EnhancedAuthOutput> asyncOutput = output.async(
-            Duration.ofSeconds(10), TimeoutFallback.FAILURE,
+            AUTH_TIMEOUT, TimeoutFallback.FAILURE,
             DisconnectedReasonCode.SERVER_BUSY);
 
-        verify_gssapi(in_buf)
-            .doAfterTerminate(() -> asyncOutput.resume())
-            .subscribe(
-                rv -> {
-                    rv.applyACL(output);
-                    output.authenticateSuccessfully(rv.gssToken);
-                },
-                e -> {
-                    log.error("GSSAPI auth failed", e);
-                    output.failAuthentication();
-                });
+        /* If we are admitted straight away, run on this thread as
+         * before. Accepting a GSS token doesn't block. */
+        ticket.start(Runnable::run, () -> {
+            trace.stage(Stage.ADMISSION, AuthTracer.OK, since(queued));
+            if (asyncOutput.getStatus() == Async.Status.CANCELED) {
+                ticket.cancel();
+                outcome(GSSAPI, "timeout");
+                return;
+            }
+            verify_gssapi(in_buf, true)
+                .doAfterTerminate(() -> {
+                    ticket.release();
+                    asyncOutput.resume();
+                })
+                .subscribe(
+                    rv -> {
+                        if (abandoned(asyncOutput, GSSAPI))
+                            return;
+                        rv.applyACL(output);
+                        provider.aclRefresher().register(connection,
+                            clientId, rv.principal, rv.acl);
+                        succeeded(rv);
+                        outcome(GSSAPI, "success");
+                        output.authenticateSuccessfully(rv.gssToken);
+                    },
+                    e -> {
+                        if (abandoned(asyncOutput, GSSAPI))
+                            return;
+                        if (e instanceof RateLimited) {
+                            rateLimited(GSSAPI, output);
+                            return;
+                        }
+                        log.error("GSSAPI auth failed", e);
+                        outcome(GSSAPI, "failure");
+                        output.failAuthentication();
+                    });
+        });
+    }
+
+    /* A result may arrive after the broker has timed us out. Then the
+     * output is dead: we mustn't apply or register anything. */
+    private boolean abandoned (Async<EnhancedAuthOutput> async, String mech)
+    {
+        switch (async.getStatus()) {
+            case CANCELED:
+                log.warn("Timeout authenticating {}", clientId);
+                outcome(mech, "timeout");
+                return true;
+            case DONE:
+                log.error("Trying to return duplicate result for {}",
+                    clientId);
+                return true;
+        }
+        return false;
+    }
+
+    private void rateLimited (String mech, EnhancedAuthOutput output)
+    {
+        outcome(mech, "rate-limited");
+        output.failAuthentication(
+            DisconnectedReasonCode.CONNECTION_RATE_EXCEEDED,
+            "Connection rate exceeded");
     }
 
-    private void auth_none (ConnectPacket conn, EnhancedAuthOutput output)
+    private void busy (String mech, EnhancedAuthOutput output)
+    {
+        log.warn("Too much authentication work queued, refusing CONNECT");
+        outcome(mech, "busy");
+        output.failAuthentication(DisconnectedReasonCode.SERVER_BUSY,
+            "Server busy");
+    }
+
+    private void auth_none (String clientId, ConnectPacket conn,
+        EnhancedAuthOutput output)
     {
         String user = conn.getUserName().orElse(null);
         ByteBuffer passwd = conn.getPassword().orElse(null);
 
         if (user == null || passwd == null) {
             log.error("Null username/password, failing auth");
+            outcome(PASSWORD, "failure");
             output.failAuthentication();
             return;
         }
@@ -148,56 +292,110 @@ public class FPKrbAuth implements EnhancedAuthenticator {
         char[] passwd_buf = new char[passwd_c.limit()];
         passwd_c.get(passwd_buf);
 
+        principal = user;
+        trace.principal(user);
+
+        final long queued = System.nanoTime();
+        final var ticket = provider.admission()
+            .enter(provider.passwordWeight());
+        if (ticket == null) {
+            busy(PASSWORD, output);
+            return;
+        }
+
         final Async<EnhancedAuthOutput> asyncOutput = output.async(
-            Duration.ofSeconds(10), TimeoutFallback.FAILURE,
+            AUTH_TIMEOUT, TimeoutFallback.FAILURE,
             DisconnectedReasonCode.SERVER_BUSY);
 
-        Services.extensionExecutorService().submit(() -> {
-            /* We need to get and verify a service ticket, to protect
-             * against a spoofed KDC. The only striaghtforward way to do
-             * this is just to do the whole GSSAPI dance on the client's
-             * behalf. */
-            var buf = get_client_gss_proxy(user, passwd_buf);
-            if (buf.isError()) {
-                log.error("Password authentication failed for {}", 
-                    user.toString(), buf.getError());
-                output.failAuthentication();
-                asyncOutput.resume();
+        ticket.start(provider.executor(), () -> {
+            trace.stage(Stage.ADMISSION, AuthTracer.OK, since(queued));
+            if (asyncOutput.getStatus() == Async.Status.CANCELED) {
+                ticket.cancel();
+                outcome(PASSWORD, "timeout");
                 return;
             }
-            verify_gssapi(buf.get())
+
+            var passwords = provider.passwordCache();
+            var cached = passwords.check(user, passwd_buf);
+            cached
+                .map(princ -> {
+                    trace.principal(princ)
+                        .stage(Stage.KDC, AuthTracer.CACHED, 0);
+                    return provider.getACLforPrincipal(princ)
+                        .compose(trace.timed(Stage.ACL))
+                        .doOnSuccess(acl -> provider.metrics()
+                            .counter("auth", PASSWORD, "cached").inc())
+                        .map(acl -> new AuthResult(princ, null, acl));
+                })
+                .orElseGet(() -> verify_password(user, passwd_buf)
+                    .doOnSuccess(rv -> 
+                        passwords.add(user, passwd_buf, rv.principal))
+                    .doOnError(e -> passwords.remove(user)))
+                .compose(FPEvent.<PasswordAuthEvent, AuthResult>timed(
+                    PasswordAuthEvent.class, PasswordAuthEvent::new, (ev, rv) -> {
+                        ev.principal = FPEvent.hash(user);
+                        ev.cacheStatus = cached.isPresent() ? "hit" : "miss";
+                    }))
                 .map(rv -> Optional.of(rv))
                 .onErrorReturnItem(Optional.<AuthResult>empty())
+                .doAfterTerminate(() -> ticket.release())
                 .subscribe(opt -> {
-                    switch (asyncOutput.getStatus()) {
-                        case CANCELED:
-                            log.warn("Timeout authenticating {}",
-                                user.toString());
-                            return;
-                        case DONE:
-                            log.error("Trying to return duplicate result for {}",
-                                user.toString());
-                            return;
-                    }
+                    if (abandoned(asyncOutput, PASSWORD))
+                        return;
                     opt.ifPresentOrElse(
                         rv -> {
                             rv.applyACL(output);
+                            provider.aclRefresher().register(connection,
+                                clientId, rv.principal, rv.acl);
+                            succeeded(rv);
+                            outcome(PASSWORD, "success");
                             output.authenticateSuccessfully();
                         },
-                        () -> output.failAuthentication());
+                        () -> {
+                            outcome(PASSWORD, "failure");
+                            output.failAuthentication();
+                        });
                     asyncOutput.resume();
                 });
         });
     }
 
+    private Single<AuthResult> verify_password (String user, char[] passwd_buf)
+    {
+        /* We need to get and verify a service ticket, to protect
+         * against a spoofed KDC. The only striaghtforward way to do
+         * this is just to do the whole GSSAPI dance on the client's
+         * behalf. */
+        return get_client_gss_proxy(user, passwd_buf)
+            .toSingle()
+            .doOnError(e -> log.error("Password authentication failed for {}", 
+                user.toString(), e))
+            .flatMap(buf -> verify_gssapi(buf, false));
+    }
+
     private Attempt<byte[]> get_client_gss_proxy (
         String user, char[] passwd_buf)
     {
-        return provider.createProxyContext(user, passwd_buf)
-            .map(ctx -> ctx.initSecContext(new byte[0], 0, 0));
+        /* This is where we talk to the KDC. */
+        final long start = System.nanoTime();
+        final Timer.Context timer = provider.metrics()
+            .timer("auth.kdc.login").time();
+        try {
+            var rv = provider.createProxyContext(user, passwd_buf)
+                .map(ctx -> ctx.initSecContext(new byte[0], 0, 0));
+            trace.stage(Stage.KDC,
+                rv.isError() ? AuthTracer.ERROR : AuthTracer.OK, since(start));
+            return rv;
+        }
+        finally {
+            timer.stop();
+        }
     }
 
-    private Single<AuthResult> verify_gssapi (byte[] in_buf)
+    /* If limit is set, the authenticated principal is checked against
+     * the rate limit before we fetch its ACL. Password logins have
+     * already been checked by username. */
+    private Single<AuthResult> verify_gssapi (byte[] in_buf, boolean limit)
     {
         return provider.createServerContext()
             .toSingle()
@@ -207,7 +405,21 @@ public class FPKrbAuth implements EnhancedAuthenticator {
                  * trying to connect and what endpoint they were trying to
                  * connect to. But get{Src,Targ}Name can't be called until
                  * the context is established, so we can't. Grrr. */
-                var out_buf = ctx.acceptSecContext(in_buf, 0, in_buf.length);
+                byte[] out_buf;
+                final long start = System.nanoTime();
+                final Timer.Context timer = provider.metrics()
+                    .timer("auth.gss.accept").time();
+                try {
+                    out_buf = ctx.acceptSecContext(in_buf, 0, in_buf.length);
+                }
+                catch (GSSException e) {
+                    trace.stage(Stage.GSS, AuthTracer.ERROR, since(start));
+                    throw e;
+                }
+                finally {
+                    timer.stop();
+                }
+                trace.stage(Stage.GSS, AuthTracer.OK, since(start));
 
                 /* We could handle this case, but I don't think with the
                  * Kerberos mech there is ever any need. */
@@ -216,11 +428,21 @@ public class FPKrbAuth implements EnhancedAuthenticator {
                         new Exception("GSS login took more than one step!"));
 
                 String client_name = ctx.getSrcName().toString();
-                log.info("Authenticated client {}", client_name);
+                log.debug("Authenticated client {}", client_name);
+                principal = client_name;
+                trace.principal(client_name);
+                if (limit && !provider.principalLimit().tryAcquire(client_name))
+                    return Single.<AuthResult>error(new RateLimited(client_name));
+
                 return provider.getACLforPrincipal(client_name)
-                    .map(acl -> new AuthResult(out_buf, acl))
-                    .doOnSuccess(rv -> log.info("MQTT ACL [{}]: {}", 
-                        client_name, rv.showACL()));
-            });
+                    .compose(trace.timed(Stage.ACL))
+                    .map(acl -> new AuthResult(client_name, out_buf, acl));
+            })
+            .compose(FPEvent.<GssapiAuthEvent, AuthResult>timed(
+                GssapiAuthEvent.class, GssapiAuthEvent::new, (ev, rv) -> {
+                    ev.proxied = !limit;
+                    if (rv != null)
+                        ev.principal = FPEvent.hash(rv.principal);
+                }));
     }
 }
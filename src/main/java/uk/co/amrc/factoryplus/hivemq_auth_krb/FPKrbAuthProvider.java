@@ -5,13 +5,22 @@
 
 package uk.co.amrc.factoryplus.hivemq_auth_krb;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
 import java.security.PrivilegedAction;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.ServiceConfigurationError;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 import java.util.stream.Collectors;
 
@@ -25,7 +34,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.ietf.jgss.*;
-import org.json.*;
 import org.apache.hc.core5.net.URIBuilder;
 
 import io.reactivex.rxjava3.core.*;
@@ -41,6 +49,8 @@ import com.hivemq.extension.sdk.api.auth.parameter.*;
 import com.hivemq.extension.sdk.api.services.Services;
 import com.hivemq.extension.sdk.api.services.builder.Builders;
 
+import static uk.co.amrc.factoryplus.hivemq_auth_krb.FPKrbAuth.AUTH_TIMEOUT;
+
 public class FPKrbAuthProvider implements EnhancedAuthenticatorProvider
 {
     private static final Logger log = LoggerFactory.getLogger(FPKrbAuth.class);
@@ -49,19 +59,161 @@ public class FPKrbAuthProvider implements EnhancedAuthenticatorProvider
         "a637134a-d06b-41e7-ad86-4bf62fde914a");
     private static final UUID TEMPLATE_UUID = UUID.fromString(
         "1266ddf1-156c-4266-9808-d6949418b185");
-    private static final UUID ADDR_UUID = UUID.fromString(
-        "8e32801b-f35a-4cbf-a5c3-2af64d3debd7");
 
     private FPServiceClient fplus;
+    private ScheduledExecutorService executor;
+    private RequestCache<String, MqttAcl> acls;
+    private PasswordCache passwords;
+    private AdmissionController admission;
+    private int passwordWeight;
+    private RateLimiter<InetAddress> addressLimit;
+    private RateLimiter<String> principalLimit;
+    /* Compiled templates by permission UUID. There are only ever a
+     * handful of permissions, so this is not bounded. */
+    private ConcurrentHashMap<UUID, MqttTemplate> templates;
+    private int fetchConcurrency;
+    private AclRefresher refresher;
+    private AclSnapshot snapshot;
+    private AuthTracer tracer;
+    private AuthEventLog eventLog;
+    private StatsPublisher stats;
 
     public FPKrbAuthProvider ()
     {
-        fplus = new FPServiceClient();
+        this(brokerClient(), Services.extensionExecutorService());
+    }
+
+    /** Creates a provider outside the broker.
+     *
+     * This allows the provider to be driven by benchmarks and tests.
+     *
+     * @param fplus The service client to use.
+     * @param executor The executor to use for background work.
+     */
+    FPKrbAuthProvider (FPServiceClient fplus,
+        ScheduledExecutorService executor)
+    {
+        this.fplus = fplus;
+        this.executor = executor;
+        var metrics = fplus.metrics();
+
+        /* Cache finished ACLs by principal. Concurrent CONNECTs for the
+         * same principal will share a single lookup. If ACL_MAX_STALE
+         * is set, an expired ACL is still served (without waiting) for
+         * that long while it is refreshed, including when the Auth
+         * service or ConfigDB are failing. Failed lookups are cached
+         * too, so a client retrying in a loop doesn't reach the
+         * services every time: a 4xx won't fix itself soon, a 5xx or
+         * a network error may. Anything else is more likely transient,
+         * or our own bug, than the client's fault, so is kept as long
+         * as a 5xx. Repeated failures back off, doubling up to
+         * ACL_FAILURE_MAX_TTL. */
+        var clientErr = Duration.ofSeconds(fplus.getIntConf("acl_failure_ttl_4xx", 10));
+        var serverErr = Duration.ofSeconds(fplus.getIntConf("acl_failure_ttl_5xx", 2));
+        var netErr = Duration.ofSeconds(fplus.getIntConf("acl_failure_ttl_network", 1));
+        acls = new RequestCache<String, MqttAcl>(this::resolveACL)
+            .withTTL(Duration.ofSeconds(fplus.getIntConf("acl_cache_ttl", 60)))
+            .withMaxStale(Duration.ofSeconds(fplus.getIntConf("acl_max_stale", 0)))
+            .withFailureTTL(err -> {
+                    if (err instanceof IOException
+                            || err instanceof TimeoutException)
+                        return netErr;
+                    if (!(err instanceof FPServiceException))
+                        return serverErr;
+                    int status = ((FPServiceException)err).getStatus();
+                    return status >= 400 && status < 500 ? clientErr : serverErr;
+                },
+                Duration.ofSeconds(fplus.getIntConf("acl_failure_max_ttl", 60)))
+            .withMaxSize(fplus.getIntConf("acl_cache_size", 10000))
+            .withMetrics(metrics, "acl.cache");
+
+        /* Off unless PASSWORD_CACHE_TTL is set. */
+        passwords = new PasswordCache(
+            Duration.ofSeconds(fplus.getIntConf("password_cache_ttl", 0)),
+            fplus.getIntConf("password_cache_size", 1000),
+            fplus.getIntConf("password_cache_iterations", 10000));
+
+        /* A GSSAPI attempt costs 1 unit; a password attempt costs
+         * more, as it also has to log in to the KDC. */
+        passwordWeight = fplus.getIntConf("auth_password_weight", 4);
+        admission = new AdmissionController(
+            fplus.getIntConf("auth_max_concurrent", 64),
+            fplus.getIntConf("auth_max_queue", 1000),
+            AUTH_TIMEOUT, executor);
+        metrics.gauge(admission::inUse, "auth.admission.in-use");
+        metrics.gauge(admission::queueLength, "auth.admission.queued");
+        metrics.gauge(admission::rejectedCount, "auth.admission.rejected");
+
+        /* Rate limits on CONNECT attempts, per source address and per
+         * username/principal. Off unless a rate is configured. */
+        int maxKeys = fplus.getIntConf("rate_limit_max_keys", 100000);
+        addressLimit = new RateLimiter<InetAddress>("address",
+            fplus.getIntConf("rate_limit_address_per_min", 0),
+            fplus.getIntConf("rate_limit_address_burst", 20),
+            maxKeys);
+        principalLimit = new RateLimiter<String>("principal",
+            fplus.getIntConf("rate_limit_principal_per_min", 0),
+            fplus.getIntConf("rate_limit_principal_burst", 5),
+            maxKeys);
+        metrics.gauge(addressLimit::rejectedCount, "auth.rate-limit.address.rejected");
+        metrics.gauge(principalLimit::rejectedCount, "auth.rate-limit.principal.rejected");
+
+        templates = new ConcurrentHashMap<UUID, MqttTemplate>();
+        fetchConcurrency = fplus.getIntConf("acl_fetch_concurrency", 8);
+
+        /* Off unless ACL_REFRESH_INTERVAL is set. */
+        refresher = new AclRefresher(this,
+            Duration.ofSeconds(fplus.getIntConf("acl_refresh_interval", 0)),
+            fetchConcurrency);
+        metrics.gauge(refresher::size, "acl.sessions");
+        metrics.gauge(MqttAcl::retainedCount, "acl.retained");
+
+        /* Off unless ACL_SNAPSHOT_FILE is set. Restore now, so the
+         * snapshot is in place before the first CONNECT. */
+        snapshot = new AclSnapshot(
+            fplus.getOptionalConf("acl_snapshot_file")
+                .map(Path::of).orElse(null),
+            Duration.ofSeconds(fplus.getIntConf("acl_snapshot_interval", 300)));
+        snapshot.load(acls, templates);
+
+        /* Off unless AUTH_TRACE_FILE is set. */
+        tracer = new AuthTracer(
+            fplus.getOptionalConf("auth_trace_file")
+                .map(Path::of).orElse(null));
+
+        /* One line per CONNECT, logged in the background. AUTH_LOG is
+         * failures (the default, so a busy broker doesn't flood its
+         * log), all or off; AUTH_LOG_SAMPLE logs one success in N;
+         * principals in AUTH_LOG_TRACE are always logged, with ACL. */
+        eventLog = new AuthEventLog(
+            fplus.getOptionalConf("auth_log")
+                .map(AuthEventLog::level)
+                .orElse(AuthEventLog.Level.FAILURES),
+            fplus.getIntConf("auth_log_sample", 1),
+            fplus.getOptionalConf("auth_log_trace")
+                .map(AuthEventLog::principals)
+                .orElse(Set.of()),
+            fplus.getIntConf("auth_log_buffer", 4096));
+        metrics.gauge(eventLog::droppedCount, "auth.log.dropped");
+
+        /* Off unless STATS_INTERVAL is set. */
+        stats = new StatsPublisher(metrics,
+            Duration.ofSeconds(fplus.getIntConf("stats_interval", 0)),
+            fplus.getOptionalConf("stats_topic")
+                .orElse(StatsPublisher.DEFAULT_TOPIC));
     }
 
     public FPKrbAuthProvider start ()
     {
-        fplus.http().start();
+        var http = fplus.http();
+        http.start();
+
+        /* With HTTP/2, open the connections the first CONNECTs will
+         * need now, rather than while a client waits. */
+        if (http.isHttp2())
+            http.preconnect(Set.of(FPUuid.Service.Authentication,
+                    FPUuid.Service.ConfigDB))
+                .subscribe(() -> log.info("Preconnected to services"));
 
          var url = fplus.getUriConf("mqtt_url");
 
@@ -77,9 +229,30 @@ public class FPKrbAuthProvider implements EnhancedAuthenticatorProvider
                 e -> log.error("Failed to register service: {}", 
                     e.toString()));
 
+        addressLimit.start(executor);
+        principalLimit.start(executor);
+        refresher.start(executor);
+        snapshot.start(executor, acls, templates);
+        tracer.start(executor);
+        eventLog.start(executor);
+        stats.start(executor);
+
         return this;
     }
 
+    private static FPServiceClient brokerClient ()
+    {
+        var fplus = new FPServiceClient();
+        fplus.setMetricRegistry(Services.metricRegistry());
+        return fplus;
+    }
+
+    public void stop ()
+    {
+        snapshot.save(acls, templates);
+        tracer.stop();
+    }
+
     @Override
     public EnhancedAuthenticator getEnhancedAuthenticator (final AuthenticatorProviderInput input)
     {
@@ -91,6 +264,17 @@ public class FPKrbAuthProvider implements EnhancedAuthenticatorProvider
         return fplus.gssServer().createContext();
     }
 
+    PasswordCache passwordCache () { return passwords; }
+    AdmissionController admission () { return admission; }
+    int passwordWeight () { return passwordWeight; }
+    RateLimiter<InetAddress> addressLimit () { return addressLimit; }
+    RateLimiter<String> principalLimit () { return principalLimit; }
+    AclRefresher aclRefresher () { return refresher; }
+    FPMetrics metrics () { return fplus.metrics(); }
+    ScheduledExecutorService executor () { return executor; }
+    AuthTracer tracer () { return tracer; }
+    AuthEventLog eventLog () { return eventLog; }
+
     public Attempt<GSSContext> createProxyContext (String user, char[] passwd)
     {
         String srv = fplus.getConf("server_principal");
@@ -99,37 +283,116 @@ public class FPKrbAuthProvider implements EnhancedAuthenticatorProvider
             .createContext(srv);
     }
 
-    public Single<List<TopicPermission>> getACLforPrincipal (String principal)
+    public Single<MqttAcl> getACLforPrincipal (String principal)
+    {
+        return acls.get(principal);
+    }
+
+    /** Re-resolves an ACL, bypassing the cache.
+     *
+     * The cache is updated with the result.
+     *
+     * @param principal The principal.
+     * @return The current ACL.
+     */
+    Single<MqttAcl> refreshACL (String principal)
     {
-        class TemplateUse {
-            public Map<String, Object> template;
-            public UUID target;
+        return resolveACL(principal)
+            .doOnSuccess(acl -> acls.put(principal, acl));
+    }
 
-            public TemplateUse (JSONObject tmpl, String targ)
-            {
-                this.template = tmpl.toMap();
-                this.target = UUID.fromString(targ);
-            }
-        }
+    public RequestCache.Stats aclCacheStats ()
+    {
+        return acls.stats();
+    }
 
-        return fplus.auth().getACL(principal, PERMGRP_UUID)
-            .flatMapObservable(Observable::fromStream)
-            .flatMapSingle(ace -> {
-                String perm = (String)ace.get("permission");
-                String targid = (String)ace.get("target");
+    /* ACL resolution runs as a plan: collect the distinct permissions
+     * granted, fetch each template once, collect the distinct targets
+     * those templates need, fetch each address once, then assemble.
+     * Fetches run with limited concurrency. */
+    private Single<MqttAcl> resolveACL (String principal)
+    {
+        var trace = tracer.aclLoad(principal);
 
-                return fplus.configdb()
-                    .getConfig(TEMPLATE_UUID, UUID.fromString(perm))
-                    .map(tmpl -> new TemplateUse(tmpl, targid));
-            })
-            .flatMapStream(ace -> {
-                Single<JSONObject> target = fplus.configdb()
-                    .getConfig(ADDR_UUID, ace.target);
-                return ace.template.entrySet().stream()
-                    .map(e -> MqttAce.expandEntry(e, target));
+        return fplus.auth().getACLEntries(principal, PERMGRP_UUID)
+            .map(aces -> aces.collect(Collectors.toList()))
+            .compose(trace.timed(AuthTracer.Stage.AUTH))
+            .flatMap(grants -> {
+                var perms = grants.stream()
+                    .map(AclEntry::getPermission)
+                    .collect(Collectors.toSet());
+
+                return fetchAll(perms, id -> getTemplate(id)
+                        .compose(trace.timed(AuthTracer.Stage.CONFIGDB)))
+                    .flatMap(tmpls -> {
+                        var targets = grants.stream()
+                            .filter(g -> tmpls.get(g.getPermission()).needsTarget())
+                            .map(AclEntry::getTarget)
+                            .collect(Collectors.toSet());
+
+                        return fetchAll(targets, id -> getAddress(id)
+                                .compose(trace.timed(AuthTracer.Stage.CONFIGDB)))
+                            .map(addrs -> assembleACL(grants, tmpls, addrs));
+                    });
             })
-            .flatMap(Observable::fromMaybe)
-            .map(m_ace -> m_ace.toTopicPermission())
-            .collect(Collectors.toList());
+            .doOnSuccess(acl -> trace.finish("success"))
+            .doOnError(e -> trace.finish("failure"))
+            .compose(fplus.metrics().timed("acl.fetch"));
+    }
+
+    private <T> Single<Map<UUID, T>> fetchAll (Set<UUID> ids,
+        io.reactivex.rxjava3.functions.Function<UUID, Single<T>> fetch)
+    {
+        return Observable.fromIterable(ids)
+            .flatMap(id -> fetch.apply(id)
+                    .map(v -> Map.entry(id, v))
+                    .toObservable(),
+                fetchConcurrency)
+            .toMap(Map.Entry::getKey, Map.Entry::getValue);
+    }
+
+    private static MqttAcl assembleACL (List<AclEntry> grants,
+        Map<UUID, MqttTemplate> tmpls,
+        Map<UUID, Optional<SparkplugAddress>> addrs)
+    {
+        var aces = new ArrayList<MqttAce>();
+        for (var grant : grants) {
+            var tmpl = tmpls.get(grant.getPermission());
+            var addr = addrs.getOrDefault(grant.getTarget(), Optional.empty());
+            aces.addAll(addr.isPresent()
+                ? tmpl.expand(addr.get())
+                : tmpl.fixedEntries());
+        }
+        return MqttAcl.of(aces);
+    }
+
+    private Single<MqttTemplate> getTemplate (UUID perm)
+    {
+        return fplus.configdb()
+            .getConfigEntry(TEMPLATE_UUID, perm)
+            .map(entry -> {
+                var version = entry.getVersion();
+                var cached = templates.get(perm);
+                if (cached != null && version.isPresent()
+                        && version.equals(cached.getVersion()))
+                    return cached;
+
+                var tmpl = MqttTemplate.compile(entry.getValue(), version);
+                templates.put(perm, tmpl);
+                return tmpl;
+            });
+    }
+
+    private Single<Optional<SparkplugAddress>> getAddress (UUID target)
+    {
+        return fplus.configdb()
+            .getSparkplugAddress(target)
+            .map(Optional::of)
+            .onErrorResumeNext(err -> {
+                /* A target with no address only gets the fixed entries. */
+                if (FPServiceException.check(err, FPUuid.Service.ConfigDB, 404))
+                    return Single.just(Optional.<SparkplugAddress>empty());
+                return Single.<Optional<SparkplugAddress>>error(err);
+            });
     }
 }
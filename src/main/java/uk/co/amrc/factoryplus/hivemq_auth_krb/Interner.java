@@ -0,0 +1,68 @@
+/* Factory+ HiveMQ auth plugin.
+ * Weak canonicalising map.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Canonicalises equal values.
+ *
+ * This is like {@link String#intern()} for arbitrary immutable
+ * values. Canonical values are only weakly held, so an entry goes
+ * away once nothing else is using it, unless it has been explicitly
+ * held.
+ */
+class Interner<T> {
+    private final WeakHashMap<T, WeakReference<T>> canonical
+        = new WeakHashMap<T, WeakReference<T>>();
+    /* Canonical values held strongly, with their hold counts. */
+    private final ConcurrentHashMap<T, Integer> held
+        = new ConcurrentHashMap<T, Integer>();
+
+    /** Returns the canonical value equal to this one.
+     *
+     * If there is none, this value becomes canonical.
+     *
+     * @param value The value to look up.
+     * @return The canonical instance.
+     */
+    public synchronized T intern (T value)
+    {
+        var ref = canonical.get(value);
+        var existing = ref == null ? null : ref.get();
+        if (existing != null)
+            return existing;
+
+        canonical.put(value, new WeakReference<T>(value));
+        return value;
+    }
+
+    /** Keeps a canonical value alive until it is released.
+     *
+     * Holds are counted; the value is kept until each has been
+     * released.
+     *
+     * @param value A canonical value.
+     */
+    public void hold (T value)
+    {
+        held.merge(value, 1, Integer::sum);
+    }
+
+    /** Releases a hold on a canonical value.
+     *
+     * @param value A value passed to {@link #hold}.
+     */
+    public void release (T value)
+    {
+        held.computeIfPresent(value, (v, n) -> n == 1 ? null : n - 1);
+    }
+
+    public synchronized int size () { return canonical.size(); }
+
+    public int heldSize () { return held.size(); }
+}
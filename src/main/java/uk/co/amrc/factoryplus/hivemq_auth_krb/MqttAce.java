@@ -5,30 +5,18 @@
 
 package uk.co.amrc.factoryplus.hivemq_auth_krb;
 
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.regex.*;
-
-import org.json.*;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import io.reactivex.rxjava3.core.*;
+import java.util.Objects;
 
 import com.hivemq.extension.sdk.api.auth.parameter.*;
 import com.hivemq.extension.sdk.api.services.builder.Builders;
 
-import uk.co.amrc.factoryplus.*;
-
 class MqttAce {
-    private static final Logger log = LoggerFactory.getLogger(MqttAce.class);
-
-
     private String topic;
     private TopicPermission.MqttActivity activity;
+    /* Built on first use. A race here only costs a duplicate object. */
+    private TopicPermission permission;
 
-    private MqttAce (String t, TopicPermission.MqttActivity a)
+    MqttAce (String t, TopicPermission.MqttActivity a)
     {
         topic = t;
         activity = a;
@@ -37,69 +25,29 @@ class MqttAce {
     public String getTopic() { return topic; }
     public TopicPermission.MqttActivity getActivity() { return activity; }
 
-    private static TopicPermission.MqttActivity expandAccess (Object access)
-    {
-        if (access instanceof String) {
-            String rw = (String)access;
-            if (rw.contains("r")) {
-                if (rw.contains("w"))
-                    return TopicPermission.MqttActivity.ALL;
-                return TopicPermission.MqttActivity.SUBSCRIBE;
-            }
-            else {
-                if (rw.contains("w"))
-                    return TopicPermission.MqttActivity.PUBLISH;
-            }
-        }
-        return null;
-    }
-
-    private static final Pattern TEMPLATES = Pattern.compile("%[gn]");
-    
-    private static String expandTemplate (MatchResult match, JSONObject target)
+    public TopicPermission toTopicPermission ()
     {
-        String rv = null;
-        switch (match.group()) {
-            case "%n":
-                rv = target.getString("node_id");
-                break;
-            case "%g":
-                rv = target.getString("group_id");
-                break;
-        }
-        return Matcher.quoteReplacement(rv);
+        if (permission == null)
+            permission = Builders.topicPermission()
+                .activity(getActivity())
+                .topicFilter(getTopic())
+                .type(TopicPermission.PermissionType.ALLOW)
+                .build();
+        return permission;
     }
 
-    public static Maybe<MqttAce> expandEntry (Map.Entry entry,
-        Single<JSONObject> get_target)
+    public boolean equals (Object other)
     {
-        var activity = expandAccess(entry.getValue());
-        if (activity == null)
-            return Maybe.<MqttAce>empty();
-
-        String topic = (String)entry.getKey();
-        Matcher interp = TEMPLATES.matcher(topic);
-        if (!interp.find())
-            return Maybe.just(new MqttAce(topic, activity));
-
-        return get_target.toMaybe()
-            .map(target -> 
-                interp.replaceAll(match -> expandTemplate(match, target)))
-            .map(tp -> new MqttAce(tp, activity))
-            .onErrorResumeNext(err -> {
-                if (FPServiceException.check(err, FPUuid.Service.ConfigDB, 404))
-                    return Maybe.<MqttAce>empty();
-                return Maybe.<MqttAce>error(err);
-            });
+        if (this == other)
+            return true;
+        if (!(other instanceof MqttAce))
+            return false;
+        var ace = (MqttAce)other;
+        return activity == ace.activity && topic.equals(ace.topic);
     }
 
-    public TopicPermission toTopicPermission ()
+    public int hashCode ()
     {
-        return Builders.topicPermission()
-            .activity(getActivity())
-            .topicFilter(getTopic())
-            .type(TopicPermission.PermissionType.ALLOW)
-            .build();
+        return Objects.hash(topic, activity);
     }
 }
-
@@ -0,0 +1,111 @@
+/* Factory+ HiveMQ auth plugin.
+ * Shared immutable MQTT ACL.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.hivemq.extension.sdk.api.auth.parameter.TopicPermission;
+
+/** An immutable, interned MQTT ACL.
+ *
+ * Many principals have identical ACLs. ACLs are hash-consed: equal
+ * ACLs are the same object, and equal entries within them share a
+ * single MqttAce and TopicPermission. The canonical tables are weak,
+ * so memory use follows the number of distinct ACLs in use rather than
+ * the number of connections.
+ *
+ * HiveMQ copies the permissions into each session, so connected
+ * sessions don't keep their ACL alive by themselves. Once the ACL
+ * cache has dropped an ACL, later CONNECTs would build a duplicate.
+ * Sessions therefore hold the ACL they were given with {@link #retain}
+ * until they disconnect.
+ */
+class MqttAcl {
+    private static final Interner<MqttAce> ACES = new Interner<MqttAce>();
+    private static final Interner<MqttAcl> ACLS = new Interner<MqttAcl>();
+
+    /* A view of the entries, so the list costs nothing to build. */
+    private class Permissions extends AbstractList<TopicPermission>
+        implements RandomAccess
+    {
+        public TopicPermission get (int i) { return aces[i].toTopicPermission(); }
+        public int size () { return aces.length; }
+    }
+
+    private final MqttAce[] aces;
+    private final int hash;
+    private final List<TopicPermission> permissions;
+
+    private MqttAcl (MqttAce[] aces)
+    {
+        this.aces = aces;
+        this.hash = Arrays.hashCode(aces);
+        this.permissions = new Permissions();
+    }
+
+    /** Returns the canonical ACL for some entries.
+     *
+     * Duplicate entries are removed.
+     *
+     * @param entries The ACL entries, in order.
+     * @return The interned ACL.
+     */
+    public static MqttAcl of (Collection<MqttAce> entries)
+    {
+        var aces = new LinkedHashSet<MqttAce>(entries).stream()
+            .map(ACES::intern)
+            .toArray(MqttAce[]::new);
+        return ACLS.intern(new MqttAcl(aces));
+    }
+
+    /** The ACL as HiveMQ permissions.
+     *
+     * @return An unmodifiable list.
+     */
+    public List<TopicPermission> permissions () { return permissions; }
+
+    /** Keeps this ACL canonical while a session is using it.
+     *
+     * Each call must be matched by a call to {@link #release}. The ACL
+     * must have come from {@link #of}.
+     */
+    public void retain () { ACLS.hold(this); }
+
+    /** Releases a hold taken by {@link #retain}. */
+    public void release () { ACLS.release(this); }
+
+    /** @return The number of distinct ACLs held by sessions. */
+    public static int retainedCount () { return ACLS.heldSize(); }
+
+    public int size () { return aces.length; }
+
+    /** The entries of the ACL.
+     *
+     * @return An unmodifiable list.
+     */
+    public List<MqttAce> entries ()
+    {
+        return Collections.unmodifiableList(Arrays.asList(aces));
+    }
+
+    public boolean equals (Object other)
+    {
+        if (this == other)
+            return true;
+        if (!(other instanceof MqttAcl))
+            return false;
+        var acl = (MqttAcl)other;
+        return hash == acl.hash && Arrays.equals(aces, acl.aces);
+    }
+
+    public int hashCode () { return hash; }
+}
@@ -0,0 +1,234 @@
+/* Factory+ HiveMQ auth plugin.
+ * Compiled MQTT permission template.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.json.*;
+
+import com.hivemq.extension.sdk.api.auth.parameter.TopicPermission;
+
+import uk.co.amrc.factoryplus.SparkplugAddress;
+
+/** A permission template, compiled ready for expansion.
+ *
+ * A template maps MQTT topic filters to access modes. Topics may
+ * contain <code>%g</code> and <code>%n</code>, to be replaced with the
+ * Sparkplug group and node of the permission target. Templates are
+ * parsed once into literal segments and slots, so expanding one is
+ * just concatenation.
+ */
+class MqttTemplate {
+    private static final char GROUP = 'g';
+    private static final char NODE = 'n';
+
+    private static class Entry {
+        /* There is always one more literal than there are slots. */
+        final String[] literals;
+        final char[] slots;
+        final TopicPermission.MqttActivity activity;
+
+        Entry (String[] literals, char[] slots,
+            TopicPermission.MqttActivity activity)
+        {
+            this.literals = literals;
+            this.slots = slots;
+            this.activity = activity;
+        }
+
+        String expand (String group, String node)
+        {
+            var topic = new StringBuilder(literals[0]);
+            for (int i = 0; i < slots.length; i++) {
+                topic.append(slots[i] == GROUP ? group : node);
+                topic.append(literals[i + 1]);
+            }
+            return topic.toString();
+        }
+    }
+
+    private final Optional<String> version;
+    private final List<MqttAce> fixed;
+    private final List<Entry> templated;
+    private final boolean needsGroup, needsNode;
+
+    private MqttTemplate (Optional<String> version, List<MqttAce> fixed,
+        List<Entry> templated)
+    {
+        this.version = version;
+        this.fixed = fixed;
+        this.templated = templated;
+
+        boolean group = false, node = false;
+        for (var e : templated) {
+            for (char s : e.slots) {
+                if (s == GROUP) group = true;
+                else node = true;
+            }
+        }
+        this.needsGroup = group;
+        this.needsNode = node;
+    }
+
+    /** Compiles a template.
+     *
+     * Entries with an unrecognised access mode are dropped.
+     *
+     * @param tmpl The template from the ConfigDB.
+     * @param version The version of the template, if known.
+     * @return The compiled template.
+     */
+    public static MqttTemplate compile (JSONObject tmpl,
+        Optional<String> version)
+    {
+        var fixed = new ArrayList<MqttAce>();
+        var templated = new ArrayList<Entry>();
+
+        for (var topic : tmpl.keySet()) {
+            var activity = expandAccess(tmpl.opt(topic));
+            if (activity == null)
+                continue;
+
+            var literals = new ArrayList<String>();
+            var slots = new StringBuilder();
+            int from = 0, at;
+            while ((at = nextSlot(topic, from)) >= 0) {
+                literals.add(topic.substring(from, at));
+                slots.append(topic.charAt(at + 1));
+                from = at + 2;
+            }
+
+            if (slots.length() == 0) {
+                fixed.add(new MqttAce(topic, activity));
+                continue;
+            }
+            literals.add(topic.substring(from));
+            templated.add(new Entry(
+                literals.toArray(new String[0]),
+                slots.toString().toCharArray(),
+                activity));
+        }
+
+        return new MqttTemplate(version, List.copyOf(fixed),
+            List.copyOf(templated));
+    }
+
+    private static int nextSlot (String topic, int from)
+    {
+        int at = topic.indexOf('%', from);
+        while (at >= 0 && at + 1 < topic.length()) {
+            char c = topic.charAt(at + 1);
+            if (c == GROUP || c == NODE)
+                return at;
+            at = topic.indexOf('%', at + 1);
+        }
+        return -1;
+    }
+
+    private static TopicPermission.MqttActivity expandAccess (Object access)
+    {
+        if (access instanceof String) {
+            String rw = (String)access;
+            if (rw.contains("r")) {
+                if (rw.contains("w"))
+                    return TopicPermission.MqttActivity.ALL;
+                return TopicPermission.MqttActivity.SUBSCRIBE;
+            }
+            else {
+                if (rw.contains("w"))
+                    return TopicPermission.MqttActivity.PUBLISH;
+            }
+        }
+        return null;
+    }
+
+    /* Snapshot format: version, fixed entries, templated entries.
+     * Templated entries are stored as their slots and literals. */
+    void write (DataOutputStream out)
+        throws IOException
+    {
+        AclSnapshot.writeString(out, version.orElse(""));
+        out.writeInt(fixed.size());
+        for (var ace : fixed)
+            AclSnapshot.writeAce(out, ace);
+        out.writeInt(templated.size());
+        for (var e : templated) {
+            out.writeByte(AclSnapshot.activityCode(e.activity));
+            AclSnapshot.writeString(out, new String(e.slots));
+            for (var lit : e.literals)
+                AclSnapshot.writeString(out, lit);
+        }
+    }
+
+    static MqttTemplate read (ByteBuffer in)
+    {
+        var version = AclSnapshot.readString(in);
+
+        int nfixed = AclSnapshot.readCount(in, 5);
+        var fixed = new ArrayList<MqttAce>(nfixed);
+        for (int i = 0; i < nfixed; i++)
+            fixed.add(AclSnapshot.readAce(in));
+
+        int ntmpl = AclSnapshot.readCount(in, 9);
+        var templated = new ArrayList<Entry>(ntmpl);
+        for (int i = 0; i < ntmpl; i++) {
+            var activity = AclSnapshot.activity(in.get());
+            var slots = AclSnapshot.readString(in).toCharArray();
+            var literals = new String[slots.length + 1];
+            for (int j = 0; j < literals.length; j++)
+                literals[j] = AclSnapshot.readString(in);
+            templated.add(new Entry(literals, slots, activity));
+        }
+
+        return new MqttTemplate(
+            version.isEmpty() ? Optional.empty() : Optional.of(version),
+            List.copyOf(fixed), List.copyOf(templated));
+    }
+
+    public Optional<String> getVersion () { return version; }
+
+    /** Do we need the target's Sparkplug address to expand this?
+     *
+     * @return Whether any entries are templated.
+     */
+    public boolean needsTarget () { return !templated.isEmpty(); }
+
+    /** The entries which don't depend on the target.
+     *
+     * @return The fixed entries.
+     */
+    public List<MqttAce> fixedEntries () { return fixed; }
+
+    /** Expands the template for a target.
+     *
+     * @param target The target's Sparkplug address.
+     * @return The ACL entries.
+     * @throws JSONException If the address lacks a group or node.
+     */
+    public List<MqttAce> expand (SparkplugAddress target)
+    {
+        if (templated.isEmpty())
+            return fixed;
+
+        String group = needsGroup ? target.getGroup() : null;
+        String node = needsNode ? target.getNode() : null;
+        if (needsGroup && group == null)
+            throw new JSONException("Sparkplug address has no group_id");
+        if (needsNode && node == null)
+            throw new JSONException("Sparkplug address has no node_id");
+
+        var rv = new ArrayList<MqttAce>(fixed.size() + templated.size());
+        rv.addAll(fixed);
+        for (var e : templated)
+            rv.add(new MqttAce(e.expand(group, node), e.activity));
+        return rv;
+    }
+}
@@ -0,0 +1,153 @@
+/* Factory+ HiveMQ auth plugin.
+ * Cache of verified passwords.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Remembers recent successful password logins.
+ *
+ * A password CONNECT costs a full Kerberos login. This cache records,
+ * for a short time, that a given username and password were accepted
+ * by the KDC, and which principal they authenticated as. We only keep
+ * a salted PBKDF2 hash of the password, never the password itself.
+ */
+class PasswordCache {
+    private static final Logger log = LoggerFactory.getLogger(PasswordCache.class);
+
+    private static final String KDF = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LEN = 16;
+    private static final int HASH_BITS = 256;
+
+    private static class Verified {
+        final byte[] salt;
+        final byte[] hash;
+        final String principal;
+        final long expires;
+
+        Verified (byte[] salt, byte[] hash, String principal, long expires)
+        {
+            this.salt = salt;
+            this.hash = hash;
+            this.principal = principal;
+            this.expires = expires;
+        }
+    }
+
+    private ConcurrentHashMap<String, Verified> cache;
+    private long ttl;
+    private int maxSize;
+    private int iterations;
+    private SecureRandom random;
+
+    public PasswordCache (Duration ttl, int maxSize, int iterations)
+    {
+        this.cache = new ConcurrentHashMap<String, Verified>();
+        this.ttl = ttl.toNanos();
+        this.maxSize = maxSize;
+        this.iterations = iterations;
+        this.random = new SecureRandom();
+    }
+
+    public boolean enabled () { return ttl > 0 && maxSize > 0; }
+
+    /** Checks a password against the cache.
+     *
+     * @param user The username supplied.
+     * @param passwd The password supplied.
+     * @return The principal, if these credentials were verified recently.
+     */
+    public Optional<String> check (String user, char[] passwd)
+    {
+        if (!enabled())
+            return Optional.empty();
+
+        var entry = cache.get(user);
+        if (entry == null)
+            return Optional.empty();
+
+        if (System.nanoTime() - entry.expires >= 0) {
+            cache.remove(user, entry);
+            return Optional.empty();
+        }
+
+        var hash = hash(passwd, entry.salt);
+        if (hash == null || !MessageDigest.isEqual(hash, entry.hash))
+            return Optional.empty();
+
+        return Optional.of(entry.principal);
+    }
+
+    /** Records a successful login.
+     *
+     * @param user The username supplied.
+     * @param passwd The password which was accepted.
+     * @param principal The principal the KDC authenticated.
+     */
+    public void add (String user, char[] passwd, String principal)
+    {
+        if (!enabled())
+            return;
+
+        if (cache.size() >= maxSize && !cache.containsKey(user)) {
+            purge();
+            if (cache.size() >= maxSize)
+                return;
+        }
+
+        var salt = new byte[SALT_LEN];
+        random.nextBytes(salt);
+        var hash = hash(passwd, salt);
+        if (hash == null)
+            return;
+
+        cache.put(user, new Verified(salt, hash, principal,
+            System.nanoTime() + ttl));
+    }
+
+    /** Forgets any cached login for a user.
+     *
+     * This should be called whenever a login fails.
+     *
+     * @param user The username.
+     */
+    public void remove (String user)
+    {
+        cache.remove(user);
+    }
+
+    private void purge ()
+    {
+        long now = System.nanoTime();
+        cache.values().removeIf(e -> now - e.expires >= 0);
+    }
+
+    private byte[] hash (char[] passwd, byte[] salt)
+    {
+        var spec = new PBEKeySpec(passwd, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(KDF)
+                .generateSecret(spec)
+                .getEncoded();
+        }
+        catch (Exception e) {
+            log.error("Cannot hash password", e);
+            return null;
+        }
+        finally {
+            spec.clearPassword();
+        }
+    }
+}
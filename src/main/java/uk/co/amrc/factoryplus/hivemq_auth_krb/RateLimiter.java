@@ -0,0 +1,158 @@
+/* Factory+ HiveMQ auth plugin.
+ * Keyed rate limiter.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A token-bucket rate limiter per key.
+ *
+ * Each bucket is a single atomic long holding the time at which it
+ * will next be full (the GCRA form of a token bucket), so acquiring is
+ * a lock-free CAS. A bucket which has refilled completely carries no
+ * information, so these are swept out periodically in the background;
+ * the table is also capped in size. If the table is full of active
+ * buckets, new keys are let through untracked rather than refused.
+ */
+class RateLimiter<Key> {
+    private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(60);
+    /* How often to sweep when the table is full. */
+    private static final long FULL_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static class Bucket {
+        final AtomicLong tat;
+        final LongAdder rejected = new LongAdder();
+        volatile boolean reported = false;
+
+        Bucket (long now)
+        {
+            tat = new AtomicLong(now);
+        }
+    }
+
+    private final String name;
+    private final long interval;
+    private final long tolerance;
+    private final int maxKeys;
+
+    private final ConcurrentHashMap<Key, Bucket> buckets;
+    /* Only used from the sweep task. */
+    private long lastSweep;
+    private final LongAdder rejected = new LongAdder();
+
+    /** Creates a rate limiter.
+     *
+     * @param name A name for log messages.
+     * @param perMinute The sustained rate allowed per key, or 0 to
+     * disable this limiter.
+     * @param burst The number of attempts allowed at once.
+     * @param maxKeys The maximum number of keys to track.
+     */
+    public RateLimiter (String name, int perMinute, int burst, int maxKeys)
+    {
+        this.name = name;
+        this.interval = perMinute > 0
+            ? TimeUnit.MINUTES.toNanos(1) / perMinute : 0;
+        this.tolerance = interval * Math.max(burst - 1, 0);
+        this.maxKeys = maxKeys;
+        this.buckets = new ConcurrentHashMap<Key, Bucket>();
+        this.lastSweep = System.nanoTime();
+    }
+
+    public boolean enabled () { return interval > 0; }
+
+    /** Takes a token for a key.
+     *
+     * @param key The key to rate-limit on.
+     * @return Whether the attempt is allowed.
+     */
+    public boolean tryAcquire (Key key)
+    {
+        if (!enabled())
+            return true;
+
+        long now = System.nanoTime();
+        var bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys)
+                return true;
+            bucket = buckets.computeIfAbsent(key, k -> new Bucket(now));
+        }
+
+        while (true) {
+            long tat = bucket.tat.get();
+            long base = tat - now > 0 ? tat : now;
+            if (base - now > tolerance) {
+                reject(key, bucket);
+                return false;
+            }
+            if (bucket.tat.compareAndSet(tat, base + interval))
+                return true;
+        }
+    }
+
+    private void reject (Key key, Bucket bucket)
+    {
+        rejected.increment();
+        bucket.rejected.increment();
+        if (!bucket.reported) {
+            bucket.reported = true;
+            log.warn("Rate limiting {} {}", name, key);
+        }
+    }
+
+    /** Sweeps out refilled buckets in the background.
+     *
+     * This keeps the sweep, which may cover every key, off the
+     * CONNECT path.
+     *
+     * @param exec The executor to run on.
+     */
+    public void start (ScheduledExecutorService exec)
+    {
+        if (!enabled())
+            return;
+
+        exec.scheduleWithFixedDelay(this::maybeSweep,
+            FULL_SWEEP_INTERVAL, FULL_SWEEP_INTERVAL, TimeUnit.NANOSECONDS);
+    }
+
+    private void maybeSweep ()
+    {
+        long now = System.nanoTime();
+        if (buckets.size() < maxKeys && now - lastSweep < SWEEP_INTERVAL)
+            return;
+        lastSweep = now;
+
+        try {
+            buckets.entrySet().removeIf(e -> {
+                var bucket = e.getValue();
+                if (bucket.tat.get() - now > 0)
+                    return false;
+                long count = bucket.rejected.sum();
+                if (count > 0)
+                    log.warn("Rate limited {} {}: {} attempts refused",
+                        name, e.getKey(), count);
+                return true;
+            });
+        }
+        catch (Exception e) {
+            /* Don't let an exception cancel the task. */
+            log.error("Rate limiter sweep failed", e);
+        }
+    }
+
+    public int size () { return buckets.size(); }
+    public long rejectedCount () { return rejected.sum(); }
+}
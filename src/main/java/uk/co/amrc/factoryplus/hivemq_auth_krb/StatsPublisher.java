@@ -0,0 +1,214 @@
+/* Factory+ HiveMQ auth plugin.
+ * Periodic stats over MQTT.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.json.*;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import com.hivemq.extension.sdk.api.packets.general.Qos;
+import com.hivemq.extension.sdk.api.services.Services;
+import com.hivemq.extension.sdk.api.services.builder.Builders;
+
+import uk.co.amrc.factoryplus.FPMetrics;
+
+/** Publishes a summary of our metrics over MQTT.
+ *
+ * Every interval this reads our metrics from the registry and
+ * publishes a retained JSON document. Counts and rates cover the last
+ * interval; latencies are the timers' current percentiles, in ms.
+ * Nothing is added to the authentication path: the counters there are
+ * already striped adders, and are only read here.
+ */
+class StatsPublisher {
+    private static final Logger log = LoggerFactory.getLogger(StatsPublisher.class);
+
+    static final String DEFAULT_TOPIC = "$SYS/factoryplus/auth-krb/stats";
+
+    private final FPMetrics metrics;
+    private final Duration interval;
+    private final String topic;
+    private final String prefix;
+
+    /* Only touched on the publishing thread. */
+    private final Map<String, Long> last = new HashMap<String, Long>();
+    private long lastTime;
+
+    public StatsPublisher (FPMetrics metrics, Duration interval, String topic)
+    {
+        this.metrics = metrics;
+        this.interval = interval;
+        this.topic = topic;
+        this.prefix = metrics.name() + ".";
+    }
+
+    public boolean enabled () { return !interval.isZero(); }
+
+    public void start (ScheduledExecutorService exec)
+    {
+        if (!enabled())
+            return;
+
+        lastTime = System.nanoTime();
+        long every = interval.toMillis();
+        log.info("Publishing stats to {} every {}s", topic,
+            interval.toSeconds());
+        exec.scheduleWithFixedDelay(this::publish, every, every,
+            TimeUnit.MILLISECONDS);
+    }
+
+    private void publish ()
+    {
+        try {
+            var doc = collect().toString().getBytes(StandardCharsets.UTF_8);
+            var msg = Builders.publish()
+                .topic(topic)
+                .payload(ByteBuffer.wrap(doc))
+                .contentType("application/json")
+                .qos(Qos.AT_MOST_ONCE)
+                .retain(true)
+                .messageExpiryInterval(interval.toSeconds() * 3)
+                .build();
+            Services.publishService().publish(msg)
+                .whenComplete((v, e) -> {
+                    if (e != null)
+                        log.warn("Can't publish stats: {}", e.toString());
+                });
+        }
+        catch (Exception e) {
+            log.error("Stats publish failed", e);
+        }
+    }
+
+    /** Builds the stats document.
+     *
+     * This updates the baseline for the next interval.
+     *
+     * @return The document.
+     */
+    JSONObject collect ()
+    {
+        var registry = metrics.getRegistry();
+        long now = System.nanoTime();
+        double secs = Math.max(now - lastTime, 1) / 1e9;
+        lastTime = now;
+
+        return new JSONObject()
+            .put("time", System.currentTimeMillis())
+            .put("interval", Math.round(secs * 1000) / 1000.0)
+            .put("auth", auth(registry, secs))
+            .put("admission", new JSONObject()
+                .put("in-use", gauge(registry, "auth.admission.in-use"))
+                .put("queued", gauge(registry, "auth.admission.queued"))
+                .put("rejected", delta("auth.admission.rejected",
+                    gauge(registry, "auth.admission.rejected"))))
+            .put("latency", latency(registry))
+            .put("caches", caches(registry));
+    }
+
+    /* Counters are auth.MECH.RESULT. */
+    private JSONObject auth (MetricRegistry registry, double secs)
+    {
+        var mechs = new JSONObject();
+        var results = new JSONObject();
+        long total = 0;
+
+        var base = prefix + "auth.";
+        for (var e : registry.getCounters((n, m) -> n.startsWith(base)).entrySet()) {
+            var name = e.getKey().substring(prefix.length());
+            var parts = name.split("\\.");
+            if (parts.length != 3)
+                continue;
+
+            long count = delta(name, e.getValue().getCount());
+            mechs.put(parts[1], mechs.optJSONObject(parts[1], new JSONObject())
+                .put(parts[2], count));
+            /* Cached password logins are also counted as successes. */
+            if (AuthTracer.RESULTS.contains(parts[2])) {
+                results.put(parts[2], results.optLong(parts[2], 0) + count);
+                total += count;
+            }
+        }
+
+        return new JSONObject()
+            .put("connects", total)
+            .put("rate", Math.round(total / secs * 10) / 10.0)
+            .put("results", results)
+            .put("mechs", mechs);
+    }
+
+    private JSONObject latency (MetricRegistry registry)
+    {
+        var rv = new JSONObject();
+        registry.getTimers((n, m) -> n.startsWith(prefix)).forEach((n, timer) -> {
+            var name = n.substring(prefix.length());
+            var snap = timer.getSnapshot();
+            rv.put(name, new JSONObject()
+                .put("count", delta(name, timer.getCount()))
+                .put("p50", millis(snap.getMedian()))
+                .put("p99", millis(snap.get99thPercentile()))
+                .put("max", millis(snap.getMax())));
+        });
+        return rv;
+    }
+
+    /* RequestCache publishes NAME.size, NAME.hits and so on. */
+    private JSONObject caches (MetricRegistry registry)
+    {
+        var rv = new JSONObject();
+        var suffix = ".in-flight";
+        for (var n : registry.getGauges((n, m) -> n.startsWith(prefix)
+                && n.endsWith(suffix)).keySet())
+        {
+            var name = n.substring(prefix.length(), n.length() - suffix.length());
+            long hits = delta(name + ".hits", gauge(registry, name + ".hits"));
+            long misses = delta(name + ".misses", gauge(registry, name + ".misses"));
+            long lookups = hits + misses;
+
+            rv.put(name, new JSONObject()
+                .put("size", gauge(registry, name + ".size"))
+                .put("in-flight", gauge(registry, name + ".in-flight"))
+                .put("hits", hits)
+                .put("misses", misses)
+                .put("hit-ratio", lookups == 0 ? 1.0
+                    : Math.round(1000.0 * hits / lookups) / 1000.0));
+        }
+        return rv;
+    }
+
+    private long gauge (MetricRegistry registry, String name)
+    {
+        var metric = registry.getMetrics().get(prefix + name);
+        if (!(metric instanceof Gauge))
+            return 0;
+        var value = ((Gauge<?>)metric).getValue();
+        return value instanceof Number ? ((Number)value).longValue() : 0;
+    }
+
+    /* The change since the last interval. */
+    private long delta (String name, long value)
+    {
+        var prev = last.put(name, value);
+        return prev == null ? value : value - prev;
+    }
+
+    private static double millis (double nanos)
+    {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+}
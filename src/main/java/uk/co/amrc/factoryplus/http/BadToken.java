@@ -17,21 +17,20 @@ class BadToken extends Exception
     private static final Logger log = LoggerFactory.getLogger(BadToken.class);
 
     private URI base;
-    private String token;
+    private BearerToken token;
 
-    public BadToken (URI base, String tok)
+    public BadToken (URI base, BearerToken tok)
     { 
         this.base = base;
         this.token = tok; 
     }
 
     public URI getBase () { return base; }
-    public String getToken () { return token; }
+    public BearerToken getToken () { return token; }
 
-    public boolean invalidate (RequestCache<URI, String> tokens)
+    public boolean invalidate (RequestCache<URI, BearerToken> tokens)
     {
-        log.info("Retrying; bad token {} for {}",
-            token.substring(0, 5), base);
+        log.info("Retrying; bad token {} for {}", token, base);
         tokens.remove(base, token);
         return true;
     }
@@ -0,0 +1,128 @@
+/* Factory+ Java client library.
+ * Bearer token with expiry.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.json.*;
+
+/** A bearer token and when it expires.
+ *
+ * The expiry comes from the <code>expiry</code> field of the token
+ * response if there is one (ms since the epoch), or from the
+ * <code>exp</code> claim if the token is a JWT. If neither is present
+ * the expiry is unknown, and we only find out the token has expired
+ * when a request fails with a 401.
+ */
+class BearerToken
+{
+    private static final Logger log = LoggerFactory.getLogger(BearerToken.class);
+
+    /* Stop using a token this long before it expires, to allow for
+     * clock skew and requests in flight. */
+    private static final long MARGIN = 30000;
+
+    private final String token;
+    /* Zero if we don't know. */
+    private final long expiry;
+
+    public BearerToken (String token, long expiry)
+    {
+        this.token = token;
+        this.expiry = expiry;
+    }
+
+    /** Reads a token response from the <code>/token</code> endpoint.
+     *
+     * @param res The response body.
+     * @return The token.
+     */
+    public static BearerToken fromResponse (JSONObject res)
+    {
+        var token = res.getString("token");
+        var expiry = res.optLong("expiry", 0);
+        if (expiry == 0)
+            expiry = jwtExpiry(token);
+
+        if (expiry != 0 && expiry <= System.currentTimeMillis()) {
+            log.warn("Token has already expired, check the clocks: {}", expiry);
+            expiry = 0;
+        }
+        return new BearerToken(token, expiry);
+    }
+
+    private static long jwtExpiry (String token)
+    {
+        var parts = token.split("\\.");
+        if (parts.length != 3)
+            return 0;
+        try {
+            var claims = new JSONObject(new String(
+                Base64.getUrlDecoder().decode(parts[1]),
+                StandardCharsets.UTF_8));
+            return claims.optLong("exp", 0) * 1000;
+        }
+        catch (IllegalArgumentException | JSONException e) {
+            return 0;
+        }
+    }
+
+    public String getToken () { return token; }
+    public long getExpiry () { return expiry; }
+
+    /** How long until we should fetch a new token.
+     *
+     * @param fraction The fraction of the remaining lifetime to use
+     * the token for before refreshing it.
+     * @return The time, or null if the expiry is unknown.
+     */
+    public Duration refreshIn (double fraction)
+    {
+        if (expiry == 0)
+            return null;
+        return Duration.ofMillis((long)(usable() * fraction));
+    }
+
+    /** How long the token may be used for after {@link #refreshIn}.
+     *
+     * @param fraction As for {@link #refreshIn}.
+     * @return The time, which is zero if the expiry is unknown.
+     */
+    public Duration staleFor (double fraction)
+    {
+        if (expiry == 0)
+            return Duration.ZERO;
+        long usable = usable();
+        return Duration.ofMillis(usable - (long)(usable * fraction));
+    }
+
+    private long usable ()
+    {
+        long left = expiry - System.currentTimeMillis();
+        return Math.max(left - Math.min(MARGIN, left / 10), 0);
+    }
+
+    /* Two fetches can give the same token string with a different
+     * expiry; for BadToken's purposes they are the same token. */
+    public boolean equals (Object other)
+    {
+        return other instanceof BearerToken
+            && ((BearerToken)other).token.equals(token);
+    }
+
+    public int hashCode () { return token.hashCode(); }
+
+    public String toString ()
+    {
+        var end = token.length() > 5 ? 5 : token.length();
+        return token.substring(0, end) + "...";
+    }
+}
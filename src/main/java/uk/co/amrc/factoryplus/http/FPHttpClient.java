@@ -14,6 +14,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.ServiceConfigurationError;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 import java.util.stream.Collectors;
 
@@ -44,27 +45,62 @@ import org.apache.hc.client5.http.impl.cache.CachingHttpAsyncClients;
 import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.HttpHost;
 import org.apache.hc.core5.http.message.StatusLine;
+import org.apache.hc.core5.http.ConnectionClosedException;
+import org.apache.hc.core5.http.ProtocolException;
+import org.apache.hc.core5.http2.H2ConnectionException;
+import org.apache.hc.core5.http2.H2CorruptFrameException;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.ProtocolNegotiationException;
 import org.apache.hc.core5.io.CloseMode;
 import org.apache.hc.core5.reactor.IOReactorConfig;
 import org.apache.hc.core5.util.Timeout;
 
 import org.json.*;
 
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.core.Single;
 
 import uk.co.amrc.factoryplus.*;
 import uk.co.amrc.factoryplus.gss.*;
+import uk.co.amrc.factoryplus.jfr.FPEvent;
+import uk.co.amrc.factoryplus.jfr.HttpRequestEvent;
+import uk.co.amrc.factoryplus.jfr.TokenFetchEvent;
 
 /** HTTP (REST) client.
+ *
+ * By default requests use HTTP/1.1, with a pool of connections to each
+ * server. If <code>http_version</code> is set to <code>2</code>,
+ * requests to each server are instead multiplexed over a single
+ * HTTP/2 connection, with at most <code>http2_max_streams</code> in
+ * flight at once. Servers which turn out not to speak HTTP/2 are
+ * used over HTTP/1.1 instead, for <code>http2_retry_interval</code>
+ * seconds before HTTP/2 is tried again.
  */
 public class FPHttpClient {
     private static final Logger log = LoggerFactory.getLogger(FPHttpClient.class);
 
+    private static final Long H2_OK = 0L;
+    /* Methods which are safe to send again on HTTP/1.1 if HTTP/2
+     * negotiation fails. */
+    private static final Set<String> IDEMPOTENT = Set.of(
+        "GET", "HEAD", "OPTIONS", "PUT", "DELETE");
+
     private FPServiceClient fplus;
     private FPDiscovery discovery;
     private CloseableHttpClient http_client;
     private CloseableHttpAsyncClient async_client;
-    private RequestCache<URI, String> tokens;
+    private RequestCache<URI, BearerToken> tokens;
+
+    /* Null unless HTTP_VERSION is 2. */
+    private CloseableHttpAsyncClient h2_client;
+    private int h2_streams;
+    private long h2_retry;
+    /* H2_OK once a server has answered over HTTP/2. Otherwise the time
+     * (ms) until which we use HTTP/1.1, because it wouldn't negotiate
+     * HTTP/2. Absent if we don't know yet. */
+    private Map<String, Long> h2_routes;
+    private Map<String, StreamLimiter> h2_limits;
 
     /** Internal; construct via {@link FPServiceClient}. */
     public FPHttpClient (FPServiceClient fplus)
@@ -78,7 +114,15 @@ public class FPHttpClient {
             .setCacheConfig(cache_config)
             .build();
 
-        tokens = new RequestCache<URI, String>(this::tokenFor);
+        /* Refresh tokens in the background once this much of their
+         * lifetime has gone, and keep using the old token until the new
+         * one arrives. A 401 still forces a refresh. */
+        var refresh = fplus.getIntConf("token_refresh_percent", 75) / 100.0;
+        tokens = new RequestCache<URI, BearerToken>(this::tokenFor)
+            .withTTL(tok -> tok.refreshIn(refresh))
+            .withMaxStale(tok -> tok.staleFor(refresh))
+            .withMaxSize(fplus.getIntConf("token_cache_size", 100))
+            .withMetrics(fplus.metrics(), "token.cache");
 
         final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
             .setSoTimeout(Timeout.ofSeconds(5))
@@ -88,6 +132,29 @@ public class FPHttpClient {
             .setCacheConfig(cache_config)
             .setIOReactorConfig(ioReactorConfig)
             .build();
+
+        var version = fplus.getOptionalConf("http_version").orElse("1.1");
+        switch (version) {
+            case "1.1":
+                break;
+            case "2":
+                h2_streams = fplus.getIntConf("http2_max_streams", 100);
+                h2_retry = fplus.getIntConf("http2_retry_interval", 300) * 1000L;
+                h2_routes = new ConcurrentHashMap<String, Long>();
+                h2_limits = new ConcurrentHashMap<String, StreamLimiter>();
+                h2_client = CachingHttpAsyncClients.customHttp2()
+                    .setCacheConfig(cache_config)
+                    .setIOReactorConfig(ioReactorConfig)
+                    .setH2Config(H2Config.custom()
+                        .setPushEnabled(false)
+                        .setMaxConcurrentStreams(h2_streams)
+                        .build())
+                    .build();
+                break;
+            default:
+                throw new ServiceConfigurationError(
+                    "Bad HTTP_VERSION: " + version);
+        }
     }
 
     /** Start the async client threads.
@@ -104,6 +171,33 @@ public class FPHttpClient {
 
         //FPThreadUtil.logId("Running async HTTP client");
         async_client.start();
+        if (h2_client != null)
+            h2_client.start();
+    }
+
+    /** Are we using HTTP/2? */
+    public boolean isHttp2 () { return h2_client != null; }
+
+    /** Connects to services ahead of time.
+     *
+     * This looks up each service and fetches a token for it, which
+     * opens a connection to the server. With HTTP/2 that connection
+     * is then kept and shared by later requests, and we find out
+     * whether the server supports HTTP/2 before it matters.
+     *
+     * @param services The services to connect to.
+     * @return Completes when every service has been tried. Failures
+     * are logged, not returned.
+     */
+    public Completable preconnect (Set<UUID> services)
+    {
+        return Observable.fromIterable(services)
+            .flatMapCompletable(srv -> discovery.get(srv)
+                .flatMap(tokens::get)
+                .ignoreElement()
+                .doOnError(e -> log.warn("Can't preconnect to {}: {}",
+                    srv, e.toString()))
+                .onErrorComplete());
     }
 
     /** Creates a new request.
@@ -125,15 +219,24 @@ public class FPHttpClient {
             .get(fpr.service)
             .flatMap(base -> tokens.get(base)
                 .map(tok -> fpr.resolveWith(base, tok)))
-            .flatMap(rrq -> fetch(rrq.buildRequest())
+            .flatMap(rrq -> fetch(fpr.service.toString(), rrq.buildRequest())
                 .flatMap(res -> rrq.handleResponse(res)))
             .retry(2, ex -> 
                 (ex instanceof BadToken)
-                    && ((BadToken)ex).invalidate(tokens));
+                    && ((BadToken)ex).invalidate(tokens))
+            .compose(FPEvent.<HttpRequestEvent, JsonResponse>timed(
+                HttpRequestEvent.class, HttpRequestEvent::new, (ev, res) -> {
+                    ev.service = fpr.service.toString();
+                    ev.method = fpr.method;
+                    if (res != null) {
+                        ev.status = res.getCode();
+                        ev.cacheStatus = res.getCacheStatus();
+                    }
+                }));
     }
 
     /** Internal */
-    public Single<String> tokenFor (URI service)
+    public Single<BearerToken> tokenFor (URI service)
     {
         return Single.fromSupplier(() -> {
                 //FPThreadUtil.logId("getting gss context");
@@ -144,47 +247,128 @@ public class FPHttpClient {
             })
             .map(ctx -> new TokenRequest(service, ctx))
                 /* buildRequest is blocking */
-            .flatMap(req -> fetch(req.buildRequest())
+            .flatMap(req -> fetch("token", req.buildRequest())
                 .flatMap(res -> req.handleResponse(res)))
             .subscribeOn(fplus.getScheduler())
             /* fetch moves calls below here to the http thread pool */
             .map(res -> res.ifOk()
                 .flatMap(r -> r.getBodyObject())
                 .orElseThrow(() -> new Exception("Invalid token response")))
-            .map(o -> o.getString("token"));
+            .map(BearerToken::fromResponse)
+            .compose(fplus.metrics().timed("token.fetch"))
+            .compose(FPEvent.<TokenFetchEvent, BearerToken>timed(
+                TokenFetchEvent.class, TokenFetchEvent::new,
+                (ev, tok) -> ev.url = service.toString()));
+    }
+
+    /* The service is used to label metrics. */
+    private Single<JsonResponse> fetch (String service, SimpleHttpRequest req)
+    {
+        if (h2_client == null)
+            return fetch(service, req, async_client, null);
+
+        var route = req.getScheme() + "://" + req.getAuthority();
+        var state = h2_routes.get(route);
+        if (state != null && !state.equals(H2_OK)) {
+            if (System.currentTimeMillis() < state)
+                return fetch(service, req, async_client, null);
+            h2_routes.remove(route, state);
+            state = null;
+        }
+
+        var limit = h2_limits.computeIfAbsent(route,
+            r -> new StreamLimiter(h2_streams));
+        var rv = fetch(service, req, h2_client, limit);
+        if (state != null)
+            return rv;
+
+        /* We don't know yet if this server speaks HTTP/2. If it won't
+         * negotiate it, use HTTP/1.1 for a while. The request was never
+         * read by the server, but a request which isn't idempotent is
+         * still not sent again, in case we have misread the failure;
+         * the caller sees the error and its retry goes over HTTP/1.1.
+         * Other errors say nothing about HTTP/2 and are passed on. */
+        return rv
+            .doOnSuccess(res -> h2_routes.put(route, H2_OK))
+            .onErrorResumeNext(e -> {
+                if (!refusedHttp2(e))
+                    return Single.error(e);
+                h2_routes.put(route, System.currentTimeMillis() + h2_retry);
+                log.warn("HTTP/2 failed for {}, using HTTP/1.1: {}",
+                    route, e.toString());
+                if (!IDEMPOTENT.contains(req.getMethod()))
+                    return Single.error(e);
+                return fetch(service, req, async_client, null);
+            });
+    }
+
+    /* Failures to negotiate HTTP/2, before the server has read the
+     * request: ALPN refused or a bad preface. A server which doesn't
+     * speak HTTP/2 usually just closes the connection on our preface,
+     * so a closed connection counts too; this is only used for servers
+     * which have never answered over HTTP/2. */
+    private static boolean refusedHttp2 (Throwable e)
+    {
+        return e instanceof ProtocolNegotiationException
+            || e instanceof H2ConnectionException
+            || e instanceof H2CorruptFrameException
+            || e instanceof ProtocolException
+            || e instanceof ConnectionClosedException;
     }
 
-    private Single<JsonResponse> fetch (SimpleHttpRequest req)
+    private Single<JsonResponse> fetch (String service, SimpleHttpRequest req,
+        CloseableHttpAsyncClient client, StreamLimiter limit)
     {
+        final var metrics = fplus.metrics();
         //FPThreadUtil.logId("fetch called");
         final var context = HttpCacheContext.create();
-        return Single.<SimpleHttpResponse>create(obs ->
-                async_client.execute(req, context,
+        return Single.<SimpleHttpResponse>create(obs -> {
+            Runnable start = () -> client.execute(req, context,
                     new FutureCallback<SimpleHttpResponse>() {
                         public void completed (SimpleHttpResponse res) {
+                            if (limit != null)
+                                limit.done();
                             //FPThreadUtil.logId("fetch success");
-                            String uri = "???";
-                            try { uri = req.getUri().toString(); }
-                            catch (Exception e) { }
-                            log.info("Cache {} ({}) for {}",
-                                context.getCacheResponseStatus(),
-                                res.getCode(), uri);
+                            if (log.isDebugEnabled()) {
+                                String uri = "???";
+                                try { uri = req.getUri().toString(); }
+                                catch (Exception e) { }
+                                log.debug("Cache {} ({}) for {}",
+                                    context.getCacheResponseStatus(),
+                                    res.getCode(), uri);
+                            }
+                            metrics.counter("http", service, "status",
+                                Integer.toString(res.getCode())).inc();
+                            metrics.counter("http", service, "cache",
+                                String.valueOf(context.getCacheResponseStatus()))
+                                .inc();
                             obs.onSuccess(res);
                         }
 
                         public void failed (Exception ex) {
+                            if (limit != null)
+                                limit.done();
+                            metrics.counter("http", service, "failed").inc();
                             //FPThreadUtil.logId("fetch failure");
                             obs.onError(ex);
                         }
 
                         public void cancelled () {
+                            if (limit != null)
+                                limit.done();
                             obs.onError(new Exception("HTTP future cancelled"));
                         }
-                    }))
+                    });
+            if (limit == null)
+                start.run();
+            else
+                limit.run(start);
+        })
             //.doOnSuccess(res -> {
             //    FPThreadUtil.logId("handling fetch response");
             //    log.info("Fetch response {}: {}", req.getUri(), res.getCode());
             //})
-            .map(res -> new JsonResponse(res));
+            .map(res -> new JsonResponse(res,
+                String.valueOf(context.getCacheResponseStatus())));
     }
 }
@@ -75,7 +75,7 @@ public class FPHttpRequest {
     }
 
     /** Internal */
-    public ResolvedRequest resolveWith (URI base, String token)
+    public ResolvedRequest resolveWith (URI base, BearerToken token)
     {
         return new ResolvedRequest(this, base, token);
     }
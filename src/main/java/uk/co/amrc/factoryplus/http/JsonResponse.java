@@ -5,7 +5,16 @@
 
 package uk.co.amrc.factoryplus.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
 import org.apache.hc.core5.http.ProtocolException;
@@ -18,15 +27,21 @@ import org.slf4j.LoggerFactory;
 /** A reponse to an HTTP request.
  *
  * The response body is parsed from JSON and available as an object.
+ * Parsing is put off until the body is first asked for, and reads the
+ * body bytes directly rather than first decoding them to a String. A
+ * body which is an array can also be streamed an element at a time,
+ * without building the whole array.
  */
 public class JsonResponse
 {
     private static final Logger log = LoggerFactory.getLogger(FPHttpClient.class);
 
     private SimpleHttpResponse response;
+    /* Null until parsed. */
     private Optional<Object> body;
+    private String cacheStatus;
 
-    /** Parse an HTTP response.
+    /** Wraps an HTTP response.
      *
      * If JSON parsing fails the response body will be returned as
      * empty.
@@ -34,13 +49,46 @@ public class JsonResponse
      * @param res The HTTP response to parse.
      */
     public JsonResponse (SimpleHttpResponse res)
+    {
+        this(res, null);
+    }
+
+    /** Wraps an HTTP response, noting its cache status.
+     *
+     * @param res The HTTP response to parse.
+     * @param cacheStatus The HTTP cache's response status.
+     */
+    public JsonResponse (SimpleHttpResponse res, String cacheStatus)
     {
         response = res;
-        //log.info("Parsing JSON response: {}", res.getCode());
+        this.cacheStatus = cacheStatus;
+    }
+
+    /* Returns null if there is no body. */
+    private JSONTokener tokener ()
+    {
+        var bytes = response.getBodyBytes();
+        if (bytes == null || bytes.length == 0)
+            return null;
 
-        body = Optional.ofNullable(res.getBodyText())
-            .filter(s -> !s.isEmpty())
-            .map(json -> new JSONTokener(json))
+        var type = response.getContentType();
+        var charset = type != null && type.getCharset() != null
+            ? type.getCharset() : StandardCharsets.UTF_8;
+        /* JSON is almost always UTF-8, which we can decode in place. */
+        if (charset.equals(StandardCharsets.UTF_8)
+                || charset.equals(StandardCharsets.US_ASCII))
+            return new JSONTokener(new Utf8Reader(bytes));
+        return new JSONTokener(new InputStreamReader(
+            new ByteArrayInputStream(bytes), charset));
+    }
+
+    private synchronized Optional<Object> parse ()
+    {
+        if (body != null)
+            return body;
+        //log.info("Parsing JSON response: {}", response.getCode());
+
+        body = Optional.ofNullable(tokener())
             .flatMap(tok -> {
                 try {
                     return Optional.of(tok.nextValue());
@@ -52,10 +100,13 @@ public class JsonResponse
                     return Optional.<Object>empty();
                 }
             });
+        return body;
     }
 
     public SimpleHttpResponse getResponse () { return response; }
     public int getCode () { return response.getCode(); }
+    /** The HTTP cache's response status, or null if not known. */
+    public String getCacheStatus () { return cacheStatus; }
 
     /** Was the response a success?
      *
@@ -97,13 +148,13 @@ public class JsonResponse
      *
      * @return The parsed body.
      */
-    public Optional<Object> getBody () { return body; }
+    public Optional<Object> getBody () { return parse(); }
 
     /** Did the response contain a (valid) body?
      *
      * @return Whether the body was present.
      */
-    public boolean hasBody () { return body.isPresent(); }
+    public boolean hasBody () { return parse().isPresent(); }
 
     /* Java 11 sucks
     public <T> Optional<T> getBodyAs ()
@@ -121,7 +172,7 @@ public class JsonResponse
      */
     public Optional<JSONObject> getBodyObject ()
     {
-        return body
+        return parse()
             .filter(o -> o instanceof JSONObject)
             .map(o -> (JSONObject)o);
     }
@@ -132,8 +183,95 @@ public class JsonResponse
      */
     public Optional<JSONArray> getBodyArray ()
     {
-        return body
+        return parse()
             .filter(o -> o instanceof JSONArray)
             .map(o -> (JSONArray)o);
     }
+
+    /** Streams the elements of an array body.
+     *
+     * Each element is parsed as the stream reaches it, and the array
+     * itself is never built, so this is cheaper than {@link
+     * #getBodyArray()} for large arrays which are only read once. A
+     * syntax error part way through is thrown from the stream as a
+     * {@link JSONException}.
+     *
+     * @return The elements if the body is an array, otherwise an empty
+     * Optional.
+     */
+    public Optional<Stream<Object>> getBodyElements ()
+    {
+        synchronized (this) {
+            if (body != null)
+                return body
+                    .filter(o -> o instanceof JSONArray)
+                    .map(a -> StreamSupport.stream(
+                        ((JSONArray)a).spliterator(), false));
+        }
+        return getBodyElements(JSONTokener::nextValue);
+    }
+
+    /** Streams the elements of an array body, decoding each one.
+     *
+     * As {@link #getBodyElements()}, but each element is read by
+     * <code>decode</code> straight from the tokener, so a decoder can
+     * build a typed object without building a JSONObject first. The
+     * decoder must read exactly one value. The body is always read from
+     * the response, even if it has already been parsed.
+     *
+     * @param decode Reads an element from the tokener.
+     * @return The elements if the body is an array, otherwise an empty
+     * Optional.
+     */
+    public <T> Optional<Stream<T>> getBodyElements (
+        Function<JSONTokener, T> decode)
+    {
+        var tok = tokener();
+        try {
+            if (tok == null || tok.nextClean() != '[')
+                return Optional.empty();
+        }
+        catch (JSONException e) {
+            log.error("Error parsing JSON: {}", e.toString());
+            return Optional.empty();
+        }
+        return Optional.of(StreamSupport.stream(
+            new Elements<T>(tok, decode), false));
+    }
+
+    /* The rest of an array, after the opening bracket. */
+    private static class Elements<T> extends Spliterators.AbstractSpliterator<T>
+    {
+        private final JSONTokener tok;
+        private final Function<JSONTokener, T> decode;
+        private boolean first = true;
+        private boolean done = false;
+
+        Elements (JSONTokener tok, Function<JSONTokener, T> decode)
+        {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            this.tok = tok;
+            this.decode = decode;
+        }
+
+        public boolean tryAdvance (Consumer<? super T> action)
+        {
+            if (done)
+                return false;
+
+            char c = tok.nextClean();
+            if (c == ']') {
+                done = true;
+                return false;
+            }
+            if (first)
+                tok.back();
+            else if (c != ',')
+                throw tok.syntaxError("Expected ',' or ']'");
+            first = false;
+
+            action.accept(decode.apply(tok));
+            return true;
+        }
+    }
 }
@@ -22,9 +22,9 @@ class ResolvedRequest
 
     private FPHttpRequest source;
     private URI base;
-    private String token;
+    private BearerToken token;
 
-    public ResolvedRequest (FPHttpRequest source, URI base, String token)
+    public ResolvedRequest (FPHttpRequest source, URI base, BearerToken token)
     {
         this.source = source;
         this.base = base;
@@ -36,11 +36,10 @@ class ResolvedRequest
         URI uri = base.resolve(source.path);
 
         log.debug("Making request {} {}", source.method, uri);
-        var end = token.length() > 5 ? 5 : token.length();
-        log.debug("Using bearer auth {}...", token.substring(0, end));
+        log.debug("Using bearer auth {}", token);
 
         var req = new SimpleHttpRequest(source.method, uri);
-        req.setHeader("Authorization", "Bearer " + token);
+        req.setHeader("Authorization", "Bearer " + token.getToken());
 
         if (source.body != null)
             req.setBody(source.body.toString(), ContentType.APPLICATION_JSON);
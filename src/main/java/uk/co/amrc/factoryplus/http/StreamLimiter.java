@@ -0,0 +1,57 @@
+/* Factory+ Java client library.
+ * Limit on concurrent HTTP/2 streams.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import java.util.ArrayDeque;
+
+/** Limits the requests in flight to one server.
+ *
+ * Requests over the limit are queued and started, in order, as earlier
+ * ones finish. This only holds the requests back; it does not block.
+ */
+class StreamLimiter
+{
+    private final int max;
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+    private int active = 0;
+
+    public StreamLimiter (int max)
+    {
+        this.max = max;
+    }
+
+    /** Starts a request, or queues it if we are at the limit.
+     *
+     * The request must call {@link #done} when it finishes.
+     *
+     * @param start Starts the request.
+     */
+    public void run (Runnable start)
+    {
+        synchronized (this) {
+            if (active >= max) {
+                waiting.add(start);
+                return;
+            }
+            active++;
+        }
+        start.run();
+    }
+
+    /** Records that a request has finished, and starts the next. */
+    public void done ()
+    {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                active--;
+                return;
+            }
+        }
+        next.run();
+    }
+}
@@ -27,7 +27,7 @@ class TokenRequest
     private static final Logger log = LoggerFactory.getLogger(TokenRequest.class);
 
     private static final Pattern negotiateAuth = Pattern.compile(
-        "^Negotiate +([A-Za-z0-9+/]+)$");
+        "^Negotiate +([A-Za-z0-9+/]+=*)$");
 
     private URI server;
     private GSSContext ctx;
@@ -0,0 +1,114 @@
+/* Factory+ Java client library.
+ * UTF-8 reader over a byte array.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import java.io.Reader;
+
+/** Decodes UTF-8 from a byte array as it is read.
+ *
+ * This needs no buffers of its own, and supports mark, so a
+ * JSONTokener can read it directly without wrapping it in a
+ * BufferedReader. Malformed input, including overlong forms,
+ * surrogates and code points above U+10FFFF, decodes to U+FFFD; we
+ * reject exactly what StandardCharsets.UTF_8 does, though we may emit
+ * a different number of replacement characters for it.
+ */
+class Utf8Reader extends Reader
+{
+    private final byte[] buf;
+    private int pos = 0;
+    private int mark = 0;
+    /* The second half of a surrogate pair, or 0. */
+    private char low = 0;
+    private char markLow = 0;
+
+    public Utf8Reader (byte[] buf)
+    {
+        this.buf = buf;
+    }
+
+    public int read ()
+    {
+        if (low != 0) {
+            char c = low;
+            low = 0;
+            return c;
+        }
+        if (pos >= buf.length)
+            return -1;
+
+        int b = buf[pos++];
+        if (b >= 0)
+            return b;
+        b &= 0xFF;
+
+        /* The range of the second byte excludes overlong forms,
+         * surrogates and code points above U+10FFFF. As Unicode
+         * recommends, each maximal invalid prefix decodes to one U+FFFD
+         * and the byte which broke it is read again. */
+        int extra, cp, lo = 0x80, hi = 0xBF;
+        if (b < 0xC2)
+            return 0xFFFD;
+        else if (b < 0xE0) { extra = 1; cp = b & 0x1F; }
+        else if (b < 0xF0) {
+            extra = 2; cp = b & 0x0F;
+            if (b == 0xE0) lo = 0xA0;
+            else if (b == 0xED) hi = 0x9F;
+        }
+        else if (b < 0xF5) {
+            extra = 3; cp = b & 0x07;
+            if (b == 0xF0) lo = 0x90;
+            else if (b == 0xF4) hi = 0x8F;
+        }
+        else
+            return 0xFFFD;
+
+        for (int i = 0; i < extra; i++) {
+            int c = pos < buf.length ? buf[pos] & 0xFF : -1;
+            if (c < lo || c > hi)
+                return 0xFFFD;
+            pos++;
+            cp = (cp << 6) | (c & 0x3F);
+            lo = 0x80;
+            hi = 0xBF;
+        }
+        if (cp < 0x10000)
+            return cp;
+        low = Character.lowSurrogate(cp);
+        return Character.highSurrogate(cp);
+    }
+
+    public int read (char[] cbuf, int off, int len)
+    {
+        if (len == 0)
+            return 0;
+        int n = 0;
+        while (n < len) {
+            int c = read();
+            if (c < 0)
+                break;
+            cbuf[off + n++] = (char)c;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    public boolean ready () { return true; }
+    public boolean markSupported () { return true; }
+
+    public void mark (int limit)
+    {
+        mark = pos;
+        markLow = low;
+    }
+
+    public void reset ()
+    {
+        pos = mark;
+        low = markLow;
+    }
+
+    public void close () { }
+}
@@ -0,0 +1,28 @@
+/* Factory+ Java client library.
+ * JFR event: cache load.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A {@link uk.co.amrc.factoryplus.RequestCache} loading a value. */
+@Name("uk.co.amrc.factoryplus.CacheLoad")
+@Label("Cache Load")
+@Category({"Factory+", "Cache"})
+public class CacheLoadEvent extends FPEvent {
+    @Label("Cache")
+    public String cache;
+
+    @Label("Key")
+    @Description("Hash of the key")
+    public String key;
+
+    @Label("Cache Status")
+    @Description("miss, or stale for a background refresh")
+    public String cacheStatus;
+}
@@ -0,0 +1,40 @@
+/* Factory+ Java client library.
+ * JFR event type checks.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+
+/** Checks whether event types are enabled without creating events.
+ *
+ * This is not part of FPEvent because JFR takes any non-private method
+ * of an event superclass returning boolean with one argument to be a
+ * setting, and fails when it instruments the event classes.
+ */
+public final class EventTypes {
+    /* Looked up once per event class. */
+    private static final ClassValue<EventType> TYPES = new ClassValue<EventType>() {
+        protected EventType computeValue (Class<?> cls)
+        {
+            return EventType.getEventType(cls.asSubclass(Event.class));
+        }
+    };
+
+    private EventTypes () { }
+
+    /** Is JFR recording this event type?
+     *
+     * Check this before creating an event, to avoid the allocation
+     * when it isn't.
+     *
+     * @param type The event class.
+     * @return Whether the event type is enabled.
+     */
+    public static boolean enabled (Class<? extends Event> type)
+    {
+        return TYPES.get(type).isEnabled();
+    }
+}
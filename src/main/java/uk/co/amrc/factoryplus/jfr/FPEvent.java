@@ -0,0 +1,115 @@
+/* Factory+ Java client library.
+ * JFR event base.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.core.SingleTransformer;
+
+/** Base for our Java Flight Recorder events.
+ *
+ * Events are only created and filled in when JFR is recording them,
+ * so they can be left in place in production. Principals are never
+ * recorded as such, only as a hash salted for this JVM; hashes can
+ * be matched within a recording but not reversed.
+ */
+@Category("Factory+")
+@StackTrace(false)
+public abstract class FPEvent extends Event {
+    private static final byte[] SALT = new byte[16];
+    static {
+        new SecureRandom().nextBytes(SALT);
+    }
+
+    @Label("Outcome")
+    @Description("success, cancelled, or the class of the exception")
+    public String outcome;
+
+    /** Times a Single as an event.
+     *
+     * The event runs from subscription until success, error or
+     * disposal. If the event type is not enabled the Single is
+     * returned untouched, and no event is created.
+     *
+     * @param type The event class.
+     * @param create Creates the event.
+     * @param describe Fills in the event just before it is committed.
+     * It is passed the value, or null on error.
+     * @return A transformer for {@link Single#compose}.
+     */
+    public static <E extends FPEvent, T> SingleTransformer<T, T> timed (
+        Class<E> type, Supplier<E> create, BiConsumer<E, T> describe)
+    {
+        return upstream -> Single.defer(() -> {
+            if (!EventTypes.enabled(type))
+                return upstream;
+            var ev = create.get();
+            var done = new AtomicBoolean(false);
+            ev.begin();
+            return upstream
+                .doOnSuccess(v -> commit(ev, done, describe, v, "success"))
+                .doOnError(e -> commit(ev, done, describe, null, outcome(e)))
+                .doOnDispose(() -> commit(ev, done, describe, null, "cancelled"));
+        });
+    }
+
+    private static <E extends FPEvent, T> void commit (E ev, AtomicBoolean done,
+        BiConsumer<E, T> describe, T value, String outcome)
+    {
+        if (done.getAndSet(true))
+            return;
+        ev.end();
+        if (!ev.shouldCommit())
+            return;
+        ev.outcome = outcome;
+        describe.accept(ev, value);
+        ev.commit();
+    }
+
+    /** The outcome to record for an error.
+     *
+     * @param e The error, or null for success.
+     * @return The outcome.
+     */
+    public static String outcome (Throwable e)
+    {
+        return e == null ? "success" : e.getClass().getSimpleName();
+    }
+
+    /** Hashes a principal (or other identifier) for recording.
+     *
+     * @param name The name to hash.
+     * @return 16 hex digits, or null if the name is null.
+     */
+    public static String hash (String name)
+    {
+        if (name == null)
+            return null;
+        try {
+            var md = MessageDigest.getInstance("SHA-256");
+            md.update(SALT);
+            var digest = md.digest(name.getBytes(StandardCharsets.UTF_8));
+            return String.format("%016x", ByteBuffer.wrap(digest).getLong());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/* Factory+ Java client library.
+ * JFR event: GSS credentials.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Running a callback with a principal's GSS credentials.
+ *
+ * This includes waiting for the principal's lock and any login to
+ * the KDC.
+ */
+@Name("uk.co.amrc.factoryplus.GssCredentials")
+@Label("GSS Credentials")
+@Category({"Factory+", "GSS"})
+public class GssCredentialsEvent extends FPEvent {
+    @Label("Principal")
+    @Description("Hash of the principal whose credentials were used")
+    public String principal;
+
+    @Label("Login")
+    @Description("Whether new credentials had to be acquired")
+    public boolean login;
+}
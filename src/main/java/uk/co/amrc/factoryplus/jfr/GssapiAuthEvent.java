@@ -0,0 +1,29 @@
+/* Factory+ Java client library.
+ * JFR event: GSSAPI authentication.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Verifying a client's GSSAPI token and fetching its ACL.
+ *
+ * This also covers the second half of a password login, once we have
+ * a token on the client's behalf.
+ */
+@Name("uk.co.amrc.factoryplus.GssapiAuth")
+@Label("GSSAPI Authentication")
+@Category({"Factory+", "Authentication"})
+public class GssapiAuthEvent extends FPEvent {
+    @Label("Principal")
+    @Description("Hash of the authenticated principal")
+    public String principal;
+
+    @Label("Proxied")
+    @Description("Whether the token was obtained for a password login")
+    public boolean proxied;
+}
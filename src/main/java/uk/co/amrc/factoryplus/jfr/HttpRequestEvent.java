@@ -0,0 +1,36 @@
+/* Factory+ Java client library.
+ * JFR event: HTTP request.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A request to a Factory+ service.
+ *
+ * This covers service discovery, fetching a token and any retry with
+ * a new token, as well as the request itself.
+ */
+@Name("uk.co.amrc.factoryplus.HttpRequest")
+@Label("Factory+ HTTP Request")
+@Category({"Factory+", "HTTP"})
+public class HttpRequestEvent extends FPEvent {
+    @Label("Service")
+    @Description("The service UUID")
+    public String service;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Status")
+    @Description("The HTTP status code, or 0 if there was no response")
+    public int status;
+
+    @Label("Cache Status")
+    @Description("The HTTP cache's response status")
+    public String cacheStatus;
+}
@@ -0,0 +1,25 @@
+/* Factory+ Java client library.
+ * JFR event: password authentication.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A username and password CONNECT, once admitted. */
+@Name("uk.co.amrc.factoryplus.PasswordAuth")
+@Label("Password Authentication")
+@Category({"Factory+", "Authentication"})
+public class PasswordAuthEvent extends FPEvent {
+    @Label("Principal")
+    @Description("Hash of the username")
+    public String principal;
+
+    @Label("Cache Status")
+    @Description("hit if the password cache saved a KDC login, else miss")
+    public String cacheStatus;
+}
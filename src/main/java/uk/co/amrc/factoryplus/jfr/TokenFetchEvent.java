@@ -0,0 +1,21 @@
+/* Factory+ Java client library.
+ * JFR event: token fetch.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Fetching a bearer token from a service. */
+@Name("uk.co.amrc.factoryplus.TokenFetch")
+@Label("Token Fetch")
+@Category({"Factory+", "HTTP"})
+public class TokenFetchEvent extends FPEvent {
+    @Label("Service URL")
+    @Description("The base URL of the service")
+    public String url;
+}
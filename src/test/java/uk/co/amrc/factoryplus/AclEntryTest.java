@@ -0,0 +1,122 @@
+/* Factory+ Java client library.
+ * ACL entry tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.util.UUID;
+
+import org.json.*;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AclEntryTest
+{
+    private static final UUID PERM =
+        UUID.fromString("a637134a-d06b-41e7-ad86-4bf62fde914a");
+    private static final UUID TARGET =
+        UUID.fromString("00000000-0000-0000-0000-000000000000");
+
+    private static AclEntry decode (String json)
+    {
+        return AclEntry.decoder().apply(new JSONTokener(json));
+    }
+
+    @Test
+    public void decoderReadsEntry ()
+    {
+        var ace = decode(String.format(
+            "{\"permission\":\"%s\",\"target\":\"%s\"}", PERM, TARGET));
+        assertEquals(PERM, ace.getPermission());
+        assertEquals(TARGET, ace.getTarget());
+        assertEquals(new AclEntry(PERM, TARGET), ace);
+    }
+
+    @Test
+    public void decoderMatchesFromJSON ()
+    {
+        var json = String.format(
+            " { \"target\" : \"%s\" , \"permission\" : \"%s\" } ",
+            TARGET.toString().toUpperCase(), PERM);
+        assertEquals(AclEntry.fromJSON(new JSONObject(json)), decode(json));
+    }
+
+    @Test
+    public void decoderSkipsOtherFields ()
+    {
+        var ace = decode(String.format(
+            "{\"note\":\"%s\",\"permission\":\"%s\",\"extra\":{\"a\":[1,2]},"
+                + "\"target\":\"%s\",\"n\":3}",
+            "a much longer string than the decoder's buffer holds", PERM, TARGET));
+        assertEquals(new AclEntry(PERM, TARGET), ace);
+    }
+
+    @Test
+    public void decoderHandlesEscapes ()
+    {
+        var ace = decode(String.format(
+            "{\"perm\\u0069ssion\":\"%s\",\"target\":\"\\u0030%s\"}",
+            PERM, TARGET.toString().substring(1)));
+        assertEquals(new AclEntry(PERM, TARGET), ace);
+    }
+
+    @Test
+    public void decoderAcceptsNonCanonicalUUIDs ()
+    {
+        var ace = decode(String.format(
+            "{\"permission\":\"%s\",\"target\":\"0-0-0-0-0\"}", PERM));
+        assertEquals(new AclEntry(PERM, TARGET), ace);
+    }
+
+    @Test
+    public void decoderSkipsNonObjects ()
+    {
+        var tok = new JSONTokener(String.format(
+            "[1,\"x\",{\"permission\":\"%s\",\"target\":\"%s\"}]", PERM, TARGET));
+        var decoder = AclEntry.decoder();
+        assertEquals('[', tok.nextClean());
+        assertNull(decoder.apply(tok));
+        assertEquals(',', tok.nextClean());
+        assertNull(decoder.apply(tok));
+        assertEquals(',', tok.nextClean());
+        assertEquals(new AclEntry(PERM, TARGET), decoder.apply(tok));
+    }
+
+    @Test
+    public void decoderRejectsMissingFields ()
+    {
+        assertThrows(JSONException.class, () -> decode("{}"));
+        assertThrows(JSONException.class, () ->
+            decode(String.format("{\"permission\":\"%s\"}", PERM)));
+        assertThrows(JSONException.class, () ->
+            decode(String.format("{\"target\":\"%s\"}", TARGET)));
+        assertThrows(JSONException.class, () ->
+            decode(String.format(
+                "{\"permission\":null,\"target\":\"%s\"}", TARGET)));
+    }
+
+    @Test
+    public void decoderRejectsBadUUIDs ()
+    {
+        assertThrows(IllegalArgumentException.class, () ->
+            decode(String.format(
+                "{\"permission\":\"%s\",\"target\":\"not-a-uuid\"}", PERM)));
+        assertThrows(IllegalArgumentException.class, () ->
+            decode(String.format(
+                "{\"permission\":\"%s\",\"target\":\"%s\"}",
+                PERM, TARGET.toString().replace('0', 'g'))));
+    }
+
+    @Test
+    public void decoderRejectsMalformedJSON ()
+    {
+        assertThrows(JSONException.class, () ->
+            decode(String.format("{\"permission\" \"%s\"}", PERM)));
+        assertThrows(JSONException.class, () ->
+            decode(String.format("{\"permission\":\"%s\"", PERM)));
+        assertThrows(JSONException.class, () ->
+            decode("{\"permission"));
+    }
+}
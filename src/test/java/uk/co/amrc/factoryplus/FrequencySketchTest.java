@@ -0,0 +1,73 @@
+/* Factory+ Java client library.
+ * Frequency sketch tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrequencySketchTest
+{
+    @Test
+    public void countsUses ()
+    {
+        var sketch = new FrequencySketch(100);
+        assertEquals(0, sketch.frequency("a"));
+        for (int i = 0; i < 5; i++)
+            sketch.increment("a");
+        sketch.increment("b");
+
+        /* A count-min sketch may overestimate but never under. */
+        assertTrue(sketch.frequency("a") >= 5);
+        assertTrue(sketch.frequency("b") >= 1);
+        assertTrue(sketch.frequency("a") > sketch.frequency("b"));
+    }
+
+    @Test
+    public void saturatesAtFifteen ()
+    {
+        var sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 100; i++)
+            sketch.increment("a");
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    @Test
+    public void agesOldCounts ()
+    {
+        int keys = 16;
+        var sketch = new FrequencySketch(keys);
+        for (int i = 0; i < 8; i++)
+            sketch.increment("old");
+        int before = sketch.frequency("old");
+
+        /* Ten times the key count in additions triggers a reset. */
+        for (int i = 0; i < 10 * keys; i++)
+            sketch.increment(Integer.valueOf(i));
+
+        assertTrue(sketch.frequency("old") < before,
+            "old count not aged: " + sketch.frequency("old"));
+    }
+
+    @Test
+    public void separatesManyKeys ()
+    {
+        var sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 1000; i++)
+            sketch.increment("cold-" + i);
+        for (int n = 0; n < 10; n++)
+            for (int i = 0; i < 10; i++)
+                sketch.increment("hot-" + i);
+
+        for (int i = 0; i < 10; i++)
+            assertTrue(sketch.frequency("hot-" + i) >= 10);
+
+        int high = 0;
+        for (int i = 0; i < 1000; i++)
+            if (sketch.frequency("cold-" + i) >= 10)
+                high++;
+        assertTrue(high < 10, high + " cold keys look hot");
+    }
+}
@@ -0,0 +1,298 @@
+/* Factory+ Java client library.
+ * Request cache tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.subjects.SingleSubject;
+
+public class RequestCacheTest
+{
+    private static final long SECOND = 1000000000L;
+
+    /* A source which counts its calls and answers from a function. */
+    private static class Source implements Function<String, Single<String>>
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        Function<String, Single<String>> answer =
+            key -> Single.just(key + "-" + calls.get());
+
+        public Single<String> apply (String key)
+        {
+            calls.incrementAndGet();
+            return Single.defer(() -> answer.apply(key));
+        }
+    }
+
+    @Test
+    public void concurrentGetsShareOneLoad ()
+    {
+        var src = new Source();
+        var pending = SingleSubject.<String>create();
+        src.answer = key -> pending;
+        var cache = new RequestCache<String, String>(src);
+
+        var first = cache.get("a").test();
+        var second = cache.get("a").test();
+        assertEquals(1, src.calls.get());
+        first.assertNotComplete();
+
+        pending.onSuccess("v");
+        first.assertValue("v");
+        second.assertValue("v");
+
+        cache.get("a").test().assertValue("v");
+        assertEquals(1, src.calls.get());
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(2, cache.stats().missCount());
+    }
+
+    @Test
+    public void putSupersedesLoadInFlight ()
+    {
+        var src = new Source();
+        var pending = SingleSubject.<String>create();
+        src.answer = key -> pending;
+        var cache = new RequestCache<String, String>(src);
+
+        var waiting = cache.get("a").test();
+        cache.put("a", "new");
+        pending.onSuccess("old");
+
+        waiting.assertValue("old");
+        cache.get("a").test().assertValue("new");
+        assertEquals(1, src.calls.get());
+    }
+
+    @Test
+    public void invalidateSupersedesLoadInFlight ()
+    {
+        var src = new Source();
+        var pending = SingleSubject.<String>create();
+        src.answer = key -> pending;
+        var cache = new RequestCache<String, String>(src);
+
+        cache.get("a").test();
+        cache.invalidate("a");
+        pending.onSuccess("old");
+        assertEquals(0, cache.stats().size());
+
+        src.answer = key -> Single.just("fresh");
+        cache.get("a").test().assertValue("fresh");
+        assertEquals(2, src.calls.get());
+    }
+
+    @Test
+    public void zeroTTLStillSharesLoads ()
+    {
+        var src = new Source();
+        var pending = SingleSubject.<String>create();
+        src.answer = key -> pending;
+        var cache = new RequestCache<String, String>(src)
+            .withTTL(Duration.ZERO);
+
+        cache.get("a").test();
+        cache.get("a").test();
+        pending.onSuccess("v");
+        assertEquals(1, src.calls.get());
+        assertEquals(0, cache.stats().size());
+    }
+
+    @Test
+    public void expiredValueIsReloaded ()
+    {
+        var src = new Source();
+        var cache = new RequestCache<String, String>(src)
+            .withTTL(Duration.ofMinutes(1));
+
+        cache.put("a", "old", Duration.ofMinutes(2));
+        cache.get("a").test().assertValue("a-1");
+        assertEquals(1, src.calls.get());
+    }
+
+    @Test
+    public void staleValueIsServedWhileRefreshing ()
+    {
+        var src = new Source();
+        var pending = SingleSubject.<String>create();
+        src.answer = key -> pending;
+        var cache = new RequestCache<String, String>(src)
+            .withTTL(Duration.ofMinutes(1))
+            .withMaxStale(Duration.ofHours(1));
+
+        cache.put("a", "old", Duration.ofMinutes(2));
+        cache.get("a").test().assertValue("old");
+        cache.get("a").test().assertValue("old");
+        assertEquals(1, src.calls.get());
+        assertEquals(2, cache.stats().staleHitCount());
+
+        pending.onSuccess("new");
+        cache.get("a").test().assertValue("new");
+        assertEquals(1, src.calls.get());
+    }
+
+    @Test
+    public void failedRefreshKeepsStaleValueAndWaitsToRetry ()
+    {
+        var src = new Source();
+        src.answer = key -> Single.error(new RuntimeException("down"));
+        var cache = new RequestCache<String, String>(src)
+            .withTTL(Duration.ofMinutes(1))
+            .withMaxStale(Duration.ofHours(1))
+            .withFailureTTL(e -> Duration.ofMinutes(1), Duration.ofHours(1));
+
+        cache.put("a", "old", Duration.ofMinutes(2));
+        cache.get("a").test().assertValue("old");
+        cache.get("a").test().assertValue("old");
+        cache.get("a").test().assertValue("old");
+        assertEquals(1, src.calls.get());
+        assertEquals(1, cache.stats().loadFailureCount());
+    }
+
+    @Test
+    public void tooStaleValueIsReloaded ()
+    {
+        var src = new Source();
+        var cache = new RequestCache<String, String>(src)
+            .withTTL(Duration.ofMinutes(1))
+            .withMaxStale(Duration.ofMinutes(1));
+
+        cache.put("a", "old", Duration.ofMinutes(3));
+        cache.get("a").test().assertValue("a-1");
+        assertEquals(0, cache.stats().staleHitCount());
+    }
+
+    @Test
+    public void failuresAreNotCachedByDefault ()
+    {
+        var src = new Source();
+        src.answer = key -> Single.error(new RuntimeException("down"));
+        var cache = new RequestCache<String, String>(src);
+
+        cache.get("a").test().assertError(RuntimeException.class);
+        cache.get("a").test().assertError(RuntimeException.class);
+        assertEquals(2, src.calls.get());
+        assertEquals(0, cache.stats().negativeHitCount());
+    }
+
+    @Test
+    public void failuresAreCachedForTheirTTL ()
+    {
+        var src = new Source();
+        src.answer = key -> Single.error(new IllegalStateException("404"));
+        var cache = new RequestCache<String, String>(src)
+            .withFailureTTL(e -> Duration.ofMinutes(1), Duration.ofHours(1));
+
+        cache.get("a").test().assertError(IllegalStateException.class);
+        cache.get("a").test().assertError(IllegalStateException.class);
+        assertEquals(1, src.calls.get());
+        assertEquals(1, cache.stats().negativeHitCount());
+
+        cache.put("a", "v");
+        cache.get("a").test().assertValue("v");
+    }
+
+    @Test
+    public void failuresWithNoTTLAreNotCached ()
+    {
+        var src = new Source();
+        src.answer = key -> Single.error(new RuntimeException("down"));
+        var cache = new RequestCache<String, String>(src)
+            .withFailureTTL(e -> null, Duration.ofHours(1));
+
+        cache.get("a").test().assertError(RuntimeException.class);
+        cache.get("a").test().assertError(RuntimeException.class);
+        assertEquals(2, src.calls.get());
+    }
+
+    @Test
+    public void negativeMaxFailureTTLIsRejected ()
+    {
+        var cache = new RequestCache<String, String>(new Source());
+        assertThrows(IllegalArgumentException.class, () ->
+            cache.withFailureTTL(e -> Duration.ofMinutes(1),
+                Duration.ofMinutes(-1)));
+    }
+
+    @Test
+    public void backoffDoublesUpToTheMaximum ()
+    {
+        long max = 3600 * SECOND;
+        assertEquals(SECOND, RequestCache.backoff(SECOND, 1, max));
+        assertEquals(2 * SECOND, RequestCache.backoff(SECOND, 2, max));
+        assertEquals(8 * SECOND, RequestCache.backoff(SECOND, 4, max));
+        assertEquals(max, RequestCache.backoff(SECOND, 13, max));
+    }
+
+    @Test
+    public void backoffSaturatesRatherThanOverflowing ()
+    {
+        long max = Long.MAX_VALUE;
+        for (int failures = 1; failures < 200; failures++) {
+            long ttl = RequestCache.backoff(SECOND, failures, max);
+            assertTrue(ttl >= SECOND, "TTL went negative after " + failures);
+        }
+        assertEquals(max, RequestCache.backoff(SECOND, 64, max));
+        assertEquals(max, RequestCache.backoff(SECOND, Integer.MAX_VALUE, max));
+        assertEquals(max, RequestCache.backoff(Long.MAX_VALUE, 2, max));
+    }
+
+    @Test
+    public void rarelyUsedKeysAreNotAdmitted ()
+    {
+        var src = new Source();
+        var cache = new RequestCache<String, String>(src)
+            .withMaxSize(2);
+
+        cache.put("a", "va");
+        cache.put("b", "vb");
+        for (int i = 0; i < 3; i++) {
+            cache.get("b").test();
+            cache.get("a").test();
+        }
+
+        /* b is least recent, but c has been asked for less often. */
+        cache.get("c").test().assertValue("c-1");
+        var stats = cache.stats();
+        assertEquals(1, stats.rejectionCount());
+        assertEquals(0, stats.evictionCount());
+        assertEquals(2, stats.size());
+
+        /* Once c is asked for more often it displaces b. */
+        for (int i = 0; i < 3; i++)
+            cache.get("c").test();
+        stats = cache.stats();
+        assertEquals(1, stats.evictionCount());
+        assertEquals(2, stats.size());
+        int calls = src.calls.get();
+        cache.get("c").test();
+        cache.get("a").test();
+        assertEquals(calls, src.calls.get());
+    }
+
+    @Test
+    public void putIsAlwaysAdmitted ()
+    {
+        var cache = new RequestCache<String, String>(new Source())
+            .withMaxSize(1);
+
+        cache.put("a", "va");
+        for (int i = 0; i < 5; i++)
+            cache.get("a").test();
+        cache.put("b", "vb");
+
+        var stats = cache.stats();
+        assertEquals(1, stats.size());
+        assertEquals(1, stats.evictionCount());
+        cache.get("b").test().assertValue("vb");
+    }
+}
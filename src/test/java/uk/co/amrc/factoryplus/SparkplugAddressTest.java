@@ -0,0 +1,45 @@
+/* Factory+ Java client library.
+ * Sparkplug address tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus;
+
+import org.json.JSONObject;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SparkplugAddressTest
+{
+    @Test
+    public void readsNodeAddress ()
+    {
+        var addr = SparkplugAddress.fromJSON(
+            new JSONObject("{\"group_id\":\"G\",\"node_id\":\"N\"}"));
+        assertEquals("G", addr.getGroup());
+        assertEquals("N", addr.getNode());
+        assertEquals(new SparkplugAddress("G", "N"), addr);
+        assertEquals(new SparkplugAddress("G", "N").hashCode(), addr.hashCode());
+        assertEquals("G/N", addr.toString());
+    }
+
+    @Test
+    public void readsGroupAddress ()
+    {
+        var addr = SparkplugAddress.fromJSON(
+            new JSONObject("{\"group_id\":\"G\"}"));
+        assertEquals("G", addr.getGroup());
+        assertNull(addr.getNode());
+        assertEquals(new SparkplugAddress("G", null), addr);
+        assertNotEquals(new SparkplugAddress("G", "N"), addr);
+    }
+
+    @Test
+    public void readsEmptyEntry ()
+    {
+        var addr = SparkplugAddress.fromJSON(new JSONObject());
+        assertNull(addr.getGroup());
+        assertNull(addr.getNode());
+    }
+}
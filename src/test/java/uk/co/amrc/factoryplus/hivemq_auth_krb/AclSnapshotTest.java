@@ -0,0 +1,199 @@
+/* Factory+ HiveMQ auth plugin.
+ * ACL snapshot tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.json.JSONObject;
+
+import com.hivemq.extension.sdk.api.auth.parameter.TopicPermission.MqttActivity;
+
+import io.reactivex.rxjava3.core.Single;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import uk.co.amrc.factoryplus.RequestCache;
+import uk.co.amrc.factoryplus.SparkplugAddress;
+
+public class AclSnapshotTest
+{
+    private static final UUID TEMPLATE = UUID.randomUUID();
+
+    @TempDir
+    Path dir;
+
+    private static RequestCache<String, MqttAcl> cache ()
+    {
+        return new RequestCache<String, MqttAcl>(p -> Single.never())
+            .withTTL(Duration.ofMinutes(5))
+            .withMaxStale(Duration.ofHours(1));
+    }
+
+    private static MqttAcl acl (String... topics)
+    {
+        return MqttAcl.of(Arrays.stream(topics)
+            .map(t -> new MqttAce(t, MqttActivity.ALL))
+            .collect(java.util.stream.Collectors.toList()));
+    }
+
+    /* Writes a snapshot with two ACLs and a template. */
+    private AclSnapshot write (Path file)
+    {
+        var acls = cache();
+        acls.put("alice@REALM", acl("a/#", "caf\u00e9/+"));
+        acls.put("bob@REALM", acl("b/#"), Duration.ofMinutes(10));
+        var templates = Map.of(TEMPLATE, MqttTemplate.compile(
+            new JSONObject("{\"spBv1.0/%g/NCMD/%n\":\"w\",\"x\":\"r\"}"),
+            Optional.of("7")));
+
+        var snapshot = new AclSnapshot(file, Duration.ofMinutes(1));
+        snapshot.save(acls, templates);
+        return snapshot;
+    }
+
+    @Test
+    public void roundTrip ()
+    {
+        var snapshot = write(dir.resolve("acls"));
+        var acls = cache();
+        var templates = new HashMap<UUID, MqttTemplate>();
+        snapshot.load(acls, templates);
+
+        assertEquals(2, acls.stats().size());
+        assertSame(acl("a/#", "caf\u00e9/+"),
+            acls.get("alice@REALM").blockingGet());
+
+        /* Ages are kept: bob's entry is past its TTL but not stale. */
+        assertSame(acl("b/#"), acls.get("bob@REALM").blockingGet());
+        assertEquals(1, acls.stats().staleHitCount());
+
+        var tmpl = templates.get(TEMPLATE);
+        assertEquals(Optional.of("7"), tmpl.getVersion());
+        assertEquals(2, tmpl.expand(new SparkplugAddress("G", "N")).size());
+    }
+
+    @Test
+    public void fileIsPrivate ()
+        throws IOException
+    {
+        var file = dir.resolve("acls");
+        write(file);
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix"))
+            return;
+        assertEquals("rw-------", PosixFilePermissions.toString(
+            Files.getPosixFilePermissions(file)));
+    }
+
+    @Test
+    public void saveReplacesTheFile ()
+        throws IOException
+    {
+        var file = dir.resolve("acls");
+        write(file);
+        var snapshot = new AclSnapshot(file, Duration.ofMinutes(1));
+        snapshot.save(cache(), Map.of());
+
+        var acls = cache();
+        var templates = new HashMap<UUID, MqttTemplate>();
+        snapshot.load(acls, templates);
+        assertEquals(0, acls.stats().size());
+        assertTrue(templates.isEmpty());
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void truncatedFileRestoresNothing ()
+        throws IOException
+    {
+        var file = dir.resolve("acls");
+        write(file);
+        var whole = Files.readAllBytes(file);
+        var cut = dir.resolve("cut");
+        var snapshot = new AclSnapshot(cut, Duration.ofMinutes(1));
+
+        for (int len = 0; len < whole.length; len++) {
+            Files.write(cut, Arrays.copyOf(whole, len));
+            var acls = cache();
+            var templates = new HashMap<UUID, MqttTemplate>();
+            snapshot.load(acls, templates);
+            assertEquals(0, acls.stats().size(), "restored from " + len);
+            assertTrue(templates.isEmpty(), "restored from " + len);
+        }
+    }
+
+    @Test
+    public void hugeCountsAreRejected ()
+        throws IOException
+    {
+        var file = dir.resolve("acls");
+        var buf = ByteBuffer.allocate(24)
+            .putInt(0x46504143).putInt(1)
+            .putLong(System.currentTimeMillis())
+            .putInt(0)
+            .putInt(Integer.MAX_VALUE);
+        Files.write(file, buf.array());
+
+        var acls = cache();
+        new AclSnapshot(file, Duration.ofMinutes(1))
+            .load(acls, new HashMap<UUID, MqttTemplate>());
+        assertEquals(0, acls.stats().size());
+    }
+
+    @Test
+    public void badHeaderIsIgnored ()
+        throws IOException
+    {
+        var file = dir.resolve("acls");
+        write(file);
+        var bytes = Files.readAllBytes(file);
+        bytes[7] = 2;
+        Files.write(file, bytes);
+
+        var acls = cache();
+        new AclSnapshot(file, Duration.ofMinutes(1))
+            .load(acls, new HashMap<UUID, MqttTemplate>());
+        assertEquals(0, acls.stats().size());
+    }
+
+    @Test
+    public void missingFileIsIgnored ()
+    {
+        var acls = cache();
+        new AclSnapshot(dir.resolve("none"), Duration.ofMinutes(1))
+            .load(acls, new HashMap<UUID, MqttTemplate>());
+        assertEquals(0, acls.stats().size());
+    }
+
+    @Test
+    public void stringAndCountHelpers ()
+    {
+        var in = ByteBuffer.allocate(8).putInt(3).putInt(1).flip();
+        assertThrows(IllegalArgumentException.class, () ->
+            AclSnapshot.readCount(in, 2));
+        assertThrows(IllegalArgumentException.class, () ->
+            AclSnapshot.readCount(ByteBuffer.allocate(4).putInt(-1).flip(), 1));
+        assertThrows(IllegalArgumentException.class, () ->
+            AclSnapshot.activity((byte)0));
+        for (var a : MqttActivity.values())
+            assertEquals(a, AclSnapshot.activity(
+                (byte)AclSnapshot.activityCode(a)));
+    }
+}
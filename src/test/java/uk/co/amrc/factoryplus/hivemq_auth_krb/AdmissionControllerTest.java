@@ -0,0 +1,159 @@
+/* Factory+ HiveMQ auth plugin.
+ * Admission controller tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControllerTest
+{
+    /* Records which tasks ran on which executor. */
+    private final List<String> ran = new ArrayList<String>();
+    private final Executor now = task -> { ran.add("now"); task.run(); };
+    private final Executor later = task -> { ran.add("later"); task.run(); };
+
+    private AdmissionController controller (int capacity, int maxQueue)
+    {
+        return new AdmissionController(capacity, maxQueue,
+            Duration.ofSeconds(10), later);
+    }
+
+    @Test
+    public void admitsUpToCapacity ()
+    {
+        var ac = controller(2, 0);
+        var a = ac.enter(1);
+        var b = ac.enter(1);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertEquals(2, ac.inUse());
+
+        a.start(now, () -> ran.add("a"));
+        assertEquals(List.of("now", "a"), ran);
+
+        assertNull(ac.enter(1));
+        assertEquals(1, ac.rejectedCount());
+    }
+
+    @Test
+    public void queuesInOrderUntilCapacityFrees ()
+    {
+        var ac = controller(1, 2);
+        var a = ac.enter(1);
+        a.start(now, () -> ran.add("a"));
+        var b = ac.enter(1);
+        var c = ac.enter(1);
+        assertNotNull(b);
+        assertNotNull(c);
+        assertEquals(2, ac.queueLength());
+        assertNull(ac.enter(1));
+
+        b.start(now, () -> ran.add("b"));
+        c.start(now, () -> ran.add("c"));
+        assertEquals(List.of("now", "a"), ran);
+
+        a.release();
+        assertEquals(List.of("now", "a", "later", "b"), ran);
+        assertEquals(1, ac.queueLength());
+        b.cancel();
+        c.release();
+        assertEquals(List.of("now", "a", "later", "b", "later", "c"), ran);
+        assertEquals(0, ac.inUse());
+        assertEquals(0, ac.queueLength());
+    }
+
+    @Test
+    public void taskStartedAfterGrantRunsNow ()
+    {
+        var ac = controller(1, 1);
+        var a = ac.enter(1);
+        var b = ac.enter(1);
+        a.release();
+        b.start(now, () -> ran.add("b"));
+        assertEquals(List.of("now", "b"), ran);
+    }
+
+    @Test
+    public void heavyAttemptsWaitForRoom ()
+    {
+        var ac = controller(3, 5);
+        var a = ac.enter(2);
+        var b = ac.enter(2);
+        var c = ac.enter(1);
+        assertEquals(2, ac.inUse());
+        assertEquals(2, ac.queueLength());
+
+        /* c fits, but must not overtake b. */
+        b.start(now, () -> ran.add("b"));
+        c.start(now, () -> ran.add("c"));
+        assertTrue(ran.isEmpty());
+
+        a.release();
+        assertEquals(List.of("later", "b", "later", "c"), ran);
+        assertEquals(3, ac.inUse());
+    }
+
+    @Test
+    public void weightIsCappedAtCapacity ()
+    {
+        var ac = controller(2, 1);
+        var a = ac.enter(10);
+        assertNotNull(a);
+        assertEquals(2, ac.inUse());
+        a.release();
+        assertEquals(0, ac.inUse());
+    }
+
+    @Test
+    public void releaseIsIdempotent ()
+    {
+        var ac = controller(2, 1);
+        var a = ac.enter(1);
+        ac.enter(1);
+        a.release();
+        a.release();
+        a.cancel();
+        assertEquals(1, ac.inUse());
+    }
+
+    @Test
+    public void refusesWhenTheWaitWouldBeTooLong ()
+        throws InterruptedException
+    {
+        var ac = new AdmissionController(1, 10,
+            Duration.ofMillis(10), later);
+
+        /* One unit of work takes about 50ms. */
+        var a = ac.enter(1);
+        Thread.sleep(50);
+        a.release();
+
+        ac.enter(1);
+        assertNull(ac.enter(1));
+        assertEquals(1, ac.rejectedCount());
+        assertEquals(0, ac.queueLength());
+    }
+
+    @Test
+    public void cancelledWorkDoesNotSkewTheEstimate ()
+        throws InterruptedException
+    {
+        var ac = new AdmissionController(1, 10,
+            Duration.ofMillis(10), later);
+
+        var a = ac.enter(1);
+        Thread.sleep(50);
+        a.cancel();
+
+        ac.enter(1);
+        assertNotNull(ac.enter(1));
+    }
+}
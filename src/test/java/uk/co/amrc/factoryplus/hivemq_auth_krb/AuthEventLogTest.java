@@ -0,0 +1,55 @@
+/* Factory+ HiveMQ auth plugin.
+ * Auth event log tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AuthEventLogTest
+{
+    private static String quote (String value)
+    {
+        var line = new StringBuilder("x=");
+        AuthEventLog.quote(line, value);
+        return line.toString();
+    }
+
+    @Test
+    public void plainValuesAreNotQuoted ()
+    {
+        assertEquals("x=-", quote(null));
+        assertEquals("x=client-1", quote("client-1"));
+        assertEquals("x=alice@REALM", quote("alice@REALM"));
+        assertEquals("x=caf\u00e9", quote("caf\u00e9"));
+    }
+
+    @Test
+    public void valuesAreQuotedLikeTheRegex ()
+    {
+        for (var value : new String[] {
+            "", "a b", "a\tb", "a\nb", "a\u000bb", "a\rb", "a=b", "a\"b",
+            "\"", "end ", "a\u00a0b", "a\u001cb",
+        }) {
+            var quoted = value.isEmpty() || value.matches(".*[\\s\"=].*");
+            var expect = quoted
+                ? '"' + value.replace("\"", "\\\"") + '"'
+                : value;
+            assertEquals("x=" + expect, quote(value), "quoting " + value);
+        }
+    }
+
+    @Test
+    public void levelsAndPrincipalsParse ()
+    {
+        assertEquals(AuthEventLog.Level.ALL, AuthEventLog.level(" all "));
+        assertThrows(java.util.ServiceConfigurationError.class, () ->
+            AuthEventLog.level("some"));
+        assertEquals(Set.of("a@R", "b@R"),
+            AuthEventLog.principals(" a@R, ,b@R,"));
+    }
+}
@@ -0,0 +1,205 @@
+/* Factory+ HiveMQ auth plugin.
+ * Auth trace tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import static uk.co.amrc.factoryplus.hivemq_auth_krb.AuthTracer.Stage;
+
+public class AuthTracerTest
+{
+    @TempDir
+    Path dir;
+
+    private ScheduledExecutorService exec;
+
+    @BeforeEach
+    public void startExecutor ()
+    {
+        exec = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    public void stopExecutor ()
+    {
+        exec.shutdownNow();
+    }
+
+    @Test
+    public void varintRoundTrip ()
+        throws IOException
+    {
+        long[] values = { 0, 1, 127, 128, 300, 16383, 16384,
+            Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+
+        var buf = new ByteArrayOutputStream();
+        var out = new DataOutputStream(buf);
+        for (var v : values)
+            AuthTracer.writeVarLong(out, v);
+
+        var bytes = buf.toByteArray();
+        var in = ByteBuffer.wrap(bytes);
+        for (var v : values)
+            assertEquals(v, AuthTracer.readVarLong(in));
+        assertFalse(in.hasRemaining());
+
+        /* Small values are small. */
+        buf.reset();
+        AuthTracer.writeVarLong(out, 127);
+        assertEquals(1, buf.size());
+        AuthTracer.writeVarLong(out, 128);
+        assertEquals(3, buf.size());
+    }
+
+    @Test
+    public void disabledTracerIgnoresRecords ()
+    {
+        var tracer = new AuthTracer(null);
+        assertFalse(tracer.enabled());
+        tracer.start(exec);
+        var rec = tracer.connect("password");
+        rec.principal("alice@REALM");
+        rec.stage(Stage.KDC, AuthTracer.OK, 1000000);
+        rec.finish("success");
+        assertEquals(-1, rec.getStage(Stage.KDC));
+        assertEquals(0, rec.getPrincipal());
+    }
+
+    @Test
+    public void recordsRoundTrip ()
+        throws IOException
+    {
+        var file = dir.resolve("trace");
+        var tracer = new AuthTracer(file);
+        tracer.start(exec);
+
+        var conn = tracer.connect("gssapi").principal("alice@REALM");
+        conn.stage(Stage.ADMISSION, AuthTracer.OK, 2000);
+        conn.stage(Stage.GSS, AuthTracer.OK, 300000);
+        conn.stage(Stage.ACL, AuthTracer.CACHED, 5000);
+        conn.finish("success");
+        conn.finish("failure");
+
+        var load = tracer.aclLoad("alice@REALM");
+        load.stage(Stage.AUTH, AuthTracer.OK, 10000000);
+        load.stage(Stage.CONFIGDB, AuthTracer.OK, 1000000);
+        load.stage(Stage.CONFIGDB, AuthTracer.ERROR, 3000000);
+        load.finish("success");
+
+        tracer.connect("password").principal("bob@REALM").finish("busy");
+        tracer.stop();
+
+        var recs = AuthTracer.read(file);
+        assertEquals(3, recs.size());
+
+        var c = recs.get(0);
+        assertTrue(c.isConnect());
+        assertEquals("gssapi", c.getMech());
+        assertEquals("success", c.getResult());
+        assertEquals(2, c.getStage(Stage.ADMISSION));
+        assertEquals(300, c.getStage(Stage.GSS));
+        assertEquals(5, c.getStage(Stage.ACL));
+        assertEquals(AuthTracer.CACHED, c.getOutcome(Stage.ACL));
+        assertEquals(-1, c.getStage(Stage.KDC));
+        assertTrue(c.getDuration() >= 0);
+        long now = System.currentTimeMillis() * 1000;
+        assertTrue(Math.abs(now - c.getTime()) < 60000000L,
+            "time " + c.getTime() + " vs " + now);
+
+        var l = recs.get(1);
+        assertFalse(l.isConnect());
+        assertEquals(c.getPrincipal(), l.getPrincipal());
+        assertEquals(10000, l.getStage(Stage.AUTH));
+        assertEquals(2000, l.getStage(Stage.CONFIGDB));
+        assertEquals(AuthTracer.ERROR, l.getOutcome(Stage.CONFIGDB));
+
+        var b = recs.get(2);
+        assertEquals("password", b.getMech());
+        assertEquals("busy", b.getResult());
+        assertNotEquals(c.getPrincipal(), b.getPrincipal());
+    }
+
+    @Test
+    public void lateStagesAreIgnored ()
+        throws IOException
+    {
+        var file = dir.resolve("trace");
+        var tracer = new AuthTracer(file);
+        tracer.start(exec);
+
+        var rec = tracer.connect("password").principal("alice@REALM");
+        rec.stage(Stage.KDC, AuthTracer.OK, 1000000);
+        rec.finish("timeout");
+        rec.stage(Stage.ACL, AuthTracer.ERROR, 9000000);
+        rec.stage(Stage.KDC, AuthTracer.ERROR, 9000000);
+        tracer.stop();
+
+        assertEquals(-1, rec.getStage(Stage.ACL));
+        var recs = AuthTracer.read(file);
+        assertEquals(1, recs.size());
+        assertEquals("timeout", recs.get(0).getResult());
+        assertEquals(1000, recs.get(0).getStage(Stage.KDC));
+        assertEquals(AuthTracer.OK, recs.get(0).getOutcome(Stage.KDC));
+        assertEquals(-1, recs.get(0).getStage(Stage.ACL));
+    }
+
+    @Test
+    public void truncatedRecordIsIgnored ()
+        throws IOException
+    {
+        var file = dir.resolve("trace");
+        var tracer = new AuthTracer(file);
+        tracer.start(exec);
+        tracer.connect("password").principal("alice@REALM").finish("success");
+        tracer.connect("password").principal("bob@REALM").finish("failure");
+        tracer.stop();
+
+        var bytes = Files.readAllBytes(file);
+        Files.write(file, java.util.Arrays.copyOf(bytes, bytes.length - 3));
+        var recs = AuthTracer.read(file);
+        assertEquals(1, recs.size());
+        assertEquals("success", recs.get(0).getResult());
+    }
+
+    @Test
+    public void runsAppendToTheFile ()
+        throws IOException
+    {
+        var file = dir.resolve("trace");
+        for (int i = 0; i < 2; i++) {
+            var tracer = new AuthTracer(file);
+            tracer.start(exec);
+            tracer.connect("other").finish("timeout");
+            tracer.stop();
+        }
+        var recs = AuthTracer.read(file);
+        assertEquals(2, recs.size());
+        assertEquals("other", recs.get(1).getMech());
+        assertEquals("timeout", recs.get(1).getResult());
+    }
+
+    @Test
+    public void corruptFileIsAnError ()
+        throws IOException
+    {
+        var file = dir.resolve("trace");
+        Files.write(file, new byte[] { AuthTracer.CONNECT, 0, 0 });
+        assertThrows(IOException.class, () -> AuthTracer.read(file));
+    }
+}
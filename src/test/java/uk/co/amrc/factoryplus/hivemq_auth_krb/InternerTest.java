@@ -0,0 +1,93 @@
+/* Factory+ HiveMQ auth plugin.
+ * Interner and ACL interning tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.util.List;
+
+import com.hivemq.extension.sdk.api.auth.parameter.TopicPermission.MqttActivity;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InternerTest
+{
+    @Test
+    public void returnsTheCanonicalValue ()
+    {
+        var interner = new Interner<String>();
+        var a = new String("value");
+        var b = new String("value");
+        assertSame(a, interner.intern(a));
+        assertSame(a, interner.intern(b));
+        assertEquals(1, interner.size());
+    }
+
+    @Test
+    public void holdsAreCounted ()
+    {
+        var interner = new Interner<String>();
+        var a = interner.intern(new String("value"));
+        interner.hold(a);
+        interner.hold(a);
+        assertEquals(1, interner.heldSize());
+        interner.release(a);
+        assertEquals(1, interner.heldSize());
+        interner.release(a);
+        assertEquals(0, interner.heldSize());
+
+        /* Releasing too often does nothing. */
+        interner.release(a);
+        assertEquals(0, interner.heldSize());
+    }
+
+    @Test
+    public void heldValuesSurviveCollection ()
+        throws InterruptedException
+    {
+        var interner = new Interner<String>();
+        var a = interner.intern(new String("value"));
+        int identity = System.identityHashCode(a);
+        interner.hold(a);
+        a = null;
+
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        var b = interner.intern(new String("value"));
+        assertEquals(identity, System.identityHashCode(b));
+    }
+
+    @Test
+    public void aclsAreInternedAndDeduplicated ()
+    {
+        var pub = new MqttAce("a/b", MqttActivity.PUBLISH);
+        var sub = new MqttAce("a/#", MqttActivity.SUBSCRIBE);
+        var one = MqttAcl.of(List.of(pub, sub, pub));
+        var two = MqttAcl.of(List.of(new MqttAce("a/b", MqttActivity.PUBLISH),
+            new MqttAce("a/#", MqttActivity.SUBSCRIBE)));
+
+        assertSame(one, two);
+        assertEquals(2, one.size());
+        assertEquals(List.of(pub, sub), one.entries());
+        assertNotSame(one, MqttAcl.of(List.of(sub, pub)));
+    }
+
+    @Test
+    public void retainedAclsAreCounted ()
+    {
+        var acl = MqttAcl.of(List.of(
+            new MqttAce("retain/test", MqttActivity.ALL)));
+        int before = MqttAcl.retainedCount();
+        acl.retain();
+        acl.retain();
+        assertEquals(before + 1, MqttAcl.retainedCount());
+        acl.release();
+        assertEquals(before + 1, MqttAcl.retainedCount());
+        acl.release();
+        assertEquals(before, MqttAcl.retainedCount());
+    }
+}
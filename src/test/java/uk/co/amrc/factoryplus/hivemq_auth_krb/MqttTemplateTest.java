@@ -0,0 +1,133 @@
+/* Factory+ HiveMQ auth plugin.
+ * Permission template tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.json.*;
+
+import com.hivemq.extension.sdk.api.auth.parameter.TopicPermission.MqttActivity;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import uk.co.amrc.factoryplus.SparkplugAddress;
+
+public class MqttTemplateTest
+{
+    private static final SparkplugAddress NODE = new SparkplugAddress("G", "N");
+
+    private static MqttTemplate compile (String json)
+    {
+        return MqttTemplate.compile(new JSONObject(json), Optional.of("v1"));
+    }
+
+    /* JSON object keys have no order. */
+    private static Set<MqttAce> set (List<MqttAce> aces)
+    {
+        return new HashSet<MqttAce>(aces);
+    }
+
+    @Test
+    public void compilesAccessModes ()
+    {
+        var tmpl = compile("{\"a\":\"r\",\"b\":\"w\",\"c\":\"rw\",\"d\":\"wr\","
+            + "\"e\":\"\",\"f\":\"x\",\"g\":1,\"h\":null}");
+        assertFalse(tmpl.needsTarget());
+        assertEquals(Set.of(
+                new MqttAce("a", MqttActivity.SUBSCRIBE),
+                new MqttAce("b", MqttActivity.PUBLISH),
+                new MqttAce("c", MqttActivity.ALL),
+                new MqttAce("d", MqttActivity.ALL)),
+            set(tmpl.fixedEntries()));
+        assertSame(tmpl.fixedEntries(), tmpl.expand(null));
+    }
+
+    @Test
+    public void expandsSlots ()
+    {
+        var tmpl = compile("{\"spBv1.0/%g/NCMD/%n\":\"w\","
+            + "\"spBv1.0/%g/+/%n/#\":\"r\",\"fixed/#\":\"rw\"}");
+        assertTrue(tmpl.needsTarget());
+        assertEquals(List.of(new MqttAce("fixed/#", MqttActivity.ALL)),
+            tmpl.fixedEntries());
+        assertEquals(Set.of(
+                new MqttAce("fixed/#", MqttActivity.ALL),
+                new MqttAce("spBv1.0/G/NCMD/N", MqttActivity.PUBLISH),
+                new MqttAce("spBv1.0/G/+/N/#", MqttActivity.SUBSCRIBE)),
+            set(tmpl.expand(NODE)));
+    }
+
+    @Test
+    public void leavesOtherPercentsAlone ()
+    {
+        var tmpl = compile("{\"%x/%%g/%/%n%\":\"r\"}");
+        assertEquals(List.of(new MqttAce("%x/%G/%/N%", MqttActivity.SUBSCRIBE)),
+            tmpl.expand(NODE));
+    }
+
+    @Test
+    public void groupTemplatesDontNeedANode ()
+    {
+        var tmpl = compile("{\"spBv1.0/%g/#\":\"r\"}");
+        assertEquals(List.of(new MqttAce("spBv1.0/G/#", MqttActivity.SUBSCRIBE)),
+            tmpl.expand(new SparkplugAddress("G", null)));
+    }
+
+    @Test
+    public void missingAddressPartsAreErrors ()
+    {
+        var tmpl = compile("{\"spBv1.0/%g/NCMD/%n\":\"w\"}");
+        assertThrows(JSONException.class, () ->
+            tmpl.expand(new SparkplugAddress("G", null)));
+        assertThrows(JSONException.class, () ->
+            tmpl.expand(new SparkplugAddress(null, "N")));
+    }
+
+    private static MqttTemplate roundTrip (MqttTemplate tmpl)
+        throws IOException
+    {
+        var buf = new ByteArrayOutputStream();
+        tmpl.write(new DataOutputStream(buf));
+        var in = ByteBuffer.wrap(buf.toByteArray());
+        var rv = MqttTemplate.read(in);
+        assertFalse(in.hasRemaining());
+        return rv;
+    }
+
+    @Test
+    public void snapshotRoundTrip ()
+        throws IOException
+    {
+        var tmpl = compile("{\"spBv1.0/%g/NCMD/%n\":\"w\","
+            + "\"%n\":\"r\",\"x/%g\":\"rw\",\"fixed/#\":\"rw\","
+            + "\"caf\u00e9/%g\":\"r\"}");
+        var copy = roundTrip(tmpl);
+
+        assertEquals(Optional.of("v1"), copy.getVersion());
+        assertEquals(tmpl.fixedEntries(), copy.fixedEntries());
+        assertEquals(tmpl.needsTarget(), copy.needsTarget());
+        assertEquals(set(tmpl.expand(NODE)), set(copy.expand(NODE)));
+    }
+
+    @Test
+    public void snapshotKeepsMissingVersion ()
+        throws IOException
+    {
+        var tmpl = MqttTemplate.compile(new JSONObject(), Optional.empty());
+        var copy = roundTrip(tmpl);
+        assertEquals(Optional.empty(), copy.getVersion());
+        assertFalse(copy.needsTarget());
+        assertTrue(copy.fixedEntries().isEmpty());
+    }
+}
@@ -0,0 +1,110 @@
+/* Factory+ HiveMQ auth plugin.
+ * Rate limiter tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.hivemq_auth_krb;
+
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest
+{
+    @Test
+    public void disabledLimiterAllowsEverything ()
+    {
+        var limiter = new RateLimiter<String>("test", 0, 1, 10);
+        assertFalse(limiter.enabled());
+        for (int i = 0; i < 100; i++)
+            assertTrue(limiter.tryAcquire("a"));
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void allowsBurstThenRefuses ()
+    {
+        var limiter = new RateLimiter<String>("test", 1, 3, 10);
+        assertTrue(limiter.enabled());
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertEquals(2, limiter.rejectedCount());
+
+        /* Keys have their own buckets. */
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(2, limiter.size());
+    }
+
+    @Test
+    public void refillsAtTheSustainedRate ()
+        throws InterruptedException
+    {
+        /* One every 10ms, no burst. */
+        var limiter = new RateLimiter<String>("test", 6000, 1, 10);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        Thread.sleep(20);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void concurrentAcquiresRespectTheBurst ()
+        throws InterruptedException
+    {
+        var limiter = new RateLimiter<String>("test", 1, 50, 10);
+        var allowed = new java.util.concurrent.atomic.AtomicInteger();
+        var threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++)
+                    if (limiter.tryAcquire("a"))
+                        allowed.incrementAndGet();
+            });
+            threads[i].start();
+        }
+        for (var t : threads)
+            t.join();
+        assertEquals(50, allowed.get());
+        assertEquals(750, limiter.rejectedCount());
+    }
+
+    @Test
+    public void fullTableLetsNewKeysThrough ()
+    {
+        var limiter = new RateLimiter<String>("test", 1, 1, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire("c"));
+        assertEquals(2, limiter.size());
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void sweepRemovesRefilledBuckets ()
+        throws InterruptedException
+    {
+        /* A full table is swept every second. */
+        var limiter = new RateLimiter<String>("test", 60000, 1, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertFalse(limiter.tryAcquire("b"));
+        assertEquals(2, limiter.size());
+
+        var exec = Executors.newSingleThreadScheduledExecutor();
+        try {
+            limiter.start(exec);
+            for (int i = 0; i < 50 && limiter.size() > 0; i++)
+                Thread.sleep(100);
+        }
+        finally {
+            exec.shutdownNow();
+        }
+        assertEquals(0, limiter.size());
+    }
+}
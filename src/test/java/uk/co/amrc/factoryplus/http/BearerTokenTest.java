@@ -0,0 +1,125 @@
+/* Factory+ Java client library.
+ * Bearer token tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+
+import org.json.JSONObject;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BearerTokenTest
+{
+    private static String jwt (String claims)
+    {
+        var enc = Base64.getUrlEncoder().withoutPadding();
+        return enc.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8))
+            + "." + enc.encodeToString(claims.getBytes(StandardCharsets.UTF_8))
+            + ".sig";
+    }
+
+    private static JSONObject response (String token)
+    {
+        return new JSONObject().put("token", token);
+    }
+
+    @Test
+    public void readsExpiryField ()
+    {
+        long expiry = System.currentTimeMillis() + 3600000;
+        var tok = BearerToken.fromResponse(
+            response("opaque").put("expiry", expiry));
+        assertEquals("opaque", tok.getToken());
+        assertEquals(expiry, tok.getExpiry());
+    }
+
+    @Test
+    public void readsJWTExpiry ()
+    {
+        long exp = System.currentTimeMillis() / 1000 + 3600;
+        var tok = BearerToken.fromResponse(
+            response(jwt("{\"sub\":\"me\",\"exp\":" + exp + "}")));
+        assertEquals(exp * 1000, tok.getExpiry());
+    }
+
+    @Test
+    public void expiryFieldBeatsJWT ()
+    {
+        long now = System.currentTimeMillis();
+        long expiry = now + 60000;
+        var token = jwt("{\"exp\":" + (now / 1000 + 3600) + "}");
+        var tok = BearerToken.fromResponse(
+            response(token).put("expiry", expiry));
+        assertEquals(expiry, tok.getExpiry());
+    }
+
+    @Test
+    public void unknownExpiryIsZero ()
+    {
+        assertEquals(0, BearerToken.fromResponse(response("opaque"))
+            .getExpiry());
+        assertEquals(0, BearerToken.fromResponse(response("a.b.c"))
+            .getExpiry());
+        assertEquals(0, BearerToken.fromResponse(response(jwt("[1]")))
+            .getExpiry());
+        assertEquals(0, BearerToken.fromResponse(response(jwt("{}")))
+            .getExpiry());
+    }
+
+    @Test
+    public void expiredTokenHasUnknownExpiry ()
+    {
+        var tok = BearerToken.fromResponse(response("opaque")
+            .put("expiry", System.currentTimeMillis() - 1000));
+        assertEquals(0, tok.getExpiry());
+    }
+
+    @Test
+    public void unknownExpiryNeverRefreshes ()
+    {
+        var tok = new BearerToken("opaque", 0);
+        assertNull(tok.refreshIn(0.5));
+        assertEquals(Duration.ZERO, tok.staleFor(0.5));
+    }
+
+    @Test
+    public void refreshLeavesAMargin ()
+    {
+        var tok = new BearerToken("opaque",
+            System.currentTimeMillis() + 3600000);
+        var refresh = tok.refreshIn(0.5);
+        var stale = tok.staleFor(0.5);
+
+        /* An hour less 30s, split in half. */
+        var usable = Duration.ofMinutes(60).minusSeconds(30);
+        assertTrue(refresh.compareTo(usable.dividedBy(2)) <= 0);
+        assertTrue(refresh.compareTo(usable.dividedBy(2).minusSeconds(1)) > 0);
+        assertTrue(refresh.plus(stale).compareTo(usable) <= 0);
+        assertTrue(refresh.plus(stale).compareTo(usable.minusSeconds(1)) > 0);
+    }
+
+    @Test
+    public void shortLivedTokensKeepMostOfTheirLife ()
+    {
+        var tok = new BearerToken("opaque",
+            System.currentTimeMillis() + 10000);
+        var total = tok.refreshIn(1.0);
+        assertTrue(total.toMillis() > 8000, "usable for " + total);
+        assertTrue(total.toMillis() <= 9000, "usable for " + total);
+    }
+
+    @Test
+    public void equalityIgnoresExpiry ()
+    {
+        assertEquals(new BearerToken("t", 0), new BearerToken("t", 12345));
+        assertEquals(new BearerToken("t", 0).hashCode(),
+            new BearerToken("t", 12345).hashCode());
+        assertNotEquals(new BearerToken("t", 0), new BearerToken("u", 0));
+    }
+}
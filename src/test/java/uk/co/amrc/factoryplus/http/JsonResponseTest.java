@@ -0,0 +1,129 @@
+/* Factory+ Java client library.
+ * JSON response tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+
+import org.json.*;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import uk.co.amrc.factoryplus.AclEntry;
+
+public class JsonResponseTest
+{
+    private static JsonResponse response (int code, String body)
+    {
+        return new JsonResponse(SimpleHttpResponse.create(code,
+            body.getBytes(StandardCharsets.UTF_8),
+            ContentType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void parsesObjectBody ()
+    {
+        var res = response(200, "{\"a\":1,\"b\":\"caf\u00e9\"}");
+        assertTrue(res.ok());
+        assertTrue(res.ifOk().isPresent());
+        assertTrue(res.hasBody());
+        var obj = res.getBodyObject().get();
+        assertEquals(1, obj.getInt("a"));
+        assertEquals("caf\u00e9", obj.getString("b"));
+        assertFalse(res.getBodyArray().isPresent());
+        assertFalse(res.getBodyElements().isPresent());
+    }
+
+    @Test
+    public void parsesArrayBody ()
+    {
+        var res = response(200, "[1, \"two\", {\"three\": 3}]");
+        assertFalse(res.getBodyObject().isPresent());
+        assertEquals(3, res.getBodyArray().get().length());
+    }
+
+    @Test
+    public void errorCodesAreNotOk ()
+    {
+        var res = response(404, "{}");
+        assertFalse(res.ok());
+        assertFalse(res.ifOk().isPresent());
+        assertEquals(404, res.getCode());
+    }
+
+    @Test
+    public void emptyOrInvalidBodyIsAbsent ()
+    {
+        assertFalse(response(200, "").hasBody());
+        assertFalse(response(200, "{\"a\":").hasBody());
+        assertFalse(response(200, "{\"a\":").getBodyElements().isPresent());
+        assertFalse(new JsonResponse(SimpleHttpResponse.create(204))
+            .hasBody());
+    }
+
+    @Test
+    public void streamsArrayElements ()
+    {
+        var res = response(200, " [ 1 , \"two\" , [3] ] ");
+        var elements = res.getBodyElements().get()
+            .map(Object::toString)
+            .collect(Collectors.toList());
+        assertEquals(java.util.List.of("1", "two", "[3]"), elements);
+    }
+
+    @Test
+    public void streamsEmptyArray ()
+    {
+        assertEquals(0, response(200, "[ ]").getBodyElements().get().count());
+    }
+
+    @Test
+    public void streamsParsedBody ()
+    {
+        var res = response(200, "[1,2,3]");
+        assertTrue(res.getBodyArray().isPresent());
+        assertEquals(3, res.getBodyElements().get().count());
+    }
+
+    @Test
+    public void streamThrowsOnLaterSyntaxError ()
+    {
+        var stream = response(200, "[1, {\"a\":2} 3]").getBodyElements().get();
+        assertThrows(JSONException.class, () -> stream.count());
+    }
+
+    @Test
+    public void streamsDecodedElements ()
+    {
+        var perm = UUID.randomUUID();
+        var target = UUID.randomUUID();
+        var res = response(200, String.format(
+            "[{\"permission\":\"%s\",\"target\":\"%s\"},null]", perm, target));
+        var aces = res.getBodyElements(AclEntry.decoder()).get()
+            .collect(Collectors.toList());
+        assertEquals(2, aces.size());
+        assertEquals(new AclEntry(perm, target), aces.get(0));
+        assertNull(aces.get(1));
+    }
+
+    @Test
+    public void decodesOtherCharsets ()
+    {
+        var latin1 = Charset.forName("ISO-8859-1");
+        var res = new JsonResponse(SimpleHttpResponse.create(200,
+            "[\"caf\u00e9\"]".getBytes(latin1),
+            ContentType.create("application/json", latin1)));
+        assertEquals("caf\u00e9", res.getBodyArray().get().getString(0));
+        assertEquals("caf\u00e9", res.getBodyElements().get()
+            .findFirst().get());
+    }
+}
@@ -0,0 +1,170 @@
+/* Factory+ Java client library.
+ * UTF-8 reader tests.
+ * Copyright 2024 AMRC.
+ */
+
+package uk.co.amrc.factoryplus.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Utf8ReaderTest
+{
+    private static String decode (byte[] bytes)
+    {
+        var reader = new Utf8Reader(bytes);
+        var sb = new StringBuilder();
+        int c;
+        while ((c = reader.read()) >= 0)
+            sb.append((char)c);
+        return sb.toString();
+    }
+
+    private static byte[] bytes (int... bs)
+    {
+        var rv = new byte[bs.length];
+        for (int i = 0; i < bs.length; i++)
+            rv[i] = (byte)bs[i];
+        return rv;
+    }
+
+    @Test
+    public void decodesValidText ()
+    {
+        for (var text : new String[] {
+            "", "plain ascii", "caf\u00e9", "\u20ac100", "\u0800\uffff",
+            "\ud83d\ude00 emoji", "\u0080\u07ff\ud800\udc00\udbff\udfff",
+        })
+            assertEquals(text, decode(text.getBytes(UTF_8)));
+    }
+
+    @Test
+    public void replacesBadLeadBytes ()
+    {
+        assertEquals("a\ufffdb", decode(bytes('a', 0x80, 'b')));
+        assertEquals("a\ufffdb", decode(bytes('a', 0xFF, 'b')));
+        assertEquals("a\ufffdb", decode(bytes('a', 0xF8, 'b')));
+    }
+
+    @Test
+    public void replacesTruncatedSequences ()
+    {
+        assertEquals("\ufffdA", decode(bytes(0xE2, 0x82, 'A')));
+        assertEquals("\ufffd", decode(bytes(0xF0, 0x9F, 0x98)));
+        assertEquals(new String(bytes(0xC3, 'x'), UTF_8),
+            decode(bytes(0xC3, 'x')));
+    }
+
+    @Test
+    public void replacesOverlongForms ()
+    {
+        /* NUL and '/' in two, three and four bytes. */
+        assertEquals("\ufffd\ufffd", decode(bytes(0xC0, 0x80)));
+        assertEquals("\ufffd\ufffd", decode(bytes(0xC1, 0xAF)));
+        assertEquals("\ufffd\ufffd\ufffd", decode(bytes(0xE0, 0x80, 0xAF)));
+        assertEquals("\ufffd\ufffd\ufffd\ufffd",
+            decode(bytes(0xF0, 0x80, 0x80, 0xAF)));
+        /* The largest overlong three-byte form. */
+        assertEquals("\ufffd\ufffd\ufffd", decode(bytes(0xE0, 0x9F, 0xBF)));
+    }
+
+    @Test
+    public void replacesSurrogates ()
+    {
+        /* CESU-8 style U+D83D U+DE00. */
+        assertEquals("\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd",
+            decode(bytes(0xED, 0xA0, 0xBD, 0xED, 0xB8, 0x80)));
+        assertEquals("\ud7ff", decode(bytes(0xED, 0x9F, 0xBF)));
+        assertEquals("\ue000", decode(bytes(0xEE, 0x80, 0x80)));
+    }
+
+    @Test
+    public void replacesCodePointsAboveTheMaximum ()
+    {
+        assertEquals("\ufffd\ufffd\ufffd\ufffd",
+            decode(bytes(0xF4, 0x90, 0x80, 0x80)));
+        assertEquals("\ufffd\ufffd\ufffd\ufffd",
+            decode(bytes(0xF7, 0xBF, 0xBF, 0xBF)));
+        assertEquals("\udbff\udfff", decode(bytes(0xF4, 0x8F, 0xBF, 0xBF)));
+    }
+
+    /* Every one- and two-byte input, and three-byte inputs with a
+     * lead byte which starts a multibyte sequence. */
+    @Test
+    public void matchesTheJDKOnShortInputs ()
+    {
+        for (int a = 0; a < 256; a++) {
+            assertMatches(bytes(a));
+            for (int b = 0; b < 256; b++) {
+                assertMatches(bytes(a, b));
+                if (a < 0xC0)
+                    continue;
+                for (int c : new int[] { 0x00, 0x41, 0x7F, 0x80, 0x8F,
+                        0x90, 0x9F, 0xA0, 0xBF, 0xC0, 0xE0, 0xF0, 0xFF })
+                    assertMatches(bytes(a, b, c));
+            }
+        }
+    }
+
+    @Test
+    public void matchesTheJDKOnRandomInput ()
+    {
+        var random = new Random(20240601);
+        for (int i = 0; i < 20000; i++) {
+            var buf = new byte[random.nextInt(12)];
+            random.nextBytes(buf);
+            /* Bias towards bytes which form multibyte sequences. */
+            for (int j = 0; j < buf.length; j++)
+                if (random.nextBoolean())
+                    buf[j] = (byte)(0x80 | buf[j]);
+            assertMatches(buf);
+        }
+    }
+
+    /* The JDK doesn't always follow the Unicode recommendation on how
+     * many replacement characters to emit, so only compare runs. */
+    private static void assertMatches (byte[] buf)
+    {
+        assertEquals(
+            new String(buf, UTF_8).replaceAll("\ufffd+", "\ufffd"),
+            decode(buf).replaceAll("\ufffd+", "\ufffd"),
+            () -> "decoding " + java.util.Arrays.toString(buf));
+    }
+
+    @Test
+    public void readsIntoArray ()
+    {
+        var text = "\u00e9t\u00e9 \ud83d\ude00";
+        var reader = new Utf8Reader(text.getBytes(UTF_8));
+        var buf = new char[16];
+        assertEquals(0, reader.read(buf, 0, 0));
+        int n = reader.read(buf, 1, 3);
+        assertEquals(3, n);
+        assertEquals("\u00e9t\u00e9", new String(buf, 1, 3));
+        n = reader.read(buf, 0, 16);
+        assertEquals(" \ud83d\ude00", new String(buf, 0, n));
+        assertEquals(-1, reader.read(buf, 0, 16));
+    }
+
+    @Test
+    public void resetReturnsToMark ()
+    {
+        var reader = new Utf8Reader("a\ud83d\ude00b".getBytes(UTF_8));
+        assertTrue(reader.markSupported());
+        assertEquals('a', reader.read());
+        assertEquals(0xd83d, reader.read());
+
+        /* Marking between the halves of a pair keeps the low half. */
+        reader.mark(1);
+        assertEquals(0xde00, reader.read());
+        assertEquals('b', reader.read());
+        reader.reset();
+        assertEquals(0xde00, reader.read());
+        assertEquals('b', reader.read());
+        assertEquals(-1, reader.read());
+    }
+}